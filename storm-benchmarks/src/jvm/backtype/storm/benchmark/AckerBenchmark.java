@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.benchmark;
+
+import backtype.storm.utils.RotatingAckTable;
+import backtype.storm.utils.RotatingMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tracks one tuple tree from init to completion the way the acker does, xoring the ids of
+ * its edges into the ack val of its root id, while the table holds pending other trees.
+ * ackTable uses the RotatingAckTable of AckerBolt; rotatingMap the boxed RotatingMap of
+ * long[] entries the acker used before it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AckerBenchmark {
+    @Param({"1000", "100000"})
+    int pending;
+
+    @Param({"1", "8"})
+    int edges;
+
+    RotatingAckTable table;
+    RotatingMap<Long, long[]> map;
+    Random rand;
+    long[] edgeIds;
+
+    @Setup
+    public void setup() {
+        rand = new Random(1);
+        table = new RotatingAckTable();
+        map = new RotatingMap<Long, long[]>(2);
+        for(int i = 0; i < pending; i++) {
+            long id = rand.nextLong();
+            table.xor(table.touch(id), rand.nextLong());
+            map.put(id, new long[] {rand.nextLong(), 1});
+        }
+        edgeIds = new long[edges];
+    }
+
+    /**
+     * @return the xor of all edge ids, as sent by the spout on the init stream
+     */
+    long nextTree() {
+        long val = 0;
+        for(int i = 0; i < edges; i++) {
+            edgeIds[i] = rand.nextLong();
+            val ^= edgeIds[i];
+        }
+        return val;
+    }
+
+    @Benchmark
+    public boolean ackTable() {
+        long root = rand.nextLong();
+        int slot = table.touch(root);
+        table.xor(slot, nextTree());
+        table.setSpoutTask(slot, 1);
+        boolean done = false;
+        for(int i = 0; i < edges; i++) {
+            slot = table.touch(root);
+            if(table.xor(slot, edgeIds[i]) == 0 && table.hasSpoutTask(slot)) {
+                table.remove(slot);
+                done = true;
+            }
+        }
+        return done;
+    }
+
+    @Benchmark
+    public boolean rotatingMap() {
+        Long root = rand.nextLong();
+        long[] entry = map.get(root);
+        if(entry == null) {
+            entry = new long[2];
+            map.put(root, entry);
+        }
+        entry[0] ^= nextTree();
+        entry[1] = 1;
+        boolean done = false;
+        for(int i = 0; i < edges; i++) {
+            entry = map.get(root);
+            if(entry == null) {
+                entry = new long[2];
+                map.put(root, entry);
+            }
+            entry[0] ^= edgeIds[i];
+            if(entry[0] == 0 && entry[1] != 0) {
+                map.remove(root);
+                done = true;
+            }
+        }
+        return done;
+    }
+}
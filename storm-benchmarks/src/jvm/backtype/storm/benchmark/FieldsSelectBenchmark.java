@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.benchmark;
+
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Selects two of five fields of a tuple and hashes them, as a fields grouping does for
+ * every tuple: by name with Fields.select, by precomputed indices, and by hashing the
+ * selected values in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldsSelectBenchmark {
+    Fields outFields;
+    Fields groupFields;
+    int[] indices;
+    List<Object> values;
+
+    @Setup
+    public void setup() {
+        outFields = new Fields("id", "user", "word", "count", "time");
+        groupFields = new Fields("user", "word");
+        indices = outFields.selectorIndices(groupFields);
+        values = new Values(1L, "nathan", "storm", 42, 1400000000000L);
+    }
+
+    @Benchmark
+    public int selectByName() {
+        return outFields.select(groupFields, values).hashCode();
+    }
+
+    @Benchmark
+    public int selectByIndex() {
+        return Fields.select(indices, values).hashCode();
+    }
+
+    @Benchmark
+    public int selectHashCode() {
+        return Fields.selectHashCode(indices, values);
+    }
+}
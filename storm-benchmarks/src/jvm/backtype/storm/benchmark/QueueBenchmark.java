@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.benchmark;
+
+import backtype.storm.utils.ArrayRingQueue;
+import backtype.storm.utils.DisruptorQueue;
+import backtype.storm.utils.IRingQueue;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.MultiThreadedClaimStrategy;
+import com.lmax.disruptor.SingleThreadedClaimStrategy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publishes to and consumes from the executor queues, as IRingQueue implementations selected
+ * with topology.queue.type. batchSize objects are published one at a time, or with one
+ * publishBatch call when batched is set, as bolts do to their send queues with
+ * topology.executor.send.batch.size. The mpsc group always publishes one at a time, as
+ * publishBatch is only used with a single producer.
+ *
+ * The single thread benchmarks measure the cost of the publish and consume calls themselves.
+ * The spsc and mpsc groups measure handoff between threads, the way executor send queues
+ * (usually one producer) and receive queues (several producers) are used. Executors create
+ * array queues for several producers either way.
+ *
+ * Producers never block, so a call may find the queue full and a consume call may find it
+ * empty. The primary score counts those calls too; compare the published and consumed
+ * counters instead, which count the objects actually handed off.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueueBenchmark {
+    static final int BUFFER_SIZE = 1024;
+    static final Object MESSAGE = new Object();
+
+    @Param({"disruptor", "array"})
+    String queueType;
+
+    @Param({"1", "16", "128"})
+    int batchSize;
+
+    @Param({"false", "true"})
+    boolean batched;
+
+    IRingQueue single;
+    IRingQueue multi;
+    List<Object> batch;
+
+    static IRingQueue mkQueue(String queueType, boolean multiProducer) {
+        if("array".equals(queueType)) {
+            return new ArrayRingQueue("benchmark", BUFFER_SIZE, multiProducer);
+        }
+        return new DisruptorQueue("benchmark",
+                multiProducer ? new MultiThreadedClaimStrategy(BUFFER_SIZE) : new SingleThreadedClaimStrategy(BUFFER_SIZE),
+                new BlockingWaitStrategy());
+    }
+
+    @Setup
+    public void setup() {
+        single = mkQueue(queueType, false);
+        multi = mkQueue(queueType, true);
+        single.consumerStarted();
+        multi.consumerStarted();
+        batch = new ArrayList<Object>(batchSize);
+        for(int i = 0; i < batchSize; i++) {
+            batch.add(MESSAGE);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Producer {
+        public long published;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            published = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Consumer implements EventHandler<Object> {
+        public long consumed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            consumed = 0;
+        }
+
+        public void onEvent(Object o, long sequence, boolean endOfBatch) {
+            consumed++;
+        }
+    }
+
+    /**
+     * Publishes without blocking, so producers don't hang once the consumer has stopped at the
+     * end of an iteration, and counts the objects that fit.
+     */
+    void publish(IRingQueue queue, boolean asBatch, Producer producer) {
+        if(asBatch) {
+            // publishBatch blocks, so only call it when the whole batch fits. The check is
+            // exact as there is a single producer
+            if(queue.capacity() - queue.population() >= batchSize) {
+                queue.publishBatch(batch);
+                producer.published += batchSize;
+            }
+            return;
+        }
+        for(int i = 0; i < batchSize; i++) {
+            try {
+                queue.tryPublish(MESSAGE);
+                producer.published++;
+            } catch (InsufficientCapacityException e) {
+                // counted as not handed off
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("single_thread")
+    public void publishThenConsume(Producer producer, Consumer consumer) {
+        publish(single, batched, producer);
+        single.consumeBatch(consumer);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscPublish(Producer producer) {
+        publish(single, batched, producer);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscConsume(Consumer consumer) {
+        single.consumeBatch(consumer);
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(3)
+    public void mpscPublish(Producer producer) {
+        publish(multi, false, producer);
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(1)
+    public void mpscConsume(Consumer consumer) {
+        multi.consumeBatch(consumer);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.benchmark;
+
+import backtype.storm.utils.ExpiringLongMap;
+import backtype.storm.utils.RotatingMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds a pending spout tuple and removes the oldest one, as a spout does when emitting a
+ * tuple while an earlier one is acked, with pending tuples outstanding. expiringLongMap is
+ * the spout's pending table; rotatingMap the RotatingMap it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpoutPendingBenchmark {
+    static final Object INFO = new Object();
+
+    @Param({"1000", "100000"})
+    int pending;
+
+    RotatingMap<Long, Object> rotating;
+    ExpiringLongMap<Object> expiring;
+    long next;
+
+    @Setup
+    public void setup() {
+        rotating = new RotatingMap<Long, Object>(2);
+        expiring = new ExpiringLongMap<Object>(TimeUnit.HOURS.toMillis(1), pending);
+        for(next = 0; next < pending; next++) {
+            rotating.put(next, INFO);
+            expiring.put(next, INFO);
+        }
+    }
+
+    @Benchmark
+    public Object rotatingMap() {
+        rotating.put(next, INFO);
+        return rotating.remove(next++ - pending);
+    }
+
+    @Benchmark
+    public Object expiringLongMap() {
+        expiring.put(next, INFO);
+        return expiring.remove(next++ - pending);
+    }
+}
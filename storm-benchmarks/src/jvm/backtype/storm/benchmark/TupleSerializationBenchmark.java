@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.benchmark;
+
+import backtype.storm.Config;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.serialization.KryoTupleDeserializer;
+import backtype.storm.serialization.KryoTupleSerializer;
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.GeneralTopologyContext;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.topology.base.BaseRichSpout;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.MessageId;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.TypedFields;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializes and deserializes a tuple of a long, a string and an int the way executors do
+ * for remote tasks, with the fields declared plainly (Kryo with class tags) or as
+ * TypedFields, and with values decoded eagerly or on first access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TupleSerializationBenchmark {
+    static final String[] FIELDS = {"id", "word", "count"};
+
+    @Param({"false", "true"})
+    boolean typed;
+
+    @Param({"false", "true"})
+    boolean lazy;
+
+    KryoTupleSerializer serializer;
+    KryoTupleDeserializer deserializer;
+    Tuple tuple;
+    byte[] serialized;
+
+    public static class FieldsSpout extends BaseRichSpout {
+        boolean _typed;
+
+        public FieldsSpout(boolean typed) {
+            _typed = typed;
+        }
+
+        public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
+        }
+
+        public void nextTuple() {
+        }
+
+        public void declareOutputFields(OutputFieldsDeclarer declarer) {
+            if(_typed) {
+                declarer.declare(new TypedFields(FIELDS,
+                        TypedFields.Type.LONG, TypedFields.Type.STRING, TypedFields.Type.INT));
+            } else {
+                declarer.declare(new Fields(FIELDS));
+            }
+        }
+    }
+
+    @Setup
+    public void setup() {
+        TopologyBuilder builder = new TopologyBuilder();
+        builder.setSpout("spout", new FieldsSpout(typed));
+        StormTopology topology = builder.createTopology();
+
+        Map conf = Utils.readDefaultConfig();
+        conf.put(Config.TOPOLOGY_TUPLE_LAZY_DESERIALIZATION, lazy);
+        Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+        taskToComponent.put(1, "spout");
+        Map<String, List<Integer>> componentToTasks = new HashMap<String, List<Integer>>();
+        componentToTasks.put("spout", Arrays.asList(1));
+        Map<String, Map<String, Fields>> componentToStreamToFields = new HashMap<String, Map<String, Fields>>();
+        componentToStreamToFields.put("spout", new HashMap<String, Fields>());
+        componentToStreamToFields.get("spout").put(Utils.DEFAULT_STREAM_ID, new Fields(FIELDS));
+        GeneralTopologyContext context = new GeneralTopologyContext(topology, conf, taskToComponent,
+                componentToTasks, componentToStreamToFields, "benchmark");
+
+        serializer = new KryoTupleSerializer(conf, context);
+        deserializer = new KryoTupleDeserializer(conf, context);
+        tuple = new TupleImpl(context, new Values(1234567890123L, "benchmark", 42), 1,
+                Utils.DEFAULT_STREAM_ID, MessageId.makeRootId(1, 2));
+        serialized = serializer.serialize(tuple);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializer.serialize(tuple);
+    }
+
+    @Benchmark
+    public Tuple deserialize() {
+        return deserializer.deserialize(serialized);
+    }
+
+    /**
+     * Reads one field, as a fields grouping or a bolt that only looks at the key would.
+     */
+    @Benchmark
+    public Object deserializeAndReadOne() {
+        return deserializer.deserialize(serialized).getValue(1);
+    }
+
+    @Benchmark
+    public Tuple roundTrip() {
+        return deserializer.deserialize(serializer.serialize(tuple));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.messaging.TaskMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes a batch of task messages the way the netty Client does, into a heap buffer or a
+ * pooled direct buffer, and decodes it the way the Server does. In this package, as the
+ * codec classes are package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NettyCodecBenchmark {
+    static final int BATCH_SIZE = 100;
+
+    @Param({"16", "1024"})
+    int messageSize;
+
+    @Param({"1", "2"})
+    int wireFormat;
+
+    List<TaskMessage> messages;
+    DirectBufferPool pool;
+    MessageDecoder decoder;
+    ChannelBuffer encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        messages = new ArrayList<TaskMessage>(BATCH_SIZE);
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            messages.add(new TaskMessage(i, new byte[messageSize]));
+        }
+        pool = new DirectBufferPool(16 * 1024 * 1024, 4);
+        decoder = new MessageDecoder();
+        if(wireFormat == WireFormat.V2) {
+            // the rest of the connection is decoded as V2
+            decoder.decode(null, null, ControlMessage.WIRE_FORMAT_V2.buffer());
+        }
+        encoded = batch(null).heapBuffer();
+    }
+
+    MessageBatch batch(DirectBufferPool pool) {
+        MessageBatch batch = new MessageBatch(Integer.MAX_VALUE, pool, 0, wireFormat);
+        for(TaskMessage message : messages) {
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeHeap() {
+        return batch(null).heapBuffer();
+    }
+
+    @Benchmark
+    public ChannelBuffer encodePooled() throws Exception {
+        MessageBatch batch = batch(pool);
+        ChannelBuffer buf = batch.buffer();
+        batch.release();
+        return buf;
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return decoder.decode(null, null, encoded.duplicate());
+    }
+}
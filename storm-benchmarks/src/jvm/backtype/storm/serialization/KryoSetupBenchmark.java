@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.serialization;
+
+import backtype.storm.utils.Utils;
+import com.esotericsoftware.kryo.Kryo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Kryo setup an executor pays for its tuple serializer and deserializer on worker
+ * start. perSerializer looks up the registered classes and builds a Kryo for each of
+ * the two, as every serializer did before they shared a KryoPool; pooled finds the cached
+ * pool twice and builds the one Kryo of the executor thread from its resolved
+ * registrations. In this package, as the KryoPool constructor is package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KryoSetupBenchmark {
+    Map conf;
+
+    @Setup
+    public void setup() {
+        conf = Utils.readDefaultConfig();
+        SerializationFactory.getKryoPool(conf);
+    }
+
+    @Benchmark
+    public Kryo perSerializer() {
+        new KryoPool(new HashMap(conf)).newKryo();
+        return new KryoPool(new HashMap(conf)).newKryo();
+    }
+
+    @Benchmark
+    public Kryo pooled() {
+        SerializationFactory.getKryoPool(conf);
+        return SerializationFactory.getKryoPool(conf).newKryo();
+    }
+}
@@ -24,7 +24,7 @@
                      TimeCacheMap$ExpiredCallback
                      RotatingMap RotatingMap$ExpiredCallback
                      BufferFileInputStream
-                     RegisteredGlobalState ThriftTopologyUtils DisruptorQueue
+                     RegisteredGlobalState ThriftTopologyUtils DisruptorQueue IRingQueue
                      MutableObject MutableLong]))
      (import (quote [backtype.storm.serialization KryoTupleSerializer KryoTupleDeserializer]))
      (import (quote [backtype.storm.spout ISpout SpoutOutputCollector ISpoutOutputCollector ShellSpout]))
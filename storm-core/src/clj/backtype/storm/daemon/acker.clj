@@ -15,10 +15,8 @@
 ;; limitations under the License.
 (ns backtype.storm.daemon.acker
   (:import [backtype.storm.task OutputCollector TopologyContext IBolt])
-  (:import [backtype.storm.tuple Tuple Fields])
-  (:import [backtype.storm.utils RotatingMap MutableObject])
-  (:import [java.util List Map])
-  (:import [backtype.storm Constants])
+  (:import [backtype.storm.daemon AckerBolt])
+  (:import [java.util Map])
   (:use [backtype.storm config util log])
   (:gen-class
    :init init
@@ -26,66 +24,14 @@
    :constructors {[] []}
    :state state ))
 
-(def ACKER-COMPONENT-ID "__acker")
-(def ACKER-INIT-STREAM-ID "__ack_init")
-(def ACKER-ACK-STREAM-ID "__ack_ack")
-(def ACKER-FAIL-STREAM-ID "__ack_fail")
-
-(defn- update-ack [curr-entry val]
-  (let [old (get curr-entry :val 0)]
-    (assoc curr-entry :val (bit-xor old val))
-    ))
-
-(defn- acker-emit-direct [^OutputCollector collector ^Integer task ^String stream ^List values]
-  (.emitDirect collector task stream values)
-  )
+(def ACKER-COMPONENT-ID AckerBolt/ACKER_COMPONENT_ID)
+(def ACKER-INIT-STREAM-ID AckerBolt/ACKER_INIT_STREAM_ID)
+(def ACKER-ACK-STREAM-ID AckerBolt/ACKER_ACK_STREAM_ID)
+(def ACKER-FAIL-STREAM-ID AckerBolt/ACKER_FAIL_STREAM_ID)
+(def ACKER-ACK-BATCH-STREAM-ID AckerBolt/ACKER_ACK_BATCH_STREAM_ID)
 
 (defn mk-acker-bolt []
-  (let [output-collector (MutableObject.)
-        pending (MutableObject.)]
-    (reify IBolt
-      (^void prepare [this ^Map storm-conf ^TopologyContext context ^OutputCollector collector]
-               (.setObject output-collector collector)
-               (.setObject pending (RotatingMap. 2))
-               )
-      (^void execute [this ^Tuple tuple]
-             (let [^RotatingMap pending (.getObject pending)
-                   stream-id (.getSourceStreamId tuple)]
-               (if (= stream-id Constants/SYSTEM_TICK_STREAM_ID)
-                 (.rotate pending)
-                 (let [id (.getValue tuple 0)
-                       ^OutputCollector output-collector (.getObject output-collector)
-                       curr (.get pending id)
-                       curr (condp = stream-id
-                                ACKER-INIT-STREAM-ID (-> curr
-                                                         (update-ack (.getValue tuple 1))
-                                                         (assoc :spout-task (.getValue tuple 2)))
-                                ACKER-ACK-STREAM-ID (update-ack curr (.getValue tuple 1))
-                                ACKER-FAIL-STREAM-ID (assoc curr :failed true))]
-                   (.put pending id curr)
-                   (when (and curr (:spout-task curr))
-                     (cond (= 0 (:val curr))
-                           (do
-                             (.remove pending id)
-                             (acker-emit-direct output-collector
-                                                (:spout-task curr)
-                                                ACKER-ACK-STREAM-ID
-                                                [id]
-                                                ))
-                           (:failed curr)
-                           (do
-                             (.remove pending id)
-                             (acker-emit-direct output-collector
-                                                (:spout-task curr)
-                                                ACKER-FAIL-STREAM-ID
-                                                [id]
-                                                ))
-                           ))
-                   (.ack output-collector tuple)
-                   ))))
-      (^void cleanup [this]
-        )
-      )))
+  (AckerBolt.))
 
 (defn -init []
   [[] (container)])
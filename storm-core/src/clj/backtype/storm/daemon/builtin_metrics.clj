@@ -14,7 +14,7 @@
 ;; See the License for the specific language governing permissions and
 ;; limitations under the License.
 (ns backtype.storm.daemon.builtin-metrics
-  (:import [backtype.storm.metric.api MultiCountMetric MultiReducedMetric MeanReducer StateMetric])
+  (:import [backtype.storm.metric.api MultiCountMetric MultiReducedMetric MeanReducer StateMetric IStatefulObject])
   (:import [backtype.storm Config])
   (:use [backtype.storm.stats :only [stats-rate]]))
 
@@ -56,6 +56,11 @@
     (.registerMetric topology-context (str "__" (name qname)) (StateMetric. q)
                      (int (get storm-conf Config/TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS)))))
 
+(defn register-transport-metrics [mq-context storm-conf topology-context]
+  (when (instance? IStatefulObject mq-context)
+    (.registerMetric topology-context "__transport" (StateMetric. mq-context)
+                     (int (get storm-conf Config/TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS)))))
+
 (defn spout-acked-tuple! [^BuiltinSpoutMetrics m stats stream latency-ms]  
   (-> m .ack-count (.scope stream) (.incrBy (stats-rate stats)))
   (-> m .complete-latency (.scope stream) (.update latency-ms)))
@@ -33,6 +33,7 @@
 (def ACKER-INIT-STREAM-ID acker/ACKER-INIT-STREAM-ID)
 (def ACKER-ACK-STREAM-ID acker/ACKER-ACK-STREAM-ID)
 (def ACKER-FAIL-STREAM-ID acker/ACKER-FAIL-STREAM-ID)
+(def ACKER-ACK-BATCH-STREAM-ID acker/ACKER-ACK-BATCH-STREAM-ID)
 
 (def SYSTEM-STREAM-ID "__system")
 
@@ -174,7 +175,10 @@
                   (when-not (empty? diff-fields)
                     (throw (InvalidTopologyException. (str "Component: [" id "] subscribes from stream: [" source-stream-id "] of component [" source-component-id "] with non-existent fields: " diff-fields)))))))))))))
 
-(defn acker-inputs [^StormTopology topology]
+(defn ack-batching? [storm-conf]
+  (> (or (storm-conf TOPOLOGY-ACKER-BATCH-SIZE) 1) 1))
+
+(defn acker-inputs [^StormTopology topology & [ack-batching?]]
   (let [bolt-ids (.. topology get_bolts keySet)
         spout-ids (.. topology get_spouts keySet)
         spout-inputs (apply merge
@@ -183,14 +187,18 @@
                               ))
         bolt-inputs (apply merge
                            (for [id bolt-ids]
-                             {[id ACKER-ACK-STREAM-ID] ["id"]
-                              [id ACKER-FAIL-STREAM-ID] ["id"]}
+                             (merge
+                               {[id ACKER-ACK-STREAM-ID] ["id"]
+                                [id ACKER-FAIL-STREAM-ID] ["id"]}
+                               (when ack-batching?
+                                 {[id ACKER-ACK-BATCH-STREAM-ID] :direct}))
                              ))]
     (merge spout-inputs bolt-inputs)))
 
 (defn add-acker! [storm-conf ^StormTopology ret]
   (let [num-executors (if (nil? (storm-conf TOPOLOGY-ACKER-EXECUTORS)) (storm-conf TOPOLOGY-WORKERS) (storm-conf TOPOLOGY-ACKER-EXECUTORS))
-        acker-bolt (thrift/mk-bolt-spec* (acker-inputs ret)
+        batching? (ack-batching? storm-conf)
+        acker-bolt (thrift/mk-bolt-spec* (acker-inputs ret batching?)
                                          (new backtype.storm.daemon.acker)
                                          {ACKER-ACK-STREAM-ID (thrift/direct-output-fields ["id"])
                                           ACKER-FAIL-STREAM-ID (thrift/direct-output-fields ["id"])
@@ -203,6 +211,8 @@
            (do
              (.put_to_streams common ACKER-ACK-STREAM-ID (thrift/output-fields ["id" "ack-val"]))
              (.put_to_streams common ACKER-FAIL-STREAM-ID (thrift/output-fields ["id"]))
+             (when batching?
+               (.put_to_streams common ACKER-ACK-BATCH-STREAM-ID (thrift/direct-output-fields ["ids" "ack-vals"])))
              ))
     (dofor [[_ spout] (.get_spouts ret)
             :let [common (.get_common spout)
@@ -17,12 +17,16 @@
   (:use [backtype.storm.daemon common])
   (:use [backtype.storm bootstrap])
   (:import [backtype.storm.hooks ITaskHook])
-  (:import [backtype.storm.tuple Tuple])
+  (:import [backtype.storm.tuple Tuple MessageId$Builder])
   (:import [backtype.storm.spout ISpoutWaitStrategy])
   (:import [backtype.storm.hooks.info SpoutAckInfo SpoutFailInfo
             EmitInfo BoltFailInfo BoltAckInfo BoltExecuteInfo])
   (:import [backtype.storm.metric.api IMetric IMetricsConsumer$TaskInfo IMetricsConsumer$DataPoint StateMetric])
   (:import [backtype.storm Config])
+  (:import [backtype.storm.messaging TaskMessage IThrottledConnection])
+  (:import [backtype.storm.grouping LoadAwareShuffleGrouping LoadAwareShuffleGrouping$ILoad])
+  (:import [backtype.storm.daemon AckCoalescer AckCoalescer$Sender])
+  (:import [backtype.storm.utils ExpiringLongMap ExpiringLongMap$ExpiredCallback])
   (:require [backtype.storm [tuple :as tuple]])
   (:require [backtype.storm.daemon [task :as task]])
   (:require [backtype.storm.daemon.builtin-metrics :as builtin-metrics]))
@@ -31,10 +35,11 @@
 
 (defn- mk-fields-grouper [^Fields out-fields ^Fields group-fields ^List target-tasks]
   (let [num-tasks (count target-tasks)
+        indices (.selectorIndices out-fields group-fields)
         task-getter (fn [i] (.get target-tasks i))]
     (fn [task-id ^List values]
-      (-> (.select out-fields group-fields values)
-          tuple/list-hash-code
+      ;; same hash as (tuple/list-hash-code (.select out-fields group-fields values))
+      (-> (Fields/selectHashCode indices values)
           (mod num-tasks)
           task-getter))))
 
@@ -43,6 +48,11 @@
     (fn [task-id tuple]
       (acquire-random-range-id choices))))
 
+(defn- mk-load-aware-shuffle-grouper [^WorkerTopologyContext context ^List target-tasks task-load]
+  (let [grouping (LoadAwareShuffleGrouping. target-tasks (.getThisWorkerTasks context) task-load)]
+    (fn [task-id tuple]
+      (.chooseTask grouping))))
+
 (defn- mk-custom-grouper [^CustomStreamGrouping grouping ^WorkerTopologyContext context ^String component-id ^String stream-id target-tasks]
   (.prepare grouping context (GlobalStreamId. component-id stream-id) target-tasks)
   (fn [task-id ^List values]
@@ -51,7 +61,7 @@
 
 (defn- mk-grouper
   "Returns a function that returns a vector of which task indices to send tuple to, or just a single task index."
-  [^WorkerTopologyContext context component-id stream-id ^Fields out-fields thrift-grouping ^List target-tasks]
+  [^WorkerTopologyContext context component-id stream-id ^Fields out-fields thrift-grouping ^List target-tasks task-load]
   (let [num-tasks (count target-tasks)
         random (Random.)
         target-tasks (vec (sort target-tasks))]
@@ -67,7 +77,9 @@
       :all
         (fn [task-id tuple] target-tasks)
       :shuffle
-        (mk-shuffle-grouper target-tasks)
+        (if task-load
+          (mk-load-aware-shuffle-grouper context target-tasks task-load)
+          (mk-shuffle-grouper target-tasks))
       :local-or-shuffle
         (let [same-tasks (set/intersection
                            (set target-tasks)
@@ -90,7 +102,7 @@
         :direct
       )))
 
-(defn- outbound-groupings [^WorkerTopologyContext worker-context this-component-id stream-id out-fields component->grouping]
+(defn- outbound-groupings [^WorkerTopologyContext worker-context this-component-id stream-id out-fields component->grouping task-load]
   (->> component->grouping
        (filter-key #(-> worker-context
                         (.getComponentTasks %)
@@ -104,13 +116,15 @@
                             out-fields
                             tgrouping
                             (.getComponentTasks worker-context component)
+                            task-load
                             )]))
        (into {})
        (HashMap.)))
 
 (defn outbound-components
-  "Returns map of stream id to component id to grouper"
-  [^WorkerTopologyContext worker-context component-id]
+  "Returns map of stream id to component id to grouper. Shuffle groupings are load aware
+  when task-load is given."
+  [^WorkerTopologyContext worker-context component-id & [task-load]]
   (->> (.getTargets worker-context component-id)
         clojurify-structure
         (map (fn [[stream-id component->grouping]]
@@ -120,10 +134,29 @@
                   component-id
                   stream-id
                   (.getComponentOutputFields worker-context component-id stream-id)
-                  component->grouping)]))
+                  component->grouping
+                  task-load)]))
          (into {})
          (HashMap.)))
 
+(defn- mk-task-load
+  "Load of a task in this worker is the fill of its executor's receive queue, load of
+  other tasks is the backlog of the connection to their worker."
+  [worker]
+  (let [^Map task->short-executor (:task->short-executor worker)
+        short-executor-receive-queue-map (:short-executor-receive-queue-map worker)
+        task->node+port (:cached-task->node+port worker)
+        node+port->socket (:cached-node+port->socket worker)]
+    (reify LoadAwareShuffleGrouping$ILoad
+      (get [this task]
+        (let [short-executor (.get task->short-executor task)]
+          (if short-executor
+            (.pctFull ^IRingQueue (short-executor-receive-queue-map short-executor))
+            (let [conn (get @node+port->socket (get @task->node+port task))]
+              (if (instance? IThrottledConnection conn)
+                (.getLoad ^IThrottledConnection conn)
+                0.0))))))))
+
 (defn executor-type [^WorkerTopologyContext context component-id]
   (let [topology (.getRawTopology context)
         spouts (.get_spouts topology)
@@ -178,24 +211,106 @@
         (cluster/report-error (:storm-cluster-state executor) (:storm-id executor) (:component-id executor) error)
         ))))
 
+(defn publish-send-batch!
+  "Publishes the tuples buffered by the transfer fn with one claim on the send queue."
+  [batch-transfer->worker ^List send-batch]
+  (when-not (.isEmpty send-batch)
+    (disruptor/publish-batch batch-transfer->worker send-batch)
+    (.clear send-batch)))
+
 ;; in its own function so that it can be mocked out by tracked topologies
-(defn mk-executor-transfer-fn [batch-transfer->worker]
-  (fn this
-    ([task tuple block? ^List overflow-buffer]
-      (if (and overflow-buffer (not (.isEmpty overflow-buffer)))
-        (.add overflow-buffer [task tuple])
-        (try-cause
-          (disruptor/publish batch-transfer->worker [task tuple] block?)
-        (catch InsufficientCapacityException e
-          (if overflow-buffer
-            (.add overflow-buffer [task tuple])
-            (throw e))
-          ))))
-    ([task tuple overflow-buffer]
-      (this task tuple (nil? overflow-buffer) overflow-buffer))
-    ([task tuple]
-      (this task tuple nil)
-      )))
+(defn mk-executor-transfer-fn
+  "fused-deliver-fn, if given, is tried before publishing a tuple and returns true if it
+  handed the tuple to its task directly. send-batch, if given, buffers blocking sends made on
+  the thread in send-batch-owner until it holds send-batch-size tuples or is flushed with
+  publish-send-batch!. Sends from any other thread are published right away. overflow-buffer,
+  if given, is used for the sends that don't pass one in, which makes them non-blocking too."
+  [batch-transfer->worker & {:keys [fused-deliver-fn ^List send-batch send-batch-size send-batch-owner
+                                    overflow-buffer]}]
+  (let [buffer-send! (fn [task tuple]
+                       (.add send-batch [task tuple])
+                       (when (>= (.size send-batch) (int send-batch-size))
+                         (publish-send-batch! batch-transfer->worker send-batch)))]
+    (fn this
+      ([task tuple block? ^List overflow-buffer]
+        (let [buffer? (and block?
+                           send-batch
+                           (identical? @send-batch-owner (Thread/currentThread)))]
+          (cond
+            (and overflow-buffer (not (.isEmpty overflow-buffer)))
+              (.add overflow-buffer [task tuple])
+            ;; keeps tuples for the fused task in order behind the ones already buffered
+            (and buffer? (not (.isEmpty send-batch)))
+              (buffer-send! task tuple)
+            (and fused-deliver-fn (fused-deliver-fn task tuple))
+              nil
+            buffer?
+              (buffer-send! task tuple)
+            :else
+              (try-cause
+                (disruptor/publish batch-transfer->worker [task tuple] block?)
+              (catch InsufficientCapacityException e
+                (if overflow-buffer
+                  (.add overflow-buffer [task tuple])
+                  (throw e))
+                )))))
+      ([task tuple buffer]
+        (let [buffer (or buffer overflow-buffer)]
+          (this task tuple (nil? buffer) buffer)))
+      ([task tuple]
+        (this task tuple nil)
+        ))))
+
+(defn- publish-overflow-buffer!
+  "Publishes the tuples in overflow-buffer in order, without blocking, until the send queue
+  is full."
+  [transfer-fn ^LinkedList overflow-buffer]
+  (try-cause
+    (while (not (.isEmpty overflow-buffer))
+      (let [[out-task out-tuple] (.peek overflow-buffer)]
+        (transfer-fn out-task out-tuple false nil)
+        (.removeFirst overflow-buffer)))
+  (catch InsufficientCapacityException e
+    )))
+
+(defn fused-root
+  "Follows executor up the chain of executors it is fused into. Returns the executor that runs
+  them all on its thread, or nil if the chain is a cycle."
+  [fused-executors executor]
+  (loop [executor executor
+         seen #{}]
+    (cond (contains? seen executor) nil
+          (contains? fused-executors executor) (recur (fused-executors executor) (conj seen executor))
+          :else executor)))
+
+(defn- fuse-groupers
+  "Sends everything for the components in component->task to that task, which is fused into
+  this executor."
+  [stream->component->grouper component->task]
+  (->> stream->component->grouper
+       (map-val (fn [component->grouper]
+                  (->> component->grouper
+                       (map (fn [[component grouper]]
+                              (let [task (component->task component)]
+                                [component (if (and task (not= :direct grouper))
+                                             (fn [task-id values] task)
+                                             grouper)])))
+                       (into {})
+                       (HashMap.))))
+       (HashMap.)))
+
+(defn- mk-fused-deliver-fn
+  "Returns a fn that executes a tuple right away when its task runs fused on the calling
+  thread and has nothing queued that should go first."
+  [worker]
+  (let [^Map fused-receivers (:fused-receivers worker)]
+    (fn [task tuple]
+      (let [[thread tuple-action-fn ^IRingQueue receive-queue] (.get fused-receivers (int task))]
+        (when (and thread
+                   (identical? thread (Thread/currentThread))
+                   (zero? (.population receive-queue)))
+          (tuple-action-fn (int task) tuple)
+          true)))))
 
 (defn mk-executor-data [worker executor-id]
   (let [worker-context (worker-context worker)
@@ -203,11 +318,36 @@
         component-id (.getComponentId worker-context (first task-ids))
         storm-conf (normalized-component-conf (:storm-conf worker) worker-context component-id)
         executor-type (executor-type worker-context component-id)
+        queue-type (storm-conf TOPOLOGY-QUEUE-TYPE)
         batch-transfer->worker (disruptor/disruptor-queue
                                   (str "executor"  executor-id "-send-queue")
                                   (storm-conf TOPOLOGY-EXECUTOR-SEND-BUFFER-SIZE)
-                                  :claim-strategy :single-threaded
-                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY))
+                                  ;; bolts may emit from threads of their own, which the
+                                  ;; unsynchronized single producer array queue does not allow
+                                  :claim-strategy (if (= "array" queue-type) :multi-threaded :single-threaded)
+                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY)
+                                  :queue-type queue-type)
+        fused-executors (:fused-executors worker)
+        fused-into (fused-executors executor-id)
+        fused? (or fused-into (contains? (:fused-loops worker) executor-id))
+        ;; a bolt running on the thread of a spout must not block it, or the spout could no
+        ;; longer take in the acks that would let the topology drain
+        overflow-buffer (when (and fused-into
+                                   (let [[root-task] (fused-root fused-executors executor-id)]
+                                     (= :spout (executor-type worker-context
+                                                              (.getComponentId worker-context (int root-task))))))
+                          (LinkedList.))
+        send-batch-size (int (or (storm-conf TOPOLOGY-EXECUTOR-SEND-BATCH-SIZE) 1))
+        ;; spouts publish without blocking through their overflow buffer instead
+        send-batch (when (and (= executor-type :bolt) (not overflow-buffer) (> send-batch-size 1))
+                     (ArrayList. send-batch-size))
+        ;; the thread running the executor loop, the only one that may touch send-batch
+        send-batch-owner (when send-batch (atom nil))
+        ;; component -> task of the executors fused into this one
+        fused-targets (->> fused-executors
+                           (filter (fn [[e input]] (= input executor-id)))
+                           (map (fn [[[task] _]] [(.getComponentId worker-context (int task)) (int task)]))
+                           (into {}))
         ]
     (recursive-map
      :worker worker
@@ -223,7 +363,19 @@
      :shared-executor-data (HashMap.)
      :storm-active-atom (:storm-active-atom worker)
      :batch-transfer-queue batch-transfer->worker
-     :transfer-fn (mk-executor-transfer-fn batch-transfer->worker)
+     ;; tuples buffered by the transfer fn, published at the end of each received batch
+     :send-batch send-batch
+     :send-batch-owner send-batch-owner
+     ;; sends of a bolt fused into a spout that did not fit in the send queue
+     :overflow-buffer overflow-buffer
+     :transfer-fn (mk-executor-transfer-fn batch-transfer->worker
+                                           :fused-deliver-fn (when fused? (mk-fused-deliver-fn worker))
+                                           :send-batch send-batch
+                                           :send-batch-size send-batch-size
+                                           :send-batch-owner send-batch-owner
+                                           :overflow-buffer overflow-buffer)
+     ;; the executor this one runs fused into, if any
+     :fused-into fused-into
      :suicide-fn (:suicide-fn worker)
      :storm-cluster-state (cluster/mk-storm-cluster-state (:cluster-state worker))
      :type executor-type
@@ -231,7 +383,12 @@
      :stats (mk-executor-stats <> (sampling-rate storm-conf))
      :interval->task->metric-registry (HashMap.)
      :task->component (:task->component worker)
-     :stream->component->grouper (outbound-components worker-context component-id)
+     :stream->component->grouper (let [groupers (outbound-components worker-context component-id
+                                                                     (when (storm-conf TOPOLOGY-SHUFFLE-LOAD-AWARE)
+                                                                       (mk-task-load worker)))]
+                                   (if (empty? fused-targets)
+                                     groupers
+                                     (fuse-groupers groupers fused-targets)))
      :report-error (throttled-report-error-fn <>)
      :report-error-and-die (fn [error]
                              ((:report-error <>) error)
@@ -385,15 +542,23 @@
       (builtin-metrics/spout-acked-tuple! (:builtin-metrics task-data) (:stats executor-data) (:stream tuple-info) time-delta)
       (stats/spout-acked-tuple! (:stats executor-data) (:stream tuple-info) time-delta))))
 
-(defn mk-task-receiver [executor-data tuple-action-fn]
+(defn mk-task-receiver [executor-data tuple-action-fn & [end-of-batch-fn]]
   (let [^KryoTupleDeserializer deserializer (:deserializer executor-data)
         task-ids (:task-ids executor-data)
         debug? (= true (-> executor-data :storm-conf (get TOPOLOGY-DEBUG)))
         ]
     (disruptor/clojure-handler
       (fn [tuple-batch sequence-id end-of-batch?]
-        (fast-list-iter [[task-id msg] tuple-batch]
-          (let [^TupleImpl tuple (if (instance? Tuple msg) msg (.deserialize deserializer msg))]
+        ;; batches hold [task-id tuple-or-message] pairs, or bare TaskMessages when the
+        ;; worker receives directly on the transport threads
+        (fast-list-iter [elem tuple-batch]
+          (let [direct? (instance? TaskMessage elem)
+                task-id (if direct? (.task ^TaskMessage elem) (nth elem 0))
+                msg (if direct? elem (nth elem 1))
+                ^TupleImpl tuple (if (instance? Tuple msg)
+                                   msg
+                                   (let [^TaskMessage msg msg]
+                                     (.deserialize deserializer (.array msg) (.offset msg) (.length msg))))]
             (when debug? (log-message "Processing received message " tuple))
             (if task-id
               (tuple-action-fn task-id tuple)
@@ -401,7 +566,57 @@
               (fast-list-iter [task-id task-ids]
                 (tuple-action-fn task-id tuple)
                 ))
-            ))))))
+            ))
+        (when (and end-of-batch? end-of-batch-fn)
+          (end-of-batch-fn))))))
+
+(defn- mk-fused-runner
+  "Returns a fn that runs one iteration of the loops of the executors fused into this one,
+  starting the ones that registered since the last call, or nil if none are. The fn returns
+  true if any of them has sends waiting in its overflow buffer."
+  [executor-data]
+  (when-let [^List factories (get (:fused-loops (:worker executor-data)) (:executor-id executor-data))]
+    (let [loops (ArrayList.)]
+      (fn []
+        (while (< (.size loops) (.size factories))
+          (.add loops ((.get factories (.size loops)))))
+        (loop [i 0
+               backed-up? false]
+          (if (< i (.size loops))
+            (let [overflowing? ((.get loops i))]
+              (recur (inc i) (or overflowing? backed-up?)))
+            backed-up?))))))
+
+(defn- fused-error-reaction
+  "Wraps f, which runs on the thread of the executor this one is fused into, so that its
+  errors are reported under this executor's component rather than killing the one it runs on.
+  Interrupts still reach the loop of that executor, which is shutting down."
+  [executor-data f]
+  (let [report-error-and-die (:report-error-and-die executor-data)]
+    (fn
+      ([]
+         (try-cause (f)
+           (catch InterruptedException e
+             (throw e))
+           (catch Throwable t
+             (report-error-and-die t)
+             nil)))
+      ([task-id tuple]
+         (try-cause (f task-id tuple)
+           (catch InterruptedException e
+             (throw e))
+           (catch Throwable t
+             (report-error-and-die t)
+             nil))))))
+
+(defn- register-fused-receiver!
+  "Called on the thread of the executor this one is fused into, so that tuples sent on that
+  thread can be executed right away."
+  [executor-data tuple-action-fn]
+  (let [^Map fused-receivers (:fused-receivers (:worker executor-data))
+        tuple-action-fn (fused-error-reaction executor-data tuple-action-fn)]
+    (doseq [task-id (:task-ids executor-data)]
+      (.put fused-receivers (int task-id) [(Thread/currentThread) tuple-action-fn (:receive-queue executor-data)]))))
 
 (defn executor-max-spout-pending [storm-conf num-tasks]
   (let [p (storm-conf TOPOLOGY-MAX-SPOUT-PENDING)]
@@ -422,20 +637,22 @@
         spouts (ArrayList. (map :object (vals task-datas)))
         rand (Random. (Utils/secureRandomLong))
         
-        pending (RotatingMap.
-                 2 ;; microoptimize for performance of .size method
-                 (reify RotatingMap$ExpiredCallback
-                   (expire [this msg-id [task-id spout-id tuple-info start-time-ms]]
-                     (let [time-delta (if start-time-ms (time-delta-ms start-time-ms))]
-                       (fail-spout-msg executor-data (get task-datas task-id) spout-id tuple-info time-delta)
-                       ))))
+        ;; pending tuples fail as soon as they have been pending for the message timeout,
+        ;; checked on every iteration of the spout loop
+        pending (ExpiringLongMap. (* 1000 (long (storm-conf TOPOLOGY-MESSAGE-TIMEOUT-SECS))))
+        timeouts? (storm-conf TOPOLOGY-ENABLE-MESSAGE-TIMEOUTS)
+        expired-callback (reify ExpiringLongMap$ExpiredCallback
+                           (expire [this msg-id [task-id spout-id tuple-info start-time-ms]]
+                             (let [time-delta (if start-time-ms (time-delta-ms start-time-ms))]
+                               (fail-spout-msg executor-data (get task-datas task-id) spout-id tuple-info time-delta)
+                               )))
         tuple-action-fn (fn [task-id ^TupleImpl tuple]
                           (let [stream-id (.getSourceStreamId tuple)]
                             (condp = stream-id
-                              Constants/SYSTEM_TICK_STREAM_ID (.rotate pending)
+                              Constants/SYSTEM_TICK_STREAM_ID (.expire pending expired-callback)
                               Constants/METRICS_TICK_STREAM_ID (metrics-tick executor-data (get task-datas task-id) tuple)
                               (let [id (.getValue tuple 0)
-                                    [stored-task-id spout-id tuple-finished-info start-time-ms] (.remove pending id)]
+                                    [stored-task-id spout-id tuple-finished-info start-time-ms] (.remove pending (long id))]
                                 (when spout-id
                                   (when-not (= stored-task-id task-id)
                                     (throw-runtime "Fatal error, mismatched task ids: " task-id " " stored-task-id))
@@ -450,9 +667,12 @@
                                 ))))
         receive-queue (:receive-queue executor-data)
         event-handler (mk-task-receiver executor-data tuple-action-fn)
+        fused-runner (mk-fused-runner executor-data)
         has-ackers? (has-ackers? storm-conf)
         emitted-count (MutableLong. 0)
         empty-emit-streak (MutableLong. 0)
+        ;; true while the worker's outbound connections are backed up
+        transfer-throttled? (:transfer-throttled-fn (:worker executor-data))
         
         ;; the overflow buffer is used to ensure that spouts never block when emitting
         ;; this ensures that the spout can always clear the incoming buffer (acks and fails), which
@@ -538,21 +758,22 @@
         (fn []
           ;; This design requires that spouts be non-blocking
           (disruptor/consume-batch receive-queue event-handler)
-          
+
+          (when timeouts?
+            (.expire pending expired-callback))
+
           ;; try to clear the overflow-buffer
-          (try-cause
-            (while (not (.isEmpty overflow-buffer))
-              (let [[out-task out-tuple] (.peek overflow-buffer)]
-                (transfer-fn out-task out-tuple false nil)
-                (.removeFirst overflow-buffer)))
-          (catch InsufficientCapacityException e
-            ))
+          (publish-overflow-buffer! transfer-fn overflow-buffer)
           
-          (let [active? @(:storm-active-atom executor-data)
+          (let [fused-backed-up? (and fused-runner (fused-runner))
+                active? @(:storm-active-atom executor-data)
                 curr-count (.get emitted-count)]
             (if (and (.isEmpty overflow-buffer)
+                     ;; the bolts fused into this spout are held to the same limit
+                     (not fused-backed-up?)
                      (or (not max-spout-pending)
-                         (< (.size pending) max-spout-pending)))
+                         (< (.size pending) max-spout-pending))
+                     (not (transfer-throttled?)))
               (if active?
                 (do
                   (when-not @last-active
@@ -588,9 +809,22 @@
     (if ms
       (time-delta-ms ms))))
 
-(defn put-xor! [^Map pending key id]
-  (let [curr (or (.get pending key) (long 0))]
-    (.put pending key (bit-xor curr id))))
+(defn- mk-ack-coalescers
+  "Returns a map of task id to the AckCoalescer for its acks, or nil if acks are not batched."
+  [executor-data task-datas]
+  (let [{:keys [storm-conf ^WorkerTopologyContext worker-context]} executor-data
+        acker-tasks (.getComponentTasks worker-context ACKER-COMPONENT-ID)]
+    (when (and (ack-batching? storm-conf) (not (empty? acker-tasks)))
+      (into {}
+        (for [[task-id task-data] task-datas]
+          [task-id (AckCoalescer. acker-tasks
+                                  (int (storm-conf TOPOLOGY-ACKER-BATCH-SIZE))
+                                  (reify AckCoalescer$Sender
+                                    (send [this acker-task ids vals]
+                                      (task/send-direct-unanchored task-data
+                                                                   (int acker-task)
+                                                                   ACKER-ACK-BATCH-STREAM-ID
+                                                                   [ids vals]))))])))))
 
 (defmethod mk-threads :bolt [executor-data task-datas]
   (let [execute-sampler (mk-stats-sampler (:storm-conf executor-data))
@@ -598,6 +832,7 @@
         {:keys [storm-conf component-id worker-context transfer-fn report-error sampler
                 open-or-prepare-was-called?]} executor-data
         rand (Random. (Utils/secureRandomLong))
+        ack-coalescers (mk-ack-coalescers executor-data task-datas)
         tuple-action-fn (fn [task-id ^TupleImpl tuple]
                           ;; synchronization needs to be done with a key provided by this bolt, otherwise:
                           ;; spout 1 sends synchronization (s1), dies, same spout restarts somewhere else, sends synchronization (s2) and incremental update. s2 and update finish before s1 -> lose the incremental update
@@ -628,6 +863,8 @@
                                   (.setProcessSampleStartTime tuple now))
                                 (when execute-sampler?
                                   (.setExecuteSampleStartTime tuple now))
+                                (when ack-coalescers
+                                  (.begin ^AckCoalescer (ack-coalescers task-id)))
                                 (.execute bolt-obj tuple)
                                 (let [delta (tuple-execute-time-delta! tuple)]
                                   (task/apply-hooks user-context .boltExecute (BoltExecuteInfo. tuple task-id delta))
@@ -644,44 +881,51 @@
     
     ;; TODO: can get any SubscribedState objects out of the context now
 
-    [(async-loop
+    (let [factory
       (fn []
         ;; If topology was started in inactive state, don't call prepare bolt until it's activated first.
         (while (not @(:storm-active-atom executor-data))          
           (Thread/sleep 100))
-        
+
+        ;; emits made on this thread from here on are buffered in the send batch
+        (when-let [owner (:send-batch-owner executor-data)]
+          (reset! owner (Thread/currentThread)))
         (log-message "Preparing bolt " component-id ":" (keys task-datas))
         (doseq [[task-id task-data] task-datas
                 :let [^IBolt bolt-obj (:object task-data)
                       tasks-fn (:tasks-fn task-data)
                       user-context (:user-context task-data)
+                      ^AckCoalescer ack-coalescer (get ack-coalescers task-id)
                       bolt-emit (fn [stream anchors values task]
                                   (let [out-tasks (if task
                                                     (tasks-fn task stream values)
                                                     (tasks-fn stream values))]
                                     (fast-list-iter [t out-tasks]
-                                                    (let [anchors-to-ids (HashMap.)]
+                                                    (let [anchors-to-ids (MessageId$Builder.)]
                                                       (fast-list-iter [^TupleImpl a anchors]
-                                                                      (let [root-ids (-> a .getMessageId .getAnchorsToIds .keySet)]
-                                                                        (when (pos? (count root-ids))
+                                                                      (let [^MessageId a-id (.getMessageId a)
+                                                                            root-count (.anchorCount a-id)]
+                                                                        (when (pos? root-count)
                                                                           (let [edge-id (MessageId/generateId rand)]
                                                                             (.updateAckVal a edge-id)
-                                                                            (fast-list-iter [root-id root-ids]
-                                                                                            (put-xor! anchors-to-ids root-id edge-id))
+                                                                            (dotimes [i root-count]
+                                                                              (.xor anchors-to-ids (.getAnchor a-id i) edge-id))
                                                                             ))))
                                                       (transfer-fn t
                                                                    (TupleImpl. worker-context
                                                                                values
                                                                                task-id
                                                                                stream
-                                                                               (MessageId/makeId anchors-to-ids)))))
+                                                                               (.build anchors-to-ids)))))
                                     (or out-tasks [])))]]
           (builtin-metrics/register-all (:builtin-metrics task-data) storm-conf user-context)
           (if (= component-id Constants/SYSTEM_COMPONENT_ID)
-            (builtin-metrics/register-queue-metrics {:sendqueue (:batch-transfer-queue executor-data)
-                                                     :receive (:receive-queue executor-data)
-                                                     :transfer (:transfer-queue (:worker executor-data))}
-                                                    storm-conf user-context)
+            (do
+              (builtin-metrics/register-queue-metrics {:sendqueue (:batch-transfer-queue executor-data)
+                                                       :receive (:receive-queue executor-data)
+                                                       :transfer (:transfer-queue (:worker executor-data))}
+                                                      storm-conf user-context)
+              (builtin-metrics/register-transport-metrics (:mq-context (:worker executor-data)) storm-conf user-context))
             (builtin-metrics/register-queue-metrics {:sendqueue (:batch-transfer-queue executor-data)
                                                      :receive (:receive-queue executor-data)}
                                                     storm-conf user-context)
@@ -698,12 +942,16 @@
                          (bolt-emit stream anchors values task))
                        (^void ack [this ^Tuple tuple]
                          (let [^TupleImpl tuple tuple
-                               ack-val (.getAckVal tuple)]
-                           (fast-map-iter [[root id] (.. tuple getMessageId getAnchorsToIds)]
-                                          (task/send-unanchored task-data
-                                                                ACKER-ACK-STREAM-ID
-                                                                [root (bit-xor id ack-val)])
-                                          ))
+                               ack-val (.getAckVal tuple)
+                               ^MessageId id (.getMessageId tuple)]
+                           (dotimes [i (.anchorCount id)]
+                             (let [root (.getAnchor id i)
+                                   val (bit-xor (.getId id i) ack-val)]
+                               (when-not (and ack-coalescer (.add ack-coalescer root val))
+                                 (task/send-unanchored task-data
+                                                       ACKER-ACK-STREAM-ID
+                                                       [root val]))
+                               )))
                          (let [delta (tuple-time-delta! tuple)]
                            (task/apply-hooks user-context .boltAck (BoltAckInfo. tuple task-id delta))
                            (when delta
@@ -717,10 +965,11 @@
                                                       (.getSourceStreamId tuple)
                                                       delta))))
                        (^void fail [this ^Tuple tuple]
-                         (fast-list-iter [root (.. tuple getMessageId getAnchors)]
-                                         (task/send-unanchored task-data
-                                                               ACKER-FAIL-STREAM-ID
-                                                               [root]))
+                         (let [^MessageId id (.getMessageId tuple)]
+                           (dotimes [i (.anchorCount id)]
+                             (task/send-unanchored task-data
+                                                   ACKER-FAIL-STREAM-ID
+                                                   [(.getAnchor id i)])))
                          (let [delta (tuple-time-delta! tuple)]
                            (task/apply-hooks user-context .boltFail (BoltFailInfo. tuple task-id delta))
                            (when delta
@@ -740,14 +989,52 @@
         (setup-metrics! executor-data)
 
         (let [receive-queue (:receive-queue executor-data)
-              event-handler (mk-task-receiver executor-data tuple-action-fn)]
+              send-batch (:send-batch executor-data)
+              ;; acks are coalesced into the send batch, so they go first
+              flush-sends (when (or ack-coalescers send-batch)
+                            (fn []
+                              (doseq [^AckCoalescer c (vals ack-coalescers)]
+                                (.flush c))
+                              (when send-batch
+                                (publish-send-batch! (:batch-transfer-queue executor-data) send-batch))))
+              event-handler (mk-task-receiver executor-data tuple-action-fn flush-sends)
+              fused-runner (mk-fused-runner executor-data)]
           (disruptor/consumer-started! receive-queue)
-          (fn []            
-            (disruptor/consume-batch-when-available receive-queue event-handler)
-            0)))
-      :kill-fn (:report-error-and-die executor-data)
-      :factory? true
-      :thread-name component-id)]))
+          ;; anything emitted in prepare
+          (when flush-sends
+            (flush-sends))
+          (if (:fused-into executor-data)
+            ;; runs on the thread of the executor this one is fused into, so it must not block.
+            ;; acks and emits of directly executed tuples are flushed here too
+            (let [overflow-buffer (:overflow-buffer executor-data)]
+              (register-fused-receiver! executor-data tuple-action-fn)
+              (fn []
+                (disruptor/consume-batch receive-queue event-handler)
+                (when flush-sends
+                  (flush-sends))
+                (when overflow-buffer
+                  (publish-overflow-buffer! transfer-fn overflow-buffer)
+                  (not (.isEmpty ^LinkedList overflow-buffer)))))
+            (fn []            
+              (disruptor/consume-batch-when-available receive-queue event-handler)
+              (when fused-runner
+                (fused-runner))
+              0))))]
+      (if (:fused-into executor-data)
+        (let [root (fused-root (:fused-executors (:worker executor-data)) (:executor-id executor-data))]
+          (log-message "Fusing bolt " component-id ":" (keys task-datas) " into executor " (pr-str root))
+          (.add ^List (get (:fused-loops (:worker executor-data)) root)
+                (let [factory (fused-error-reaction executor-data factory)]
+                  (fn []
+                    (if-let [fused-loop (factory)]
+                      (fused-error-reaction executor-data fused-loop)
+                      ;; prepare failed and was reported, and the worker is going down
+                      (constantly false)))))
+          [])
+        [(async-loop factory
+                     :kill-fn (:report-error-and-die executor-data)
+                     :factory? true
+                     :thread-name component-id)]))))
 
 (defmethod close-component :spout [executor-data spout]
   (.close spout))
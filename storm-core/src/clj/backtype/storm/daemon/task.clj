@@ -19,6 +19,7 @@
   (:import [backtype.storm.hooks ITaskHook])
   (:import [backtype.storm.tuple Tuple])
   (:import [backtype.storm.generated SpoutSpec Bolt StateSpoutSpec])
+  (:import [backtype.storm.serialization TupleSchema])
   (:import [backtype.storm.hooks.info SpoutAckInfo SpoutFailInfo
             EmitInfo BoltFailInfo BoltAckInfo])
   (:require [backtype.storm [tuple :as tuple]])
@@ -117,6 +118,17 @@
       (send-unanchored task-data stream values nil)
       ))
 
+(defn send-direct-unanchored [task-data out-task-id stream values]
+  (let [^TopologyContext topology-context (:system-context task-data)
+        tasks-fn (:tasks-fn task-data)
+        transfer-fn (-> task-data :executor-data :transfer-fn)]
+    (fast-list-iter [t (tasks-fn out-task-id stream values)]
+      (transfer-fn t
+                   (TupleImpl. topology-context
+                               values
+                               (.getThisTaskId topology-context)
+                               stream)))))
+
 (defn mk-tasks-fn [task-data]
   (let [task-id (:task-id task-data)
         executor-data (:executor-data task-data)
@@ -127,11 +139,25 @@
         stream->component->grouper (:stream->component->grouper executor-data)
         user-context (:user-context task-data)
         executor-stats (:stats executor-data)
-        debug? (= true (storm-conf TOPOLOGY-DEBUG))]
+        debug? (= true (storm-conf TOPOLOGY-DEBUG))
+        ;; streams declared with TypedFields are checked here rather than when they are
+        ;; serialized, so a wrong value fails the same way whichever worker the target runs in
+        ^Map stream->schema (HashMap. (map-val #(TupleSchema/fromTypeNames %)
+                                               (-> worker-context
+                                                   (.getComponentCommon component-id)
+                                                   .get_json_conf
+                                                   from-json
+                                                   (get TOPOLOGY-STREAM-FIELD-TYPES))))
+        validate-fn (if (.isEmpty stream->schema)
+                      (fn [stream values])
+                      (fn [stream values]
+                        (when-let [^TupleSchema schema (.get stream->schema stream)]
+                          (.validate schema values))))]
         
     (fn ([^Integer out-task-id ^String stream ^List values]
           (when debug?
             (log-message "Emitting direct: " out-task-id "; " component-id " " stream " " values))
+          (validate-fn stream values)
           (let [target-component (.getComponentId worker-context out-task-id)
                 component->grouping (get stream->component->grouper stream)
                 grouping (get component->grouping target-component)
@@ -150,6 +176,7 @@
         ([^String stream ^List values]
            (when debug?
              (log-message "Emitting: " component-id " " stream " " values))
+           (validate-fn stream values)
            (let [out-tasks (ArrayList.)]
              (fast-map-iter [[out-component grouper] (get stream->component->grouper stream)]
                (when (= :direct grouper)
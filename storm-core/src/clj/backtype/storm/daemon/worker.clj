@@ -18,10 +18,12 @@
   (:use [backtype.storm bootstrap])
   (:require [backtype.storm.daemon [executor :as executor]])
   (:import [java.util.concurrent Executors])
-  (:import [java.util ArrayList HashMap])
+  (:import [java.util ArrayList HashMap Map$Entry])
+  (:import [java.util.concurrent ConcurrentHashMap CopyOnWriteArrayList])
   (:import [backtype.storm.utils TransferDrainer])
+  (:import [backtype.storm.serialization OutboundTupleBuffer])
   (:import [backtype.storm.messaging TransportFactory])
-  (:import [backtype.storm.messaging TaskMessage IContext IConnection])
+  (:import [backtype.storm.messaging TaskMessage IContext IConnection IConnectionCallback IThrottledConnection])
   (:gen-class))
 
 (bootstrap)
@@ -108,10 +110,30 @@
               (log-warn "Received invalid messages for unknown tasks. Dropping... ")
               )))))))
 
+;; used instead of the receive threads when the transport can deliver on its own threads.
+;; TaskMessages are published to the executor queues as they are, without wrapping them in pairs
+(defn mk-direct-receive-callback [worker]
+  (let [short-executor-receive-queue-map (:short-executor-receive-queue-map worker)
+        ^HashMap task->short-executor (:task->short-executor worker)]
+    (reify IConnectionCallback
+      (recv [this batch]
+        (let [grouped (HashMap.)]
+          (fast-list-iter [^TaskMessage msg batch]
+            (let [short-executor (.get task->short-executor (.task msg))]
+              (when-not (.get grouped short-executor)
+                (.put grouped short-executor (ArrayList.)))
+              (.add ^ArrayList (.get grouped short-executor) msg)))
+          (fast-map-iter [[short-executor msgs] grouped]
+            (let [q (short-executor-receive-queue-map short-executor)]
+              (if q
+                (disruptor/publish q msgs)
+                (log-warn "Received invalid messages for unknown tasks. Dropping... ")
+                ))))))))
+
 (defn mk-transfer-fn [worker]
   (let [local-tasks (-> worker :task-ids set)
         local-transfer (:transfer-local-fn worker)
-        ^DisruptorQueue transfer-queue (:transfer-queue worker)
+        ^IRingQueue transfer-queue (:transfer-queue worker)
         task->node+port (:cached-task->node+port worker)]
     (fn [^KryoTupleSerializer serializer tuple-batch]
       (let [local (ArrayList.)
@@ -121,23 +143,51 @@
             (.add local pair)
             
             ;;Using java objects directly to avoid performance issues in java code
+            ;;tuples for the same worker are serialized into one shared buffer
             (let [node+port (get @task->node+port task)]
               (when (not (.get remoteMap node+port))
-                (.put remoteMap node+port (ArrayList.)))
-              (let [remote (.get remoteMap node+port)]
-                (.add remote (TaskMessage. task (.serialize serializer tuple)))
+                (.put remoteMap node+port (OutboundTupleBuffer.)))
+              (let [^OutboundTupleBuffer remote (.get remoteMap node+port)]
+                (.add remote task serializer tuple)
                  ))))
         
         (local-transfer local)
-        (disruptor/publish transfer-queue remoteMap)
+        (when-not (.isEmpty remoteMap)
+          ;; the buffers are replaced by their messages in place, rather than in a new map
+          (fast-list-iter [^Map$Entry entry (.entrySet remoteMap)]
+            (.setValue entry (.messages ^OutboundTupleBuffer (.getValue entry))))
+          (disruptor/publish transfer-queue remoteMap))
           ))))
 
+;; true if any outbound connection has too many bytes waiting to be sent
+(defn- connections-throttled? [node+port->socket]
+  (boolean
+    (some (fn [conn]
+            (and (instance? IThrottledConnection conn)
+                 (.isThrottled ^IThrottledConnection conn)))
+          (vals node+port->socket))))
+
+;; spouts stop calling nextTuple while this returns true. The transfer thread raises the
+;; flag, and it is only cleared once a recheck finds every connection drained, so the
+;; common unthrottled case is a single deref
+(defn- mk-transfer-throttled-fn [worker]
+  (let [throttled (:transfer-throttled worker)
+        node+port->socket (:cached-node+port->socket worker)]
+    (fn []
+      (if @throttled
+        (let [still-throttled? (connections-throttled? @node+port->socket)]
+          (when-not still-throttled?
+            (reset! throttled false))
+          still-throttled?)
+        false))))
+
 (defn- mk-receive-queue-map [storm-conf executors]
   (->> executors
        ;; TODO: this depends on the type of executor
        (map (fn [e] [e (disruptor/disruptor-queue (str "receive-queue" e)
                                                   (storm-conf TOPOLOGY-EXECUTOR-RECEIVE-BUFFER-SIZE)
-                                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY))]))
+                                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY)
+                                                  :queue-type (storm-conf TOPOLOGY-QUEUE-TYPE))]))
        (into {})
        ))
 
@@ -174,13 +224,56 @@
                        )
             :timer-name timer-name))
 
+(defn- fusable-input
+  "Returns the component that component-id can run fused with: the one component it reads
+  from, through groupings that leave the choice of task to the sender, and that does not
+  read from component-id itself."
+  [^StormTopology topology component-id]
+  (let [components (all-components topology)
+        input-components (fn [id] (->> (get components id) .get_common .get_inputs keys
+                                       (map #(.get_componentId ^GlobalStreamId %)) set))
+        inputs (-> components (get component-id) .get_common .get_inputs)
+        sources (input-components component-id)
+        source (first sources)]
+    (when (and (= 1 (count sources))
+               (every? #{:shuffle :local-or-shuffle :none} (map thrift/grouping-type (vals inputs)))
+               (not (contains? (input-components source) component-id)))
+      source)))
+
+(defn mk-fused-executors
+  "Returns a map from each executor in this worker that runs fused into an executor of its
+  input to that executor. The nth task of a bolt declared with fuseWithInput is paired with
+  the nth task of its input, when both are alone in their executors in this worker."
+  [worker]
+  (let [^StormTopology topology (:topology worker)
+        task->component (:task->component worker)
+        component->sorted-tasks (:component->sorted-tasks worker)
+        task->single-executor (into {} (for [[start end :as e] (:executors worker)
+                                             :when (= start end)]
+                                         [(int start) e]))
+        fused (into {}
+                (for [[task e] task->single-executor
+                      :let [component (get task->component task)
+                            bolt (get (.get_bolts topology) component)]
+                      :when (and bolt (get (component-conf bolt) TOPOLOGY-FUSE-WITH-INPUT))
+                      :let [input (fusable-input topology component)
+                            ^List tasks (component->sorted-tasks component)
+                            input-tasks (component->sorted-tasks input)]
+                      :when (and input (= (count tasks) (count input-tasks)))
+                      :let [input-executor (task->single-executor (int (nth input-tasks (.indexOf tasks task))))]
+                      :when input-executor]
+                  [e input-executor]))]
+    ;; executors fused in a cycle would have nothing to run them
+    (filter-key #(executor/fused-root fused %) fused)))
+
 (defn worker-data [conf mq-context storm-id assignment-id port worker-id]
   (let [cluster-state (cluster/mk-distributed-cluster-state conf)
         storm-cluster-state (cluster/mk-storm-cluster-state cluster-state)
         storm-conf (read-supervisor-storm-conf conf storm-id)
         executors (set (read-worker-executors storm-conf storm-cluster-state storm-id assignment-id port))
         transfer-queue (disruptor/disruptor-queue "worker-transfer-queue" (storm-conf TOPOLOGY-TRANSFER-BUFFER-SIZE)
-                                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY))
+                                                  :wait-strategy (storm-conf TOPOLOGY-DISRUPTOR-WAIT-STRATEGY)
+                                                  :queue-type (storm-conf TOPOLOGY-QUEUE-TYPE))
         executor-receive-queue-map (mk-receive-queue-map storm-conf executors)
         
         receive-queue-map (->> executor-receive-queue-map
@@ -230,6 +323,17 @@
       :transfer-local-fn (mk-transfer-local-fn <>)
       :receiver-thread-count (get storm-conf WORKER-RECEIVER-THREAD-COUNT)
       :transfer-fn (mk-transfer-fn <>)
+      :transfer-throttled (atom false)
+      :transfer-throttled-fn (mk-transfer-throttled-fn <>)
+      :fused-executors (mk-fused-executors <>)
+      ;; executor that runs fused executors -> the loop factories they register
+      :fused-loops (->> (:fused-executors <>)
+                        keys
+                        (map #(executor/fused-root (:fused-executors <>) %))
+                        (map (fn [root] [root (CopyOnWriteArrayList.)]))
+                        (into {}))
+      ;; task of a fused executor -> [thread it runs on, tuple action fn, receive queue]
+      :fused-receivers (ConcurrentHashMap.)
       )))
 
 (defn- endpoint->string [[node port]]
@@ -306,11 +410,12 @@
 
 ;; TODO: consider having a max batch size besides what disruptor does automagically to prevent latency issues
 (defn mk-transfer-tuples-handler [worker]
-  (let [^DisruptorQueue transfer-queue (:transfer-queue worker)
+  (let [^IRingQueue transfer-queue (:transfer-queue worker)
         drainer (TransferDrainer.)
         node+port->socket (:cached-node+port->socket worker)
         task->node+port (:cached-task->node+port worker)
         endpoint-socket-lock (:endpoint-socket-lock worker)
+        throttled (:transfer-throttled worker)
         ]
     (disruptor/clojure-handler
       (fn [packets _ batch-end?]
@@ -319,7 +424,9 @@
         (when batch-end?
           (read-locked endpoint-socket-lock
             (let [node+port->socket @node+port->socket]
-              (.send drainer node+port->socket)))
+              (.send drainer node+port->socket)
+              (when (connections-throttled? node+port->socket)
+                (reset! throttled true))))
           (.clear drainer))))))
 
 (defn launch-receive-thread [worker]
@@ -331,7 +438,9 @@
     (:port worker)
     (:transfer-local-fn worker)
     (-> worker :storm-conf (get TOPOLOGY-RECEIVER-BUFFER-SIZE))
-    :kill-fn (fn [t] (halt-process! 11))))
+    :kill-fn (fn [t] (halt-process! 11))
+    :callback (if (-> worker :storm-conf (get WORKER-RECEIVER-DIRECT))
+                (mk-direct-receive-callback worker))))
 
 (defn- close-resources [worker]
   (let [dr (:default-shared-resources worker)]
@@ -389,7 +498,12 @@
                     (log-message "Shut down receive thread")
                     (log-message "Terminating messaging context")
                     (log-message "Shutting down executors")
-                    (doseq [executor @executors] (.shutdown executor))
+                    ;; executors fused into another one run on its thread, so that one has to
+                    ;; stop before their bolts are cleaned up
+                    (doseq [executor (sort-by #(contains? (:fused-executors worker)
+                                                          (executor/get-executor-id %))
+                                              @executors)]
+                      (.shutdown executor))
                     (log-message "Shut down executors")
                                         
                     ;;this is fine because the only time this is shared is when it's a local context,
@@ -14,7 +14,7 @@
 ;; See the License for the specific language governing permissions and
 ;; limitations under the License.
 (ns backtype.storm.disruptor
-  (:import [backtype.storm.utils DisruptorQueue])
+  (:import [backtype.storm.utils IRingQueue DisruptorQueue ArrayRingQueue AdaptiveWaitStrategy])
   (:import [com.lmax.disruptor MultiThreadedClaimStrategy SingleThreadedClaimStrategy
               BlockingWaitStrategy SleepingWaitStrategy YieldingWaitStrategy
               BusySpinWaitStrategy])
@@ -34,6 +34,7 @@
    :yield (fn [] (YieldingWaitStrategy.))
    :sleep (fn [] (SleepingWaitStrategy.))
    :spin (fn [] (BusySpinWaitStrategy.))
+   :adaptive (fn [] (AdaptiveWaitStrategy.))
     })
 
 
@@ -47,11 +48,19 @@
 ;; This would manifest itself in Trident when doing 1 batch at a time processing, and the ack_init message
 ;; wouldn't make it to the acker until the batch timed out and another tuple was played into the queue, 
 ;; unblocking the consumer
-(defnk disruptor-queue [^String queue-name buffer-size :claim-strategy :multi-threaded :wait-strategy :block]
-  (DisruptorQueue. queue-name
-                   ((CLAIM-STRATEGY claim-strategy) buffer-size)
-                   (mk-wait-strategy wait-strategy)
-                   ))
+(def QUEUE-TYPE
+  {:disruptor (fn [queue-name buffer-size claim-strategy wait-strategy]
+                (DisruptorQueue. queue-name
+                                 ((CLAIM-STRATEGY claim-strategy) buffer-size)
+                                 (mk-wait-strategy wait-strategy)
+                                 ))
+   :array (fn [queue-name buffer-size claim-strategy wait-strategy]
+            (ArrayRingQueue. queue-name buffer-size (= claim-strategy :multi-threaded)))
+   })
+
+(defnk disruptor-queue [^String queue-name buffer-size :claim-strategy :multi-threaded :wait-strategy :block
+                        :queue-type :disruptor]
+  ((QUEUE-TYPE (keyword (or queue-type :disruptor))) queue-name buffer-size claim-strategy wait-strategy))
 
 (defn clojure-handler [afn]
   (reify com.lmax.disruptor.EventHandler
@@ -63,27 +72,30 @@
   `(clojure-handler (fn ~@args)))
 
 (defn publish
-  ([^DisruptorQueue q o block?]
+  ([^IRingQueue q o block?]
     (.publish q o block?))
   ([q o]
     (publish q o true)))
 
-(defn try-publish [^DisruptorQueue q o]
+(defn publish-batch [^IRingQueue q ^java.util.List objs]
+  (.publishBatch q objs))
+
+(defn try-publish [^IRingQueue q o]
   (.tryPublish q o))
 
-(defn consume-batch [^DisruptorQueue queue handler]
+(defn consume-batch [^IRingQueue queue handler]
   (.consumeBatch queue handler))
 
-(defn consume-batch-when-available [^DisruptorQueue queue handler]
+(defn consume-batch-when-available [^IRingQueue queue handler]
   (.consumeBatchWhenAvailable queue handler))
 
-(defn consumer-started! [^DisruptorQueue queue]
+(defn consumer-started! [^IRingQueue queue]
   (.consumerStarted queue))
 
-(defn halt-with-interrupt! [^DisruptorQueue queue]
+(defn halt-with-interrupt! [^IRingQueue queue]
   (.haltWithInterrupt queue))
 
-(defnk consume-loop* [^DisruptorQueue queue handler :kill-fn (fn [error] (halt-process! 1 "Async loop died!"))]
+(defnk consume-loop* [^IRingQueue queue handler :kill-fn (fn [error] (halt-process! 1 "Async loop died!"))]
   (let [ret (async-loop
               (fn []
                 (consume-batch-when-available queue handler)
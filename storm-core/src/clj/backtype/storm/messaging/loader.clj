@@ -16,7 +16,7 @@
 (ns backtype.storm.messaging.loader
   (:use [backtype.storm util log])
   (:import [java.util ArrayList Iterator])
-  (:import [backtype.storm.messaging IContext IConnection TaskMessage])
+  (:import [backtype.storm.messaging IContext IConnection IDirectConnection TaskMessage])
   (:import [backtype.storm.utils DisruptorQueue MutableObject])
   (:require [backtype.storm.messaging [local :as local]])
   (:require [backtype.storm [disruptor :as disruptor]]))
@@ -35,13 +35,14 @@
              (when iter
                (while (and (not @closed) (.hasNext iter)) 
                   (let [packet (.next iter)
-                        task (if packet (.task ^TaskMessage packet))
-                        message (if packet (.message ^TaskMessage packet))]
+                        task (if packet (.task ^TaskMessage packet))]
                       (if (= task -1)
                          (do (log-message "Receiving-thread:[" storm-id ", " port "] received shutdown notice")
                            (.close socket)
                            (reset! closed  true))
-                         (when packet (.add batched [task message]))))))
+                         ;; hand the TaskMessage itself to the executor so the payload
+                         ;; can be deserialized in place without copying it out first
+                         (when packet (.add batched [task packet]))))))
              
              (when (not @closed)
                (do
@@ -59,15 +60,8 @@
              (mk-receive-thread context storm-id port transfer-local-fn  daemon kill-fn priority socket max-buffer-size thread-id))))
 
 
-(defnk launch-receive-thread!
-  [context storm-id receiver-thread-count port transfer-local-fn max-buffer-size
-   :daemon true
-   :kill-fn (fn [t] (System/exit 1))
-   :priority Thread/NORM_PRIORITY]
-  (let [max-buffer-size (int max-buffer-size)
-        socket (.bind ^IContext context storm-id port)
-        thread-count (if receiver-thread-count receiver-thread-count 1)
-        vthreads (mk-receive-threads context storm-id port transfer-local-fn daemon kill-fn priority socket max-buffer-size thread-count)]
+(defn- launch-receive-threads [context storm-id port transfer-local-fn daemon kill-fn priority socket max-buffer-size thread-count]
+  (let [vthreads (mk-receive-threads context storm-id port transfer-local-fn daemon kill-fn priority socket max-buffer-size thread-count)]
     (fn []
       (let [kill-socket (.connect ^IContext context storm-id "localhost" port)]
         (log-message "Shutting down receiving-thread: [" storm-id ", " port "]")
@@ -82,4 +76,23 @@
              (.join (vthreads thread-id)))
         
         (log-message "Shutdown receiving-thread: [" storm-id ", " port "]")
-        ))))
\ No newline at end of file
+        ))))
+
+(defnk launch-receive-thread!
+  [context storm-id receiver-thread-count port transfer-local-fn max-buffer-size
+   :daemon true
+   :kill-fn (fn [t] (System/exit 1))
+   :priority Thread/NORM_PRIORITY
+   :callback nil]
+  (let [max-buffer-size (int max-buffer-size)
+        socket (.bind ^IContext context storm-id port)
+        thread-count (if receiver-thread-count receiver-thread-count 1)]
+    (if (and callback (instance? IDirectConnection socket))
+      ;; the transport delivers messages itself, no receive threads needed
+      (do
+        (log-message "Delivering received messages directly for: [" storm-id ", " port "]")
+        (.registerRecv ^IDirectConnection socket callback)
+        (fn []
+          (log-message "Shutting down direct receiver: [" storm-id ", " port "]")
+          (.close ^IConnection socket)))
+      (launch-receive-threads context storm-id port transfer-local-fn daemon kill-fn priority socket max-buffer-size thread-count))))
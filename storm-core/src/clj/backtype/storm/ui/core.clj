@@ -20,7 +20,7 @@
   (:use [backtype.storm config util log])
   (:use [backtype.storm.ui helpers])
   (:use [backtype.storm.daemon [common :only [ACKER-COMPONENT-ID ACKER-INIT-STREAM-ID
-                                              ACKER-ACK-STREAM-ID ACKER-FAIL-STREAM-ID system-id?]]])
+                                              ACKER-ACK-STREAM-ID ACKER-FAIL-STREAM-ID ACKER-ACK-BATCH-STREAM-ID system-id?]]])
   (:use [ring.adapter.jetty :only [run-jetty]])
   (:use [clojure.string :only [trim]])
   (:import [backtype.storm.utils Utils])
@@ -143,7 +143,8 @@
   (let [acker-streams
         [ACKER-INIT-STREAM-ID
          ACKER-ACK-STREAM-ID
-         ACKER-FAIL-STREAM-ID]]
+         ACKER-FAIL-STREAM-ID
+         ACKER-ACK-BATCH-STREAM-ID]]
     (every? #(not= %1 stream) acker-streams)))
 
 (defn pre-process [stream-summary include-sys?]
@@ -96,6 +96,74 @@ public class Config extends HashMap<String, Object> {
      */
     public static final String STORM_NETTY_FLUSH_CHECK_INTERVAL_MS = "storm.messaging.netty.flush.check.interval.ms";
     public static final Object STORM_NETTY_FLUSH_CHECK_INTERVAL_MS_SCHEMA = Number.class;
+
+    /**
+     * The number of idle direct buffers the Netty client keeps per size class for encoding message batches.
+     * Set to 0 to allocate a new direct buffer for every batch.
+     */
+    public static final String STORM_NETTY_MESSAGE_BUFFER_POOL_SIZE = "storm.messaging.netty.transfer.buffer.pool.size";
+    public static final Object STORM_NETTY_MESSAGE_BUFFER_POOL_SIZE_SCHEMA = Number.class;
+
+    /**
+     * Messages whose payload is at least this many bytes are not copied into the batch buffer by the Netty client,
+     * the batch is sent with a gathering write instead. Set to 0 to always copy.
+     */
+    public static final String STORM_NETTY_GATHERING_THRESHOLD = "storm.messaging.netty.transfer.gathering.threshold";
+    public static final Object STORM_NETTY_GATHERING_THRESHOLD_SCHEMA = Number.class;
+
+    /**
+     * Once more than this many bytes are waiting to be sent by a Netty client, spouts in the worker stop
+     * calling nextTuple until every client is back under STORM_NETTY_TRANSFER_LOW_WATERMARK. Set to 0 to disable.
+     */
+    public static final String STORM_NETTY_TRANSFER_HIGH_WATERMARK = "storm.messaging.netty.transfer.high.watermark";
+    public static final Object STORM_NETTY_TRANSFER_HIGH_WATERMARK_SCHEMA = Number.class;
+
+    /**
+     * The number of pending bytes a throttled Netty client has to drop below before spouts resume.
+     */
+    public static final String STORM_NETTY_TRANSFER_LOW_WATERMARK = "storm.messaging.netty.transfer.low.watermark";
+    public static final Object STORM_NETTY_TRANSFER_LOW_WATERMARK_SCHEMA = Number.class;
+
+    /**
+     * The number of received batches each Netty server receive queue can hold before the Netty threads
+     * stop reading from the network. There is one queue per receiver thread. Must be a power of 2.
+     */
+    public static final String STORM_NETTY_RECEIVE_QUEUE_SIZE = "storm.messaging.netty.receive.queue.size";
+    public static final Object STORM_NETTY_RECEIVE_QUEUE_SIZE_SCHEMA = ConfigValidation.PowerOf2Validator;
+
+    /**
+     * The class of the backtype.storm.messaging.netty.ICompressionCodec used to compress message batches 
+     * sent between workers, e.g. backtype.storm.messaging.netty.DeflateCompressionCodec. Disabled when not set.
+     */
+    public static final String STORM_NETTY_COMPRESSION_CODEC = "storm.messaging.netty.compression.codec";
+    public static final Object STORM_NETTY_COMPRESSION_CODEC_SCHEMA = String.class;
+
+    /**
+     * Message batches smaller than this many bytes are sent uncompressed.
+     */
+    public static final String STORM_NETTY_COMPRESSION_THRESHOLD = "storm.messaging.netty.compression.threshold";
+    public static final Object STORM_NETTY_COMPRESSION_THRESHOLD_SCHEMA = Number.class;
+
+    /**
+     * Netty wire format clients use to send to other workers. 1 is the original format, which limits
+     * task ids to 32767. 2 uses varint task ids and lengths, and is announced when the connection
+     * is made; servers accept both, so only set it to 2 once every worker in the cluster understands it.
+     */
+    public static final String STORM_NETTY_WIRE_FORMAT_VERSION = "storm.messaging.netty.wire.format.version";
+    public static final Object STORM_NETTY_WIRE_FORMAT_VERSION_SCHEMA = Number.class;
+
+    /**
+     * The directory backtype.storm.messaging.netty.SharedMemoryContext keeps its ring files in. Workers on the
+     * same host must share it. Defaults to a "shm" directory under storm.local.dir.
+     */
+    public static final String STORM_MESSAGING_SHM_DIR = "storm.messaging.shm.dir";
+    public static final Object STORM_MESSAGING_SHM_DIR_SCHEMA = String.class;
+
+    /**
+     * The size in bytes of each shared memory ring between two workers on the same host. Must be a power of 2.
+     */
+    public static final String STORM_MESSAGING_SHM_RING_SIZE = "storm.messaging.shm.ring.size";
+    public static final Object STORM_MESSAGING_SHM_RING_SIZE_SCHEMA = ConfigValidation.PowerOf2Validator;
     
     
     /**
@@ -479,6 +547,13 @@ public class Config extends HashMap<String, Object> {
      */
     public static final String WORKER_RECEIVER_THREAD_COUNT = "topology.worker.receiver.thread.count";
     public static final Object WORKER_RECEIVER_THREAD_COUNT_SCHEMA = Number.class;
+
+    /**
+     * When true, and the transport supports it, received messages are put on the executor receive queues
+     * directly by the transport threads and no worker receiver threads are started.
+     */
+    public static final String WORKER_RECEIVER_DIRECT = "topology.worker.receiver.direct";
+    public static final Object WORKER_RECEIVER_DIRECT_SCHEMA = Boolean.class;
     
     /**
      * How often this worker should heartbeat to the supervisor.
@@ -518,6 +593,17 @@ public class Config extends HashMap<String, Object> {
     public static final String TOPOLOGY_DEBUG = "topology.debug";
     public static final Object TOPOLOGY_DEBUG_SCHEMA = Boolean.class;
 
+    /**
+     * Set on a bolt to run each of its executors in the thread of an executor of its input
+     * in the same worker, which then calls the bolt directly instead of going through the
+     * executors' queues. Only takes effect for a bolt that reads from a single component
+     * through shuffle, local or shuffle or none groupings, when each of the two components
+     * has one task per executor, and only for the executors whose counterpart (the task with
+     * the same index in the input component) runs in the same worker.
+     */
+    public static final String TOPOLOGY_FUSE_WITH_INPUT = "topology.fuse.with.input";
+    public static final Object TOPOLOGY_FUSE_WITH_INPUT_SCHEMA = Boolean.class;
+
     /**
      * The serializer for communication between shell components and non-JVM
      * processes
@@ -554,6 +640,15 @@ public class Config extends HashMap<String, Object> {
     public static final String TOPOLOGY_ACKER_EXECUTORS = "topology.acker.executors";
     public static final Object TOPOLOGY_ACKER_EXECUTORS_SCHEMA = Number.class;
 
+    /**
+     * The most root ids a bolt task coalesces into one message to an acker. Acks made while
+     * the bolt works through a batch of received tuples are xored together per root id and
+     * sent when the batch ends or this many root ids have been buffered. 1 sends every ack
+     * on its own.
+     */
+    public static final String TOPOLOGY_ACKER_BATCH_SIZE = "topology.acker.batch.size";
+    public static final Object TOPOLOGY_ACKER_BATCH_SIZE_SCHEMA = Number.class;
+
 
     /**
      * The maximum amount of time given to the topology to fully process a message
@@ -575,6 +670,30 @@ public class Config extends HashMap<String, Object> {
     public static final String TOPOLOGY_KRYO_REGISTER = "topology.kryo.register";
     public static final Object TOPOLOGY_KRYO_REGISTER_SCHEMA = ConfigValidation.KryoRegValidator;
 
+    /**
+     * The value types of a component's streams that were declared with TypedFields, as a map
+     * from stream id to a list of type names. Set by TopologyBuilder in the component configuration,
+     * and used to serialize those streams without per-value class tags.
+     */
+    public static final String TOPOLOGY_STREAM_FIELD_TYPES = "topology.stream.field.types";
+    public static final Object TOPOLOGY_STREAM_FIELD_TYPES_SCHEMA = Map.class;
+
+    /**
+     * Whether received tuples decode their values only when they are first accessed. Tuples
+     * re-emitted with the same values are then sent without serializing them again. Lazy tuples
+     * hold on to the buffer they were received in for as long as they are alive.
+     */
+    public static final String TOPOLOGY_TUPLE_LAZY_DESERIALIZATION = "topology.tuple.lazy.deserialization";
+    public static final Object TOPOLOGY_TUPLE_LAZY_DESERIALIZATION_SCHEMA = Boolean.class;
+
+    /**
+     * Whether shuffle groupings send more tuples to the target tasks that are keeping up. Load
+     * is the fill of a task's receive queue for tasks in the same worker, and the backlog of the
+     * connection to its worker otherwise. Tasks in the same worker are preferred.
+     */
+    public static final String TOPOLOGY_SHUFFLE_LOAD_AWARE = "topology.shuffle.load.aware";
+    public static final Object TOPOLOGY_SHUFFLE_LOAD_AWARE_SCHEMA = Boolean.class;
+
     /**
      * A list of classes that customize storm's kryo instance during start-up.
      * Each listed class name must implement IKryoDecorator. During start-up the 
@@ -717,6 +836,15 @@ public class Config extends HashMap<String, Object> {
     public static final String TOPOLOGY_EXECUTOR_SEND_BUFFER_SIZE="topology.executor.send.buffer.size";
     public static final Object TOPOLOGY_EXECUTOR_SEND_BUFFER_SIZE_SCHEMA = ConfigValidation.PowerOf2Validator;
 
+    /**
+     * The most tuples a bolt executor buffers before publishing them to its send queue in one
+     * claim. Tuples emitted while the executor works through a batch of received tuples are
+     * published when the batch ends or this many have been buffered. 1 publishes every tuple
+     * on its own.
+     */
+    public static final String TOPOLOGY_EXECUTOR_SEND_BATCH_SIZE="topology.executor.send.batch.size";
+    public static final Object TOPOLOGY_EXECUTOR_SEND_BATCH_SIZE_SCHEMA = Number.class;
+
     /**
      * The size of the Disruptor transfer queue for each worker.
      */
@@ -733,11 +861,21 @@ public class Config extends HashMap<String, Object> {
 
    /**
     * Configure the wait strategy used for internal queuing. Can be used to tradeoff latency
-    * vs. throughput
+    * vs. throughput. backtype.storm.utils.AdaptiveWaitStrategy adjusts to the load of each
+    * queue, and adds how its waits end to the queue metrics.
     */
     public static final String TOPOLOGY_DISRUPTOR_WAIT_STRATEGY="topology.disruptor.wait.strategy";
     public static final Object TOPOLOGY_DISRUPTOR_WAIT_STRATEGY_SCHEMA = String.class;
 
+   /**
+    * The queue implementation used for executor and worker queues. "disruptor" uses
+    * backtype.storm.utils.DisruptorQueue. "array" uses backtype.storm.utils.ArrayRingQueue,
+    * which ignores topology.disruptor.wait.strategy. Its queues are all created for several
+    * producers, as even executor send queues get emits from threads started by bolts.
+    */
+    public static final String TOPOLOGY_QUEUE_TYPE="topology.queue.type";
+    public static final Object TOPOLOGY_QUEUE_TYPE_SCHEMA = String.class;
+
    /**
     * The size of the shared thread pool for worker tasks to make use of. The thread pool can be accessed 
     * via the TopologyContext.
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.daemon;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coalesces the ack vals a bolt task sends to the ackers. Acks are buffered per acker task,
+ * with the vals for the same root id xored together, and each buffer goes out as a single
+ * tuple on AckerBolt.ACKER_ACK_BATCH_STREAM_ID when it is flushed or fills up.
+ *
+ * Only acks made on the thread that called begin() are buffered, until the next flush().
+ * add() returns false for any other ack, which the caller then sends on its own.
+ */
+public class AckCoalescer {
+    public interface Sender {
+        /**
+         * @param ids root ids, owned by the callee
+         * @param vals the ack val for each root id, owned by the callee
+         */
+        void send(int ackerTask, long[] ids, long[] vals);
+    }
+
+    private final int[] _ackerTasks;
+    private final Buffer[] _buffers;
+    private final Sender _sender;
+    private Thread _owner = null;
+
+    /**
+     * @param ackerTasks the acker tasks, in the order the fields grouping of the ack
+     *        stream picks them from
+     * @param batchSize max number of root ids in one batch
+     */
+    public AckCoalescer(List<Integer> ackerTasks, int batchSize, Sender sender) {
+        _ackerTasks = new int[ackerTasks.size()];
+        _buffers = new Buffer[_ackerTasks.length];
+        for(int i=0; i<_ackerTasks.length; i++) {
+            _ackerTasks[i] = ackerTasks.get(i);
+            _buffers[i] = new Buffer(batchSize);
+        }
+        _sender = sender;
+    }
+
+    /**
+     * Starts buffering acks made on the calling thread.
+     */
+    public void begin() {
+        _owner = Thread.currentThread();
+    }
+
+    /**
+     * @return false if the ack was not buffered and should be sent right away
+     */
+    public boolean add(long rootId, long val) {
+        if(_owner != Thread.currentThread()) {
+            return false;
+        }
+        int acker = ackerIndex(rootId);
+        Buffer buffer = _buffers[acker];
+        buffer.add(rootId, val);
+        if(buffer.isFull()) {
+            flush(acker);
+        }
+        return true;
+    }
+
+    /**
+     * Sends all buffered acks and stops buffering until the next begin().
+     */
+    public void flush() {
+        for(int i=0; i<_buffers.length; i++) {
+            flush(i);
+        }
+        _owner = null;
+    }
+
+    private void flush(int acker) {
+        Buffer buffer = _buffers[acker];
+        if(buffer.size > 0) {
+            buffer.drainTo(_ackerTasks[acker], _sender);
+        }
+    }
+
+    /**
+     * The index of the acker task the fields grouping on the root id sends to, which is
+     * the hash of the single element list [rootId].
+     */
+    private int ackerIndex(long rootId) {
+        int hash = 31 + (int) (rootId ^ (rootId >>> 32));
+        int index = hash % _ackerTasks.length;
+        return index < 0 ? index + _ackerTasks.length : index;
+    }
+
+    /**
+     * Root ids and vals in insertion order, with an open-addressing index from root id to
+     * position so that repeated root ids are xored in place.
+     */
+    private static final class Buffer {
+        final long[] ids;
+        final long[] vals;
+        final int[] index;
+        final int mask;
+        int size = 0;
+
+        Buffer(int capacity) {
+            ids = new long[capacity];
+            vals = new long[capacity];
+            index = new int[Integer.highestOneBit(capacity * 4 - 1)];
+            mask = index.length - 1;
+        }
+
+        void add(long id, long val) {
+            int i = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while(index[i] != 0) {
+                int pos = index[i] - 1;
+                if(ids[pos] == id) {
+                    vals[pos] ^= val;
+                    return;
+                }
+                i = (i+1) & mask;
+            }
+            ids[size] = id;
+            vals[size] = val;
+            index[i] = ++size;
+        }
+
+        boolean isFull() {
+            return size == ids.length;
+        }
+
+        /**
+         * Sends the root ids whose vals did not cancel out, which would not change
+         * anything at the acker.
+         */
+        void drainTo(int ackerTask, Sender sender) {
+            int n = 0;
+            for(int i=0; i<size; i++) {
+                if(vals[i] != 0) {
+                    n++;
+                }
+            }
+            if(n > 0) {
+                long[] outIds = new long[n];
+                long[] outVals = new long[n];
+                int j = 0;
+                for(int i=0; i<size; i++) {
+                    if(vals[i] != 0) {
+                        outIds[j] = ids[i];
+                        outVals[j] = vals[i];
+                        j++;
+                    }
+                }
+                sender.send(ackerTask, outIds, outVals);
+            }
+            Arrays.fill(index, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.daemon;
+
+import backtype.storm.Constants;
+import backtype.storm.task.IBolt;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.RotatingAckTable;
+import java.util.Map;
+
+/**
+ * Tracks tuple trees by xoring the ids of their edges into an ack val per root id. Once
+ * the spout task has registered a tree (on the init stream) and its ack val is back to 0,
+ * the spout task is told the tree completed; if any tuple in the tree failed, it is told
+ * the tree failed. Pending trees are dropped after two rotations, one per tick tuple.
+ *
+ * Bolts that coalesce their acks (see AckCoalescer) send the ack vals for many root ids
+ * in one tuple on the batch stream.
+ */
+public class AckerBolt implements IBolt {
+    public static final String ACKER_COMPONENT_ID = "__acker";
+    public static final String ACKER_INIT_STREAM_ID = "__ack_init";
+    public static final String ACKER_ACK_STREAM_ID = "__ack_ack";
+    public static final String ACKER_FAIL_STREAM_ID = "__ack_fail";
+    public static final String ACKER_ACK_BATCH_STREAM_ID = "__ack_ack_batch";
+
+    private OutputCollector _collector;
+    private RotatingAckTable _pending;
+
+    public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+        _collector = collector;
+        _pending = new RotatingAckTable();
+    }
+
+    public void execute(Tuple input) {
+        String streamId = input.getSourceStreamId();
+        if(Constants.SYSTEM_TICK_STREAM_ID.equals(streamId)) {
+            _pending.rotate();
+            return;
+        }
+
+        if(ACKER_ACK_BATCH_STREAM_ID.equals(streamId)) {
+            long[] ids = (long[]) input.getValue(0);
+            long[] vals = (long[]) input.getValue(1);
+            for(int i=0; i<ids.length; i++) {
+                int slot = _pending.touch(ids[i]);
+                _pending.xor(slot, vals[i]);
+                complete(ids[i], slot);
+            }
+            _collector.ack(input);
+            return;
+        }
+
+        boolean init = ACKER_INIT_STREAM_ID.equals(streamId);
+        boolean fail = ACKER_FAIL_STREAM_ID.equals(streamId);
+        if(!init && !fail && !ACKER_ACK_STREAM_ID.equals(streamId)) {
+            throw new IllegalArgumentException("Unexpected stream " + streamId + " in acker");
+        }
+
+        Object id = input.getValue(0);
+        int slot = _pending.touch((Long) id);
+        if(fail) {
+            _pending.setFailed(slot);
+        } else {
+            _pending.xor(slot, (Long) input.getValue(1));
+            if(init) {
+                _pending.setSpoutTask(slot, ((Number) input.getValue(2)).intValue());
+            }
+        }
+        complete(id, slot);
+        _collector.ack(input);
+    }
+
+    /**
+     * Tells the spout task about the tree at slot, and forgets it, if it is done.
+     */
+    private void complete(Object id, int slot) {
+        if(_pending.hasSpoutTask(slot)) {
+            int task = _pending.getSpoutTask(slot);
+            if(_pending.getVal(slot)==0) {
+                _pending.remove(slot);
+                _collector.emitDirect(task, ACKER_ACK_STREAM_ID, new Values(id));
+            } else if(_pending.isFailed(slot)) {
+                _pending.remove(slot);
+                _collector.emitDirect(task, ACKER_FAIL_STREAM_ID, new Values(id));
+            }
+        }
+    }
+
+    public void cleanup() {
+    }
+}
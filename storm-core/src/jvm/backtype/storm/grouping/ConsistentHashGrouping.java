@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.grouping;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.task.WorkerTopologyContext;
+import backtype.storm.tuple.Fields;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups tuples by the values of some fields, like a fields grouping, but picks the
+ * target task with jump consistent hashing (Lamping and Veach, "A Fast, Minimal Memory,
+ * Consistent Hash Algorithm") over the sorted target tasks instead of hash mod the number
+ * of tasks. When a topology is redeployed with N tasks instead of N-1, only about 1/N of
+ * the keys move to another task, so caches and aggregates partitioned by task stay warm.
+ */
+public class ConsistentHashGrouping implements CustomStreamGrouping {
+    private Fields _fields;
+    private int[] _indices;
+    private List<List<Integer>> _choices;
+
+    public ConsistentHashGrouping(Fields fields) {
+        _fields = fields;
+    }
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
+        Fields outFields = context.getComponentOutputFields(stream);
+        _indices = outFields.selectorIndices(_fields);
+        List<Integer> sorted = new ArrayList<Integer>(targetTasks);
+        Collections.sort(sorted);
+        _choices = new ArrayList<List<Integer>>(sorted.size());
+        for(Integer task: sorted) {
+            _choices.add(Arrays.asList(task));
+        }
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+        int hash = Fields.selectHashCode(_indices, values);
+        return _choices.get(jumpHash(mix(hash), _choices.size()));
+    }
+
+    /**
+     * Spread a 32 bit hash code over 64 bits (the murmur3 finalizer), since jump hashing
+     * needs well distributed keys and hashCode often isn't.
+     */
+    static long mix(int hash) {
+        long k = hash;
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * @return the bucket in [0, buckets) for key
+     */
+    public static int jumpHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while(j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
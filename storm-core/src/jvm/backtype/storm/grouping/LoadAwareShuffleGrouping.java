@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.grouping;
+
+import backtype.storm.utils.Time;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses shuffle grouping targets in proportion to how idle they are. The load of every
+ * target is sampled at most once per refresh interval, and turned into a shuffled array
+ * of choices in which each task appears between 1 and MAX_WEIGHT times (twice as often
+ * for tasks in the same worker). Tasks then come out of that array in turn until the next
+ * refresh, so choosing a task stays as cheap as a plain shuffle.
+ *
+ * Not thread safe, like the other groupers of an executor.
+ */
+public class LoadAwareShuffleGrouping {
+    /**
+     * Load of a target task, from 0 (idle) to 1 (can't take any more).
+     */
+    public interface ILoad {
+        double get(int task);
+    }
+
+    public static final long DEFAULT_REFRESH_MS = 1000;
+    static final int MAX_WEIGHT = 100;
+    static final int LOCAL_BIAS = 2;
+
+    private final int[] _tasks;
+    private final boolean[] _local;
+    private final ILoad _load;
+    private final long _refreshMs;
+    private final Random _rand = new Random();
+    private int[] _choices;
+    private int _next = 0;
+    private long _nextRefresh = 0;
+
+    public LoadAwareShuffleGrouping(List<Integer> targetTasks, Collection<Integer> localTasks, ILoad load) {
+        this(targetTasks, localTasks, load, DEFAULT_REFRESH_MS);
+    }
+
+    public LoadAwareShuffleGrouping(List<Integer> targetTasks, Collection<Integer> localTasks, ILoad load, long refreshMs) {
+        _tasks = new int[targetTasks.size()];
+        _local = new boolean[_tasks.length];
+        for(int i=0; i<_tasks.length; i++) {
+            _tasks[i] = targetTasks.get(i);
+            _local[i] = localTasks.contains(targetTasks.get(i));
+        }
+        _load = load;
+        _refreshMs = refreshMs;
+    }
+
+    public int chooseTask() {
+        long now = Time.currentTimeMillis();
+        if(now >= _nextRefresh) {
+            refresh();
+            _nextRefresh = now + _refreshMs;
+        }
+        if(_next >= _choices.length) {
+            _next = 0;
+        }
+        return _choices[_next++];
+    }
+
+    private void refresh() {
+        int[] weights = new int[_tasks.length];
+        int total = 0;
+        for(int i=0; i<_tasks.length; i++) {
+            double load = Math.min(1.0, Math.max(0.0, _load.get(_tasks[i])));
+            weights[i] = Math.max(1, (int) Math.round(MAX_WEIGHT * (1.0 - load)));
+            if(_local[i]) {
+                weights[i] *= LOCAL_BIAS;
+            }
+            total += weights[i];
+        }
+
+        int[] choices = new int[total];
+        int pos = 0;
+        for(int i=0; i<_tasks.length; i++) {
+            for(int j=0; j<weights[i]; j++) {
+                choices[pos++] = _tasks[i];
+            }
+        }
+        for(int i=choices.length - 1; i>0; i--) {
+            int j = _rand.nextInt(i + 1);
+            int tmp = choices[i];
+            choices[i] = choices[j];
+            choices[j] = tmp;
+        }
+        _choices = choices;
+        _next = 0;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging;
+
+/**
+ * Implemented by connections that can tell when the remote side is not keeping up,
+ * so that the worker can stop spouts from emitting more tuples.
+ */
+public interface IThrottledConnection {
+    /**
+     * @return true once the bytes waiting to be sent exceed the high watermark, 
+     * until they drop below the low watermark again
+     */
+    public boolean isThrottled();
+
+    /**
+     * @return the bytes waiting to be sent as a fraction of the high watermark, at most 1,
+     * or 0 if throttling is disabled
+     */
+    public double getLoad();
+}
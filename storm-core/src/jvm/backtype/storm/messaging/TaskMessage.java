@@ -19,27 +19,64 @@ package backtype.storm.messaging;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A payload addressed to a task. The payload may either own its byte[] or
+ * be a read-only view (offset/length) into a larger buffer, which lets the
+ * transport hand received bytes to the deserializer without copying them.
+ */
 public class TaskMessage {
     private int _task;
     private byte[] _message;
+    private int _offset;
+    private int _length;
     
     public TaskMessage(int task, byte[] message) {
+        this(task, message, 0, message == null ? 0 : message.length);
+    }
+
+    public TaskMessage(int task, byte[] buffer, int offset, int length) {
         _task = task;
-        _message = message;
+        _message = buffer;
+        _offset = offset;
+        _length = length;
     }
     
     public int task() {
         return _task;
     }
 
+    /**
+     * the payload as an exact-size array. This copies if the message is a
+     * view into a larger buffer, so hot paths should use array()/offset()/length().
+     */
     public byte[] message() {
+        if (_message == null || (_offset == 0 && _length == _message.length)) {
+            return _message;
+        }
+        byte[] ret = new byte[_length];
+        System.arraycopy(_message, _offset, ret, 0, _length);
+        return ret;
+    }
+
+    /**
+     * the backing array of the payload, which may hold more than this message
+     */
+    public byte[] array() {
         return _message;
     }
+
+    public int offset() {
+        return _offset;
+    }
+
+    public int length() {
+        return _length;
+    }
     
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(_message.length+2);
+        ByteBuffer bb = ByteBuffer.allocate(_length+2);
         bb.putShort((short)_task);
-        bb.put(_message);
+        bb.put(_message, _offset, _length);
         return bb;
     }
     
@@ -48,6 +85,8 @@ public class TaskMessage {
         _task = packet.getShort();
         _message = new byte[packet.limit()-2];
         packet.get(_message);
+        _offset = 0;
+        _length = _message.length;
     }
 
 }
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.Config;
+import backtype.storm.utils.Utils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the configured compression codec to message batches, and keeps count of
+ * how well it is doing.
+ * 
+ * A compressed batch is sent as a COMPRESSED_BATCH control code followed by:
+ *  uncompressed length ... int(4)
+ *  compressed length ... int(4)
+ *  compressed bytes ... byte[]
+ * or, in WireFormat.V2, as COMPRESSED_BATCH_TAG followed by the two lengths as varints,
+ * where the uncompressed bytes are the regular encoding of the batch. Batches are
+ * self-describing, so small or incompressible ones are simply sent uncompressed.
+ */
+class BatchCompressor {
+    private static final int HEADER_LENGTH = 10;
+
+    private final ICompressionCodec codec;
+    private final int threshold;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong compressedBatches = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    BatchCompressor(ICompressionCodec codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return null if compression is disabled in storm_conf
+     */
+    @SuppressWarnings("rawtypes")
+    static BatchCompressor create(Map storm_conf) {
+        String codec = (String) storm_conf.get(Config.STORM_NETTY_COMPRESSION_CODEC);
+        if (codec == null) {
+            return null;
+        }
+        int threshold = Utils.getInt(storm_conf.get(Config.STORM_NETTY_COMPRESSION_THRESHOLD), 4096);
+        return new BatchCompressor((ICompressionCodec) Utils.newInstance(codec), threshold);
+    }
+
+    /**
+     * @return the encoding of batch, compressed if it is large enough and compresses well
+     */
+    ChannelBuffer encode(MessageBatch batch) throws Exception {
+        if (batch.encodedLength() < threshold) {
+            return batch.buffer();
+        }
+        batches.incrementAndGet();
+
+        ChannelBuffer raw = batch.heapBuffer();
+        int length = raw.readableBytes();
+        long start = System.nanoTime();
+        byte[] compressed = codec.compress(raw.array(), raw.arrayOffset() + raw.readerIndex(), length);
+        compressNanos.addAndGet(System.nanoTime() - start);
+        int header_length = batch.wireFormat() == WireFormat.V2
+            ? 1 + WireFormat.varIntLength(length) + WireFormat.varIntLength(compressed.length)
+            : HEADER_LENGTH;
+        if (compressed.length + header_length >= length) {
+            rawBytes.addAndGet(length);
+            compressedBytes.addAndGet(length);
+            return raw;
+        }
+        compressedBatches.incrementAndGet();
+        rawBytes.addAndGet(length);
+        compressedBytes.addAndGet(compressed.length + header_length);
+
+        ChannelBuffer header = ChannelBuffers.buffer(header_length);
+        if (batch.wireFormat() == WireFormat.V2) {
+            WireFormat.writeVarInt(header, WireFormat.COMPRESSED_BATCH_TAG);
+            WireFormat.writeVarInt(header, length);
+            WireFormat.writeVarInt(header, compressed.length);
+        } else {
+            ControlMessage.COMPRESSED_BATCH.write(header);
+            header.writeInt(length);
+            header.writeInt(compressed.length);
+        }
+        return ChannelBuffers.wrappedBuffer(header, ChannelBuffers.wrappedBuffer(compressed));
+    }
+
+    /**
+     * @return the regular encoding of a batch received in compressed form
+     */
+    byte[] decode(byte[] data, int offset, int length, int uncompressedLength) {
+        long start = System.nanoTime();
+        byte[] raw = codec.decompress(data, offset, length, uncompressedLength);
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        return raw;
+    }
+
+    /**
+     * @return counts since the last call. ratio is compressed over raw bytes for the 
+     * batches that were large enough to try compressing.
+     */
+    Map<String, Object> getState() {
+        long raw = rawBytes.getAndSet(0);
+        long compressed = compressedBytes.getAndSet(0);
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put("batches", batches.getAndSet(0));
+        state.put("compressed_batches", compressedBatches.getAndSet(0));
+        state.put("raw_bytes", raw);
+        state.put("compressed_bytes", compressed);
+        state.put("ratio", raw == 0 ? 1.0 : (double) compressed / raw);
+        state.put("compress_ms", compressNanos.getAndSet(0) / 1000000.0);
+        state.put("decompress_ms", decompressNanos.getAndSet(0) / 1000000.0);
+        return state;
+    }
+}
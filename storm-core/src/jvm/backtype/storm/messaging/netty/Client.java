@@ -19,6 +19,7 @@ package backtype.storm.messaging.netty;
 
 import backtype.storm.Config;
 import backtype.storm.messaging.IConnection;
+import backtype.storm.messaging.IThrottledConnection;
 import backtype.storm.messaging.TaskMessage;
 import backtype.storm.utils.Utils;
 import org.jboss.netty.bootstrap.ClientBootstrap;
@@ -34,12 +35,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-public class Client implements IConnection {
+public class Client implements IConnection, IThrottledConnection {
     private static final Logger LOG = LoggerFactory.getLogger(Client.class);
     private static final String PREFIX = "Netty-Client-";
     private final int max_retries;
@@ -52,22 +55,41 @@ public class Client implements IConnection {
     private final Random random = new Random();
     private final ChannelFactory factory;
     private final int buffer_size;
-    private boolean closing;
+    private volatile boolean closing;
 
     private int messageBatchSize;
     
     private AtomicLong pendings;
-
+    // payload bytes accepted by send() and not yet written out
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+    private final long highWatermark;
+    private final long lowWatermark;
+    private volatile boolean throttled;
+
+    private final ConcurrentLinkedQueue<TaskMessage> outbound = new ConcurrentLinkedQueue<TaskMessage>();
+    private final AtomicReference<Thread> drainer = new AtomicReference<Thread>(null);
+    // the thread in close() waiting for the drainer role, which it keeps once it has it
+    private volatile Thread closer;
+    // set once close() holds the drainer role, after which nothing else is written
+    private volatile boolean closed;
+    // only touched by the drainer thread
     MessageBatch messageBatch = null;
     private AtomicLong flushCheckTimer;
     private int flushCheckInterval;
     private ScheduledExecutorService scheduler;
+    private DirectBufferPool bufferPool;
+    private int gatherThreshold;
+    private int wireFormat;
+    private BatchCompressor compressor;
 
     @SuppressWarnings("rawtypes")
     Client(Map storm_conf, ChannelFactory factory, 
-            ScheduledExecutorService scheduler, String host, int port) {
+            ScheduledExecutorService scheduler, DirectBufferPool bufferPool, BatchCompressor compressor,
+            String host, int port) {
         this.factory = factory;
         this.scheduler = scheduler;
+        this.bufferPool = bufferPool;
+        this.compressor = compressor;
         channelRef = new AtomicReference<Channel>(null);
         closing = false;
         pendings = new AtomicLong(0);
@@ -82,6 +104,13 @@ public class Client implements IConnection {
         this.messageBatchSize = Utils.getInt(storm_conf.get(Config.STORM_NETTY_MESSAGE_BATCH_SIZE), 262144);
         
         flushCheckInterval = Utils.getInt(storm_conf.get(Config.STORM_NETTY_FLUSH_CHECK_INTERVAL_MS), 10); // default 10 ms
+        gatherThreshold = Utils.getInt(storm_conf.get(Config.STORM_NETTY_GATHERING_THRESHOLD), 0);
+        wireFormat = Utils.getInt(storm_conf.get(Config.STORM_NETTY_WIRE_FORMAT_VERSION), WireFormat.V1);
+        if (wireFormat != WireFormat.V1 && wireFormat != WireFormat.V2) {
+            throw new IllegalArgumentException("Unsupported netty wire format version " + wireFormat);
+        }
+        highWatermark = Utils.getInt(storm_conf.get(Config.STORM_NETTY_TRANSFER_HIGH_WATERMARK), 0);
+        lowWatermark = Math.min(highWatermark, Utils.getInt(storm_conf.get(Config.STORM_NETTY_TRANSFER_LOW_WATERMARK), 0));
 
         LOG.info("New Netty Client, connect to " + host + ", " + port
                 + ", config: " + ", buffer_size: " + buffer_size);
@@ -115,7 +144,7 @@ public class Client implements IConnection {
                     if (now > flushCheckTime) {
                         Channel channel = channelRef.get();
                         if (null != channel && channel.isWritable()) {
-                            flush(channel);
+                            drain(true);
                         }
                     }
                 }
@@ -128,18 +157,30 @@ public class Client implements IConnection {
     }
 
     /**
-     * We will retry connection with exponential back-off policy
+     * We will retry connection with exponential back-off policy. Closes the client if the
+     * remote can't be reached; this happens outside of the lock, so that a drainer waiting
+     * to connect can hand its messages over to close().
      */
-    private synchronized void connect() {
+    private void connect() {
+        if (!establish()) {
+            close();
+            throw new RuntimeException("Remote address is not reachable. We will close this client " + name());
+        }
+    }
+
+    /**
+     * @return false if the remote could not be reached
+     */
+    private synchronized boolean establish() {
         try {
-            if (channelRef.get() != null) {
-                return;
+            if (channelRef.get() != null || closing) {
+                return true;
             }
             
             Channel channel = null;
 
             int tried = 0;
-            while (tried <= max_retries) {
+            while (tried <= max_retries && !closing) {
 
                 LOG.info("Reconnect started for {}... [{}]", name(), tried);
                 LOG.debug("connection started...");
@@ -160,11 +201,14 @@ public class Client implements IConnection {
             }
             if (null != channel) {
                 LOG.info("connection established to a remote host " + name() + ", " + channel.toString());
+                if (wireFormat == WireFormat.V2) {
+                    // announced in the original format, ahead of any batch on this channel
+                    channel.write(ControlMessage.WIRE_FORMAT_V2);
+                }
                 channelRef.set(channel);
-            } else {
-                close();
-                throw new RuntimeException("Remote address is not reachable. We will close this client " + name());
+                return true;
             }
+            return closing;
         } catch (InterruptedException e) {
             throw new RuntimeException("connection failed " + name(), e);
         }
@@ -186,8 +230,12 @@ public class Client implements IConnection {
 
     /**
      * Enqueue task messages to be sent to server
+     *
+     * Any number of threads may call send concurrently. Messages are queued and then
+     * batched by whichever thread wins the drainer role, so messages from one caller
+     * keep their order on the wire.
      */
-    synchronized public void send(Iterator<TaskMessage> msgs) {
+    public void send(Iterator<TaskMessage> msgs) {
 
         // throw exception if the client is being closed
         if (closing) {
@@ -198,16 +246,75 @@ public class Client implements IConnection {
             return;
         }
 
+        long bytes = 0;
+        while (msgs.hasNext()) {
+            TaskMessage message = msgs.next();
+            if (message.array() != null) {
+                bytes += message.length();
+            }
+            outbound.offer(message);
+        }
+        pendingBytes.addAndGet(bytes);
+
+        drain(false);
+        if (closed) {
+            // close() began after the check above, and nothing sends these any more
+            dropClosed();
+        }
+    }
+
+    /**
+     * Move queued messages into batches and write them out, unless another thread is
+     * already doing so. A thread that loses the race leaves its messages to the current
+     * drainer, which checks the queue again after giving up the role.
+     * 
+     * @return false if another thread is draining
+     */
+    private boolean drain(boolean force) {
+        boolean drained = false;
+        do {
+            if (!drainer.compareAndSet(null, Thread.currentThread())) {
+                return drained;
+            }
+            try {
+                drainOnce(force);
+            } finally {
+                drainer.set(null);
+                Thread waiting = closer;
+                if (waiting != null) {
+                    LockSupport.unpark(waiting);
+                }
+            }
+            drained = true;
+            force = false;
+        } while (!outbound.isEmpty());
+        return true;
+    }
+
+    /**
+     * must only be called by the drainer thread
+     * @param force flush a partial batch even if the channel is not writable
+     */
+    private void drainOnce(boolean force) {
         Channel channel = channelRef.get();
         if (null == channel) {
+            if (closing) {
+                dropPending();
+                return;
+            }
             connect();
             channel = channelRef.get();
+            if (null == channel) {
+                // closed while this thread was waiting to connect
+                dropPending();
+                return;
+            }
         }
 
-        while (msgs.hasNext()) {
-            TaskMessage message = msgs.next();
+        TaskMessage message;
+        while (null != (message = outbound.poll())) {
             if (null == messageBatch) {
-                messageBatch = new MessageBatch(messageBatchSize);
+                messageBatch = new MessageBatch(messageBatchSize, bufferPool, gatherThreshold, wireFormat);
             }
 
             messageBatch.add(message);
@@ -219,7 +326,7 @@ public class Client implements IConnection {
         }
 
         if (null != messageBatch && !messageBatch.isEmpty()) {
-            if (channel.isWritable()) {
+            if (force || channel.isWritable()) {
                 flushCheckTimer.set(Long.MAX_VALUE);
                 
                 // Flush as fast as we can to reduce the latency
@@ -236,6 +343,63 @@ public class Client implements IConnection {
 
     }
 
+    /**
+     * Drops the queued messages of a client that is closing without a channel to send them
+     * on. must only be called by the drainer thread
+     */
+    private void dropPending() {
+        long count = 0;
+        long bytes = 0;
+        TaskMessage message;
+        while (null != (message = outbound.poll())) {
+            count++;
+            if (message.array() != null) {
+                bytes += message.length();
+            }
+        }
+        if (null != messageBatch) {
+            count += messageBatch.size();
+            bytes += messageBatch.payloadLength();
+            messageBatch.release();
+            messageBatch = null;
+        }
+        if (count > 0) {
+            pendingBytes.addAndGet(-bytes);
+            LOG.warn("Dropping {} message(s) of {} bytes queued for {}, which is closing without a connection",
+                    new Object[] {count, bytes, name()});
+        }
+    }
+
+    /**
+     * The watermarks are applied when the state is read, so concurrent senders and
+     * write completions can never leave the client stuck in the throttled state.
+     */
+    @Override
+    public boolean isThrottled() {
+        if (highWatermark <= 0) {
+            return false;
+        }
+        long pending = pendingBytes.get();
+        if (pending > highWatermark) {
+            throttled = true;
+        } else if (pending < lowWatermark) {
+            throttled = false;
+        }
+        return throttled;
+    }
+
+    @Override
+    public double getLoad() {
+        if (highWatermark <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, (double) pendingBytes.get() / highWatermark);
+    }
+
+    BatchCompressor compressor() {
+        return compressor;
+    }
+
     public String name() {
         if (null != remote_addr) {
             return PREFIX + remote_addr.toString();
@@ -243,58 +407,81 @@ public class Client implements IConnection {
         return "";
     }
 
-    private synchronized void flush(Channel channel) {
-        if (!closing) {
-            if (null != messageBatch && !messageBatch.isEmpty()) {
-                MessageBatch toBeFlushed = messageBatch;
-                flushCheckTimer.set(Long.MAX_VALUE);
-                flushRequest(channel, toBeFlushed);
-                messageBatch = null;
+    /**
+     * Drops messages queued after close() took over the drainer role for good. They may be
+     * polled by that drainer at the same time, so each of them is either sent or counted here.
+     */
+    private void dropClosed() {
+        long count = 0;
+        long bytes = 0;
+        TaskMessage message;
+        while (null != (message = outbound.poll())) {
+            count++;
+            if (message.array() != null) {
+                bytes += message.length();
             }
         }
+        if (count > 0) {
+            pendingBytes.addAndGet(-bytes);
+            LOG.warn("Dropping {} message(s) of {} bytes sent to {} while it was closing",
+                    new Object[] {count, bytes, name()});
+        }
     }
-    
+
     /**
      * gracefully close this client.
      * 
      * We will send all existing requests, and then invoke close_n_release()
      * method
      */
-    public synchronized void close() {
-        if (!closing) {
+    public void close() {
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
             closing = true;
-            LOG.info("Closing Netty Client " + name());
-            
-            if (null != messageBatch && !messageBatch.isEmpty()) {
-                MessageBatch toBeFlushed = messageBatch;
-                Channel channel = channelRef.get();
-                if (channel != null) {
-                    flushRequest(channel, toBeFlushed);
-                }
-                messageBatch = null;
+        }
+        LOG.info("Closing Netty Client " + name());
+        
+        // take over from any in-flight drainer, unless it is this thread (a failed reconnect).
+        // The role is kept, so that nothing is written after the pending batches are counted
+        Thread current = Thread.currentThread();
+        if (drainer.get() == current) {
+            dropPending();
+        } else {
+            closer = current;
+            while (!drainer.compareAndSet(null, current)) {
+                // woken when the role is given up, which may take a while if the drainer
+                // is waiting to connect
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
             }
+            closer = null;
+            closed = true;
+            do {
+                drainOnce(true);
+            } while (!outbound.isEmpty());
+        }
+    
+        //wait for pendings to exit
+        final long timeoutMilliSeconds = 600 * 1000; //600 seconds
+        final long start = System.currentTimeMillis();
         
-            //wait for pendings to exit
-            final long timeoutMilliSeconds = 600 * 1000; //600 seconds
-            final long start = System.currentTimeMillis();
-            
-            LOG.info("Waiting for pending batchs to be sent with "+ name() + "..., timeout: {}ms, pendings: {}", timeoutMilliSeconds, pendings.get());
-            
-            while(pendings.get() != 0) {
-                try {
-                    long delta = System.currentTimeMillis() - start;
-                    if (delta > timeoutMilliSeconds) {
-                        LOG.error("Timeout when sending pending batchs with {}..., there are still {} pending batchs not sent", name(), pendings.get());
-                        break;
-                    }
-                    Thread.sleep(1000); //sleep 1s
-                } catch (InterruptedException e) {
+        LOG.info("Waiting for pending batchs to be sent with "+ name() + "..., timeout: {}ms, pendings: {}", timeoutMilliSeconds, pendings.get());
+        
+        while(pendings.get() != 0) {
+            try {
+                long delta = System.currentTimeMillis() - start;
+                if (delta > timeoutMilliSeconds) {
+                    LOG.error("Timeout when sending pending batchs with {}..., there are still {} pending batchs not sent", name(), pendings.get());
                     break;
-                } 
-            }
-            
-            close_n_release();
+                }
+                Thread.sleep(1000); //sleep 1s
+            } catch (InterruptedException e) {
+                break;
+            } 
         }
+        
+        close_n_release();
     }
 
     /**
@@ -331,6 +518,8 @@ public class Client implements IConnection {
                     throws Exception {
 
                 pendings.decrementAndGet();
+                pendingBytes.addAndGet(-requests.payloadLength());
+                requests.release();
                 if (!future.isSuccess()) {
                     LOG.info(
                             "failed to send requests to " + remote_addr.toString() + ": ", future.getCause());
@@ -24,15 +24,17 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
 
 import backtype.storm.Config;
 import backtype.storm.messaging.IConnection;
 import backtype.storm.messaging.IContext;
+import backtype.storm.metric.api.IStatefulObject;
 import backtype.storm.utils.Utils;
 
-public class Context implements IContext {
+public class Context implements IContext, IStatefulObject {
     private static final Logger LOG = LoggerFactory.getLogger(Context.class);
         
     @SuppressWarnings("rawtypes")
@@ -41,6 +43,8 @@ public class Context implements IContext {
     private NioClientSocketChannelFactory clientChannelFactory;
     
     private ScheduledExecutorService clientScheduleService;
+    private DirectBufferPool bufferPool;
+    private BatchCompressor compressor;
     private final int MAX_CLIENT_SCHEDULER_THREAD_POOL_SIZE = 10;
 
     /**
@@ -66,13 +70,19 @@ public class Context implements IContext {
         int otherWorkers = Utils.getInt(storm_conf.get(Config.TOPOLOGY_WORKERS), 1) - 1;
         int poolSize = Math.min(Math.max(1, otherWorkers), MAX_CLIENT_SCHEDULER_THREAD_POOL_SIZE);
         clientScheduleService = Executors.newScheduledThreadPool(poolSize, new NettyRenameThreadFactory("client-schedule-service"));
+
+        //one pool is shared by all clients, a full batch may overshoot the batch size by one message
+        int batchSize = Utils.getInt(storm_conf.get(Config.STORM_NETTY_MESSAGE_BATCH_SIZE), 262144);
+        int buffersPerClass = Utils.getInt(storm_conf.get(Config.STORM_NETTY_MESSAGE_BUFFER_POOL_SIZE), 8);
+        bufferPool = new DirectBufferPool(2 * batchSize, buffersPerClass);
+        compressor = BatchCompressor.create(storm_conf);
     }
 
     /**
      * establish a server with a binding port
      */
     public IConnection bind(String storm_id, int port) {
-        IConnection server = new Server(storm_conf, port);
+        IConnection server = new Server(storm_conf, port, compressor);
         connections.add(server);
         return server;
     }
@@ -82,7 +92,7 @@ public class Context implements IContext {
      */
     public IConnection connect(String storm_id, String host, int port) {        
         IConnection client =  new Client(storm_conf, clientChannelFactory, 
-                clientScheduleService, host, port);
+                clientScheduleService, bufferPool, compressor, host, port);
         connections.add(client);
         return client;
     }
@@ -109,4 +119,15 @@ public class Context implements IContext {
         clientChannelFactory.releaseExternalResources();
 
     }
+
+    /**
+     * compression statistics since the last call, empty if compression is disabled
+     */
+    @Override
+    public Object getState() {
+        if (compressor == null) {
+            return new HashMap<String, Object>();
+        }
+        return compressor.getState();
+    }
 }
@@ -20,12 +20,13 @@ package backtype.storm.messaging.netty;
 import java.io.IOException;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 enum ControlMessage {
     CLOSE_MESSAGE((short)-100),
     EOB_MESSAGE((short)-201),
+    COMPRESSED_BATCH((short)-202),
+    WIRE_FORMAT_V2((short)-203),
     OK_RESPONSE((short)-200),
     FAILURE_RESPONSE((short)-400);
 
@@ -57,13 +58,12 @@ enum ControlMessage {
      * @throws Exception
      */
     ChannelBuffer buffer() throws IOException {
-        ChannelBufferOutputStream bout = new ChannelBufferOutputStream(ChannelBuffers.directBuffer(encodeLength()));      
-        write(bout);
-        bout.close();
-        return bout.buffer();
+        ChannelBuffer buf = ChannelBuffers.directBuffer(encodeLength());
+        write(buf);
+        return buf;
     }
 
-    void write(ChannelBufferOutputStream bout) throws IOException {
-        bout.writeShort(code);        
+    void write(ChannelBuffer buf) {
+        buf.writeShort(code);
     } 
 }
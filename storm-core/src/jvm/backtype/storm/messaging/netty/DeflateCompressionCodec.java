@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codec using the JDK's deflate implementation at its fastest level. 
+ * Deflater and Inflater hold native buffers, so one of each is kept per thread.
+ */
+public class DeflateCompressionCodec implements ICompressionCodec {
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    public byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        // deflate never grows data by more than a few bytes per 16KB block
+        byte[] out = new byte[length + (length >> 12) + 64];
+        int written = 0;
+        while (!deflater.finished()) {
+            if (written == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            written += deflater.deflate(out, written, out.length - written);
+        }
+        return Arrays.copyOf(out, written);
+    }
+
+    public byte[] decompress(byte[] data, int offset, int length, int uncompressedLength) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        byte[] out = new byte[uncompressedLength];
+        try {
+            int read = 0;
+            while (read < uncompressedLength) {
+                int n = inflater.inflate(out, read, uncompressedLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != uncompressedLength) {
+                throw new RuntimeException("Corrupt compressed batch, expected " + uncompressedLength + " bytes but got " + read);
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, bucketed into power-of-two size classes,
+ * used to encode outbound message batches. Allocating direct memory is
+ * expensive, so buffers are handed back once netty has finished writing them.
+ * 
+ * Requests larger than the biggest size class are not pooled.
+ */
+class DirectBufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4KB
+
+    private final int maxPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+
+    /**
+     * @param maxBufferSize the largest request that should be pooled
+     * @param maxPerClass max # of idle buffers kept per size class, 0 disables pooling
+     */
+    @SuppressWarnings("unchecked")
+    DirectBufferPool(int maxBufferSize, int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        int classes = Math.max(0, sizeClassShift(maxBufferSize) - MIN_CLASS_SHIFT + 1);
+        free = new ConcurrentLinkedQueue[classes];
+        freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCount[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * @return a cleared buffer with at least size bytes of capacity, or null if size is not pooled
+     */
+    ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        if (cls < 0) {
+            return null;
+        }
+        ByteBuffer buffer = free[cls].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (cls + MIN_CLASS_SHIFT));
+        } else {
+            freeCount[cls].decrementAndGet();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * return a buffer previously obtained from acquire(). It must not be used afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        int cls = sizeClass(buffer.capacity());
+        if (cls < 0 || buffer.capacity() != (1 << (cls + MIN_CLASS_SHIFT))) {
+            return;
+        }
+        if (freeCount[cls].incrementAndGet() <= maxPerClass) {
+            free[cls].offer(buffer);
+        } else {
+            freeCount[cls].decrementAndGet();
+        }
+    }
+
+    private int sizeClass(int size) {
+        if (maxPerClass <= 0) {
+            return -1;
+        }
+        int cls = sizeClassShift(size) - MIN_CLASS_SHIFT;
+        if (cls < 0) {
+            cls = 0;
+        }
+        return cls < free.length ? cls : -1;
+    }
+
+    private static int sizeClassShift(int size) {
+        if (size <= 1) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
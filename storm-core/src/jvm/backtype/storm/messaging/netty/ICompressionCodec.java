@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+/**
+ * Compresses message batches sent between workers, see 
+ * storm.messaging.netty.compression.codec. Implementations must be thread safe
+ * and have a public no-arg constructor.
+ */
+public interface ICompressionCodec {
+    /**
+     * @return the compressed form of length bytes of data starting at offset
+     */
+    public byte[] compress(byte[] data, int offset, int length);
+
+    /**
+     * @param uncompressedLength the length of the original data
+     * @return the original data
+     */
+    public byte[] decompress(byte[] data, int offset, int length, int uncompressedLength);
+}
@@ -17,22 +17,41 @@
  */
 package backtype.storm.messaging.netty;
 
+import backtype.storm.Config;
 import backtype.storm.messaging.TaskMessage;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 class MessageBatch {
     private int buffer_size;
     private ArrayList<TaskMessage> msgs;
     private int encoded_length;
+    private int payload_length;
+    private DirectBufferPool pool;
+    private int gather_threshold;
+    private ByteBuffer pooled;
+    private int wire_format;
 
     MessageBatch(int buffer_size) {
+        this(buffer_size, null, 0, WireFormat.V1);
+    }
+
+    /**
+     * @param pool pool to encode into, may be null
+     * @param gather_threshold payloads of at least this many bytes are referenced instead of
+     *        copied and the batch is sent with a gathering write; 0 disables
+     * @param wire_format WireFormat.V1 or WireFormat.V2
+     */
+    MessageBatch(int buffer_size, DirectBufferPool pool, int gather_threshold, int wire_format) {
         this.buffer_size = buffer_size;
+        this.pool = pool;
+        this.gather_threshold = gather_threshold;
+        this.wire_format = wire_format;
         msgs = new ArrayList<TaskMessage>();
-        encoded_length = ControlMessage.EOB_MESSAGE.encodeLength();
+        encoded_length = wire_format == WireFormat.V2 ? 1 : ControlMessage.EOB_MESSAGE.encodeLength();
     }
 
     void add(TaskMessage obj) {
@@ -42,6 +61,8 @@ class MessageBatch {
         TaskMessage msg = (TaskMessage)obj;
         msgs.add(msg);
         encoded_length += msgEncodeLength(msg);
+        if (msg.array() != null)
+            payload_length += msg.length();
     }
 
 
@@ -64,10 +85,12 @@ class MessageBatch {
     private int msgEncodeLength(TaskMessage taskMsg) {
         if (taskMsg == null) return 0;
 
-        int size = 6; //INT + SHORT
-        if (taskMsg.message() != null) 
-            size += taskMsg.message().length;
-        return size;
+        int payload_len = taskMsg.array() == null ? 0 : taskMsg.length();
+        if (wire_format == WireFormat.V2) {
+            return WireFormat.varIntLength(WireFormat.taskTag(taskMsg.task()))
+                + WireFormat.varIntLength(payload_len) + payload_len;
+        }
+        return 6 + payload_len; //INT + SHORT
     }
 
     /**
@@ -86,6 +109,13 @@ class MessageBatch {
         return msgs.isEmpty();
     }
 
+    /**
+     * total # of payload bytes in this batch
+     */
+    int payloadLength() {
+        return payload_length;
+    }
+
     /**
      * # of msgs in this batch
      * @return
@@ -98,39 +128,136 @@ class MessageBatch {
      * create a buffer containing the encoding of this batch
      */
     ChannelBuffer buffer() throws Exception {
-        ChannelBufferOutputStream bout = new ChannelBufferOutputStream(ChannelBuffers.directBuffer(encoded_length));
-        
+        if (gather_threshold > 0) {
+            return gatheringBuffer();
+        }
+
+        ChannelBuffer buf;
+        ByteBuffer direct = pool == null ? null : pool.acquire(encoded_length);
+        if (direct != null) {
+            pooled = direct;
+            buf = ChannelBuffers.wrappedBuffer(direct);
+            buf.clear();
+        } else {
+            buf = ChannelBuffers.directBuffer(encoded_length);
+        }
+
+        writeTo(buf);
+        return buf;
+    }
+
+    /**
+     * create a heap buffer containing the encoding of this batch
+     */
+    ChannelBuffer heapBuffer() {
+        ChannelBuffer buf = ChannelBuffers.buffer(encoded_length);
+        writeTo(buf);
+        return buf;
+    }
+
+    /**
+     * # of bytes in the encoding of this batch
+     */
+    int encodedLength() {
+        return encoded_length;
+    }
+
+    int wireFormat() {
+        return wire_format;
+    }
+
+    private void writeTo(ChannelBuffer buf) {
         for (TaskMessage msg : msgs)
-            writeTaskMessage(bout, msg);
+            writeTaskMessage(buf, msg);
 
         //add a END_OF_BATCH indicator
-        ControlMessage.EOB_MESSAGE.write(bout);
+        writeEndOfBatch(buf);
+    }
+
+    private void writeEndOfBatch(ChannelBuffer buf) {
+        if (wire_format == WireFormat.V2)
+            WireFormat.writeVarInt(buf, WireFormat.EOB_TAG);
+        else
+            ControlMessage.EOB_MESSAGE.write(buf);
+    }
 
-        bout.close();
+    /**
+     * Encode headers and small payloads into one heap buffer, and reference large payloads
+     * in place. The resulting composite buffer is written with a single gathering write.
+     */
+    private ChannelBuffer gatheringBuffer() {
+        int inline_length = encoded_length;
+        for (TaskMessage msg : msgs) {
+            if (isGathered(msg))
+                inline_length -= msg.length();
+        }
 
-        return bout.buffer();
+        ChannelBuffer inline = ChannelBuffers.buffer(inline_length);
+        ArrayList<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+        int mark = 0;
+        for (TaskMessage msg : msgs) {
+            if (isGathered(msg)) {
+                writeTaskMessageHeader(inline, msg.task(), msg.length());
+                parts.add(inline.slice(mark, inline.writerIndex() - mark));
+                parts.add(ChannelBuffers.wrappedBuffer(msg.array(), msg.offset(), msg.length()));
+                mark = inline.writerIndex();
+            } else {
+                writeTaskMessage(inline, msg);
+            }
+        }
+        writeEndOfBatch(inline);
+        parts.add(inline.slice(mark, inline.writerIndex() - mark));
+
+        return ChannelBuffers.wrappedBuffer(true, parts.toArray(new ChannelBuffer[parts.size()]));
+    }
+
+    private boolean isGathered(TaskMessage msg) {
+        return msg.array() != null && msg.length() >= gather_threshold;
+    }
+
+    /**
+     * return the pooled buffer used by buffer(), once it has been written out
+     */
+    void release() {
+        if (pooled != null) {
+            pool.release(pooled);
+            pooled = null;
+        }
     }
 
     /**
-     * write a TaskMessage into a stream
+     * write a TaskMessage into a buffer
      *
      * Each TaskMessage is encoded as:
      *  task ... short(2)
      *  len ... int(4)
      *  payload ... byte[]     *  
+     * or, in WireFormat.V2, as:
+     *  task + WireFormat.TASK_OFFSET ... varint
+     *  len ... varint
+     *  payload ... byte[]
      */
-    private void writeTaskMessage(ChannelBufferOutputStream bout, TaskMessage message) throws Exception {
+    private void writeTaskMessage(ChannelBuffer buf, TaskMessage message) {
         int payload_len = 0;
-        if (message.message() != null)
-            payload_len =  message.message().length;
+        if (message.array() != null)
+            payload_len =  message.length();
 
-        int task_id = message.task();
+        writeTaskMessageHeader(buf, message.task(), payload_len);
+        if (payload_len >0)
+            buf.writeBytes(message.array(), message.offset(), payload_len);
+    }
+
+    private void writeTaskMessageHeader(ChannelBuffer buf, int task_id, int payload_len) {
+        if (wire_format == WireFormat.V2) {
+            WireFormat.writeVarInt(buf, WireFormat.taskTag(task_id));
+            WireFormat.writeVarInt(buf, payload_len);
+            return;
+        }
         if (task_id > Short.MAX_VALUE)
-            throw new RuntimeException("Task ID should not exceed "+Short.MAX_VALUE);
+            throw new RuntimeException("Task ID should not exceed "+Short.MAX_VALUE
+                    +", set "+Config.STORM_NETTY_WIRE_FORMAT_VERSION+" to 2 for larger ids");
         
-        bout.writeShort((short)task_id);
-        bout.writeInt(payload_len);
-        if (payload_len >0)
-            bout.write(message.message());
+        buf.writeShort((short)task_id);
+        buf.writeInt(payload_len);
     }
-}
\ No newline at end of file
+}
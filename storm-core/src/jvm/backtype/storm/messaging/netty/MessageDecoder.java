@@ -22,20 +22,42 @@ import java.util.List;
 
 import backtype.storm.messaging.TaskMessage;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 public class MessageDecoder extends FrameDecoder {    
+    private final BatchCompressor compressor;
+    private int wire_format = WireFormat.V1;
+
+    public MessageDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param compressor used to decompress batches, may be null
+     */
+    MessageDecoder(BatchCompressor compressor) {
+        this.compressor = compressor;
+    }
+
     /*
      * Each ControlMessage is encoded as:
      *  code (<0) ... short(2)
+     * except for COMPRESSED_BATCH, see BatchCompressor
      * Each TaskMessage is encoded as:
      *  task (>=0) ... short(2)
      *  len ... int(4)
      *  payload ... byte[]     *  
+     * Once WIRE_FORMAT_V2 has been received, the rest of the connection is decoded
+     * as WireFormat.V2.
      */
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf) throws Exception {
+        if (wire_format == WireFormat.V2) {
+            return decodeV2(ctx, channel, buf);
+        }
+
         // Make sure that we have received at least a short 
         long available = buf.readableBytes();
         if (available < 2) {
@@ -64,6 +86,25 @@ public class MessageDecoder extends FrameDecoder {
 
                 if (ctrl_msg == ControlMessage.EOB_MESSAGE) {
                     continue;
+                } else if (ctrl_msg == ControlMessage.COMPRESSED_BATCH) {
+                    if (available < 8) {
+                        buf.resetReaderIndex();
+                        break;
+                    }
+                    int uncompressed = buf.readInt();
+                    int length = buf.readInt();
+                    available -= 8;
+                    if (available < length) {
+                        buf.resetReaderIndex();
+                        break;
+                    }
+                    available -= length;
+                    decompress(ctx, channel, buf, length, uncompressed, ret);
+                    continue;
+                } else if (ctrl_msg == ControlMessage.WIRE_FORMAT_V2) {
+                    wire_format = WireFormat.V2;
+                    addDecoded(decodeV2(ctx, channel, buf), ret);
+                    break;
                 } else {
                     return ctrl_msg;
                 }
@@ -86,7 +127,7 @@ public class MessageDecoder extends FrameDecoder {
 
             if (length <= 0) {
                 ret.add(new TaskMessage(task, null));
-                break;
+                continue;
             }
 
             // Make sure if there's enough bytes in the buffer.
@@ -98,12 +139,9 @@ public class MessageDecoder extends FrameDecoder {
             available -= length;
 
             // There's enough bytes in the buffer. Read it.
-            ChannelBuffer payload = buf.readBytes(length);
-
-
             // Successfully decoded a frame.
             // Return a TaskMessage object
-            ret.add(new TaskMessage(task, payload.array()));
+            ret.add(readTaskMessage(buf, task, length));
         }
 
         if (ret.size() == 0) {
@@ -112,4 +150,106 @@ public class MessageDecoder extends FrameDecoder {
             return ret;
         }
     }
+
+    /*
+     * See WireFormat for the encoding
+     */
+    private Object decodeV2(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf) throws Exception {
+        List<Object> ret = new ArrayList<Object>();
+
+        while (buf.readable()) {
+            buf.markReaderIndex();
+
+            int tag = WireFormat.readVarInt(buf);
+            if (tag < 0) {
+                buf.resetReaderIndex();
+                break;
+            }
+
+            if (tag == WireFormat.EOB_TAG) {
+                continue;
+            } else if (tag == WireFormat.COMPRESSED_BATCH_TAG) {
+                int uncompressed = WireFormat.readVarInt(buf);
+                int length = uncompressed < 0 ? -1 : WireFormat.readVarInt(buf);
+                if (length < 0 || buf.readableBytes() < length) {
+                    buf.resetReaderIndex();
+                    break;
+                }
+                decompress(ctx, channel, buf, length, uncompressed, ret);
+                continue;
+            } else if (tag < WireFormat.CONTROL_TAGS) {
+                throw new RuntimeException("Unknown control tag " + tag);
+            }
+
+            int length = WireFormat.readVarInt(buf);
+            if (length < 0 || buf.readableBytes() < length) {
+                buf.resetReaderIndex();
+                break;
+            }
+
+            int task = tag - WireFormat.TASK_OFFSET;
+            if (length == 0) {
+                ret.add(new TaskMessage(task, null));
+            } else {
+                ret.add(readTaskMessage(buf, task, length));
+            }
+        }
+
+        if (ret.size() == 0) {
+            return null;
+        } else {
+            return ret;
+        }
+    }
+
+    private TaskMessage readTaskMessage(ChannelBuffer buf, int task, int length) {
+        if (buf.hasArray()) {
+            // The buffers handed to us by netty are never written to again once
+            // they have been read (leftovers are copied or wrapped into a new
+            // cumulation buffer), so the payload can safely be a view into the
+            // backing array instead of a copy.
+            TaskMessage msg = new TaskMessage(task, buf.array(), buf.arrayOffset() + buf.readerIndex(), length);
+            buf.skipBytes(length);
+            return msg;
+        } else {
+            byte[] payload = new byte[length];
+            buf.readBytes(payload);
+            return new TaskMessage(task, payload);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addDecoded(Object decoded, List<Object> ret) {
+        if (decoded instanceof List) {
+            ret.addAll((List<Object>) decoded);
+        }
+    }
+
+    /**
+     * decompress a batch and decode the messages in it into ret
+     */
+    private void decompress(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf,
+            int length, int uncompressed, List<Object> ret) throws Exception {
+        if (compressor == null) {
+            throw new RuntimeException("Received a compressed batch, but no compression codec is configured");
+        }
+        byte[] raw;
+        if (buf.hasArray()) {
+            raw = compressor.decode(buf.array(), buf.arrayOffset() + buf.readerIndex(), length, uncompressed);
+            buf.skipBytes(length);
+        } else {
+            byte[] compressed = new byte[length];
+            buf.readBytes(compressed);
+            raw = compressor.decode(compressed, 0, length, uncompressed);
+        }
+        // a batch only holds whole messages, so each decode() makes progress until it is empty
+        ChannelBuffer batch = ChannelBuffers.wrappedBuffer(raw);
+        while (batch.readable()) {
+            int start = batch.readerIndex();
+            addDecoded(decode(ctx, channel, batch), ret);
+            if (batch.readerIndex() == start) {
+                throw new RuntimeException("Truncated message in a compressed batch of " + uncompressed + " bytes");
+            }
+        }
+    }
 }
\ No newline at end of file
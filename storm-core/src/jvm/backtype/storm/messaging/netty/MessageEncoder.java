@@ -22,6 +22,19 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 
 public class MessageEncoder extends OneToOneEncoder {    
+    private final BatchCompressor compressor;
+
+    public MessageEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param compressor used to compress batches, may be null
+     */
+    MessageEncoder(BatchCompressor compressor) {
+        this.compressor = compressor;
+    }
+
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel, Object obj) throws Exception {
         if (obj instanceof ControlMessage) {
@@ -29,6 +42,9 @@ public class MessageEncoder extends OneToOneEncoder {
         }
 
         if (obj instanceof MessageBatch) {
+            if (compressor != null) {
+                return compressor.encode((MessageBatch)obj);
+            }
             return ((MessageBatch)obj).buffer();
         } 
         
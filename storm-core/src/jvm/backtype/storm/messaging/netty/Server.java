@@ -19,8 +19,16 @@ package backtype.storm.messaging.netty;
 
 import backtype.storm.Config;
 import backtype.storm.messaging.IConnection;
+import backtype.storm.messaging.IConnectionCallback;
+import backtype.storm.messaging.IDirectConnection;
 import backtype.storm.messaging.TaskMessage;
+import backtype.storm.utils.DisruptorQueue;
+import backtype.storm.utils.IRingQueue;
 import backtype.storm.utils.Utils;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.MultiThreadedClaimStrategy;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
@@ -33,15 +41,13 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 
-class Server implements IConnection {
+class Server implements IConnection, IDirectConnection {
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
     @SuppressWarnings("rawtypes")
     Map storm_conf;
@@ -49,32 +55,48 @@ class Server implements IConnection {
     
     // Create multiple queues for incoming messages. The size equals the number of receiver threads.
     // For message which is sent to same task, it will be stored in the same queue to preserve the message order.
-    private LinkedBlockingQueue<ArrayList<TaskMessage>>[] message_queue;
+    // The queues are bounded, netty I/O threads block when one is full.
+    private IRingQueue[] message_queue;
+    private QueueDrainer[] drainers;
     
     volatile ChannelGroup allChannels = new DefaultChannelGroup("storm-server");
     final ChannelFactory factory;
     final ServerBootstrap bootstrap;
     
     private int queueCount;
-    HashMap<Integer, Integer> taskToQueueId = null;
+    // task -> queue id, -1 if not assigned yet. Copied on write so lookups need no lock.
+    volatile int[] taskToQueueId = new int[0];
     int roundRobinQueueId;
 	
-    boolean closing = false;
+    volatile boolean closing = false;
+    // netty threads waiting for room in a full queue wait on this, and are woken by the
+    // receiver threads once they took something out, or by close()
+    private final Object queueSpace = new Object();
+    private volatile int blockedPublishers = 0;
+    // when set, received batches bypass the queues and are handed over on the netty thread
+    private volatile IConnectionCallback callback;
     List<TaskMessage> closeMessage = Arrays.asList(new TaskMessage(-1, null));
     
     
+    private BatchCompressor compressor;
+    
     @SuppressWarnings("rawtypes")
-    Server(Map storm_conf, int port) {
+    Server(Map storm_conf, int port, BatchCompressor compressor) {
         this.storm_conf = storm_conf;
         this.port = port;
+        this.compressor = compressor;
         
         queueCount = Utils.getInt(storm_conf.get(Config.WORKER_RECEIVER_THREAD_COUNT), 1);
         roundRobinQueueId = 0;
-        taskToQueueId = new HashMap<Integer, Integer>();
+        int queueSize = Utils.getInt(storm_conf.get(Config.STORM_NETTY_RECEIVE_QUEUE_SIZE), 1024);
     
-        message_queue = new LinkedBlockingQueue[queueCount];
+        message_queue = new IRingQueue[queueCount];
+        drainers = new QueueDrainer[queueCount];
         for (int i = 0; i < queueCount; i++) {
-            message_queue[i] = new LinkedBlockingQueue<ArrayList<TaskMessage>>();
+            message_queue[i] = new DisruptorQueue("netty-server-" + port + "-" + i,
+                    new MultiThreadedClaimStrategy(queueSize), new BlockingWaitStrategy());
+            message_queue[i].consumerStarted();
+            drainers[i] = new QueueDrainer();
         }
         
         // Configure the server.
@@ -115,11 +137,11 @@ class Server implements IConnection {
         int task = message.task();
         
         if (task == -1) {
-          closing = true;
+          markClosing();
           return null;
         }
         
-        Integer queueId = getMessageQueueId(task);
+        int queueId = getMessageQueueId(task);
         
         if (null == messageGroups[queueId]) {
           messageGroups[queueId] = new ArrayList<TaskMessage>();
@@ -129,23 +151,29 @@ class Server implements IConnection {
       return messageGroups;
     }
     
-    private Integer getMessageQueueId(int task) {
-      // try to construct the map from taskId -> queueId in round robin manner.
-      
-      Integer queueId = taskToQueueId.get(task);
-      if (null == queueId) {
-        synchronized(taskToQueueId) {
-          //assgin task to queue in round-robin manner
-          if (null == taskToQueueId.get(task)) {
-            queueId = roundRobinQueueId++;
-            
-            taskToQueueId.put(task, queueId);
-            if (roundRobinQueueId == queueCount) {
-              roundRobinQueueId = 0;
-            }
-          }
-        }
+    private int getMessageQueueId(int task) {
+      int[] mapping = taskToQueueId;
+      if (task < mapping.length && mapping[task] >= 0) {
+        return mapping[task];
+      }
+      return assignMessageQueueId(task);
+    }
+
+    private synchronized int assignMessageQueueId(int task) {
+      int[] mapping = taskToQueueId;
+      if (task < mapping.length && mapping[task] >= 0) {
+        return mapping[task];
+      }
+
+      //assign task to queue in round-robin manner
+      int[] updated = Arrays.copyOf(mapping, Math.max(mapping.length, task + 1));
+      Arrays.fill(updated, mapping.length, updated.length, -1);
+      int queueId = roundRobinQueueId++;
+      updated[task] = queueId;
+      if (roundRobinQueueId == queueCount) {
+        roundRobinQueueId = 0;
       }
+      taskToQueueId = updated;
       return queueId;
     }
 
@@ -159,6 +187,18 @@ class Server implements IConnection {
       if (null == msgs || msgs.size() == 0 || closing) {
         return;
       }
+
+      IConnectionCallback cb = callback;
+      if (null != cb) {
+        for (int i = 0; i < msgs.size(); i++) {
+          if (msgs.get(i).task() == -1) {
+            markClosing();
+            return;
+          }
+        }
+        cb.recv(msgs);
+        return;
+      }
       
       ArrayList<TaskMessage> messageGroups[] = groupMessages(msgs);
       
@@ -169,7 +209,54 @@ class Server implements IConnection {
       for (int receiverId = 0; receiverId < messageGroups.length; receiverId++) {
         ArrayList<TaskMessage> msgGroup = messageGroups[receiverId];
         if (null != msgGroup) {
-          message_queue[receiverId].put(msgGroup);
+          publish(message_queue[receiverId], msgGroup);
+        }
+      }
+    }
+    
+    /**
+     * block the netty thread while the receiver is behind, which stops reading from 
+     * the socket. Gives up when the server is closing so netty threads can exit.
+     */
+    private void publish(IRingQueue queue, ArrayList<TaskMessage> msgGroup) throws InterruptedException {
+      while (true) {
+        try {
+          queue.tryPublish(msgGroup);
+          return;
+        } catch (InsufficientCapacityException e) {
+          synchronized (queueSpace) {
+            if (closing) {
+              return;
+            }
+            blockedPublishers++;
+            try {
+              // a receiver that made room before the count was raised did not notify
+              queue.tryPublish(msgGroup);
+              return;
+            } catch (InsufficientCapacityException stillFull) {
+              queueSpace.wait();
+            } finally {
+              blockedPublishers--;
+            }
+          }
+        }
+      }
+    }
+
+    private void markClosing() {
+      synchronized (queueSpace) {
+        closing = true;
+        queueSpace.notifyAll();
+      }
+    }
+
+    /**
+     * wake the netty threads blocked in publish()
+     */
+    private void queueSpaceAvailable() {
+      if (blockedPublishers > 0) {
+        synchronized (queueSpace) {
+          queueSpace.notifyAll();
         }
       }
     }
@@ -179,28 +266,77 @@ class Server implements IConnection {
         return closeMessage.iterator();
       }
       
-      ArrayList<TaskMessage> ret = null; 
       int queueId = receiverId % queueCount;
+      IRingQueue queue = message_queue[queueId];
+      QueueDrainer drainer = drainers[queueId];
       if ((flags & 0x01) == 0x01) { 
             //non-blocking
-            ret = message_queue[queueId].poll();
+            queue.consumeBatch(drainer);
         } else {
             try {
-                ArrayList<TaskMessage> request = message_queue[queueId].take();
-                LOG.debug("request to be processed: {}", request);
-                ret = request;
-            } catch (InterruptedException e) {
+                while (drainer.isEmpty() && !closing) {
+                    queue.consumeBatchWhenAvailable(drainer);
+                }
+            } catch (RuntimeException e) {
+                if (!(e.getCause() instanceof InterruptedException)) {
+                    throw e;
+                }
                 LOG.info("exception within msg receiving", e);
-                ret = null;
             }
         }
       
+      ArrayList<TaskMessage> ret = drainer.take();
       if (null != ret) {
+        queueSpaceAvailable();
+      }
+      if (null != ret) {
+        LOG.debug("request to be processed: {}", ret);
         return ret.iterator();
       }
+      if (closing) {
+        return closeMessage.iterator();
+      }
       return null;
     }
+
+    @Override
+    public void registerRecv(IConnectionCallback cb) {
+      callback = cb;
+    }
+
+    /**
+     * Collects every batch available in a queue into one list. Only used by the
+     * receiver thread owning the queue.
+     */
+    private static class QueueDrainer implements EventHandler<Object> {
+        private ArrayList<TaskMessage> batch;
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onEvent(Object event, long sequence, boolean endOfBatch) {
+            ArrayList<TaskMessage> msgs = (ArrayList<TaskMessage>) event;
+            if (null == batch) {
+                batch = msgs;
+            } else {
+                batch.addAll(msgs);
+            }
+        }
+
+        boolean isEmpty() {
+            return null == batch;
+        }
+
+        ArrayList<TaskMessage> take() {
+            ArrayList<TaskMessage> ret = batch;
+            batch = null;
+            return ret;
+        }
+    }
    
+    BatchCompressor compressor() {
+      return compressor;
+    }
+
     /**
      * register a newly created channel
      * @param channel
@@ -222,6 +358,8 @@ class Server implements IConnection {
      * close all channels, and release resources
      */
     public synchronized void close() {
+        // netty threads waiting for queue space would keep their channels from closing
+        markClosing();
         if (allChannels != null) {
             allChannels.close().awaitUninterruptibly();
             factory.releaseExternalResources();
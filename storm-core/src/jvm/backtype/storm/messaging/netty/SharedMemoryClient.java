@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.Config;
+import backtype.storm.messaging.IConnection;
+import backtype.storm.messaging.IThrottledConnection;
+import backtype.storm.messaging.TaskMessage;
+import backtype.storm.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages to a worker on the same host by appending them to a shared memory
+ * ring in the directory that worker's SharedMemoryReceiver watches.
+ */
+class SharedMemoryClient implements IConnection, IThrottledConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryClient.class);
+    private static final long FLUSH_RETRY_MS = 1;
+
+    private final SharedMemoryRing ring;
+    private final ScheduledExecutorService scheduler;
+    private final long highWatermark;
+    private final long lowWatermark;
+    // messages that did not fit into the ring, in order. guarded by this
+    private final LinkedList<TaskMessage> overflow = new LinkedList<TaskMessage>();
+    private volatile long overflowBytes = 0;
+    // true while a flush of the overflow is scheduled. guarded by this
+    private boolean flushScheduled = false;
+    private volatile boolean throttled;
+    private volatile boolean closing;
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    SharedMemoryClient(Map storm_conf, ScheduledExecutorService scheduler, File dir) {
+        this.scheduler = scheduler;
+        int ringSize = Utils.getInt(storm_conf.get(Config.STORM_MESSAGING_SHM_RING_SIZE), 16777216);
+        highWatermark = Utils.getInt(storm_conf.get(Config.STORM_NETTY_TRANSFER_HIGH_WATERMARK), 0);
+        lowWatermark = Math.min(highWatermark, Utils.getInt(storm_conf.get(Config.STORM_NETTY_TRANSFER_LOW_WATERMARK), 0));
+        File file = new File(dir, UUID.randomUUID().toString() + ".ring");
+        try {
+            dir.mkdirs();
+            ring = createRing(dir, file, ringSize);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create shared memory ring in " + dir, e);
+        }
+        LOG.info("New shared memory client, writing to " + ring.file());
+    }
+
+    /**
+     * the receiving worker removes its directory when it has nothing left in it, which 
+     * may happen between mkdirs() and creating the ring
+     */
+    private static SharedMemoryRing createRing(File dir, File file, int ringSize) throws IOException {
+        try {
+            return SharedMemoryRing.create(file, ringSize);
+        } catch (IOException e) {
+            dir.mkdirs();
+            return SharedMemoryRing.create(file, ringSize);
+        }
+    }
+
+    /**
+     * Messages are published once per call. Whatever does not fit into the ring is kept, 
+     * in order, and written by a scheduled flush once the receiver catches up, so the 
+     * caller never waits. The overflow counts towards the transfer watermarks.
+     */
+    public synchronized void send(Iterator<TaskMessage> msgs) {
+        if (closing) {
+            throw new RuntimeException("Client is being closed, and does not take requests any more");
+        }
+        while (msgs.hasNext()) {
+            TaskMessage msg = msgs.next();
+            if (!overflow.isEmpty() || !offer(msg)) {
+                overflow.add(msg);
+                overflowBytes += length(msg);
+            }
+        }
+        ring.publish();
+        if (!overflow.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    public void send(int taskId, byte[] payload) {
+        send(Collections.singletonList(new TaskMessage(taskId, payload)).iterator());
+    }
+
+    public Iterator<TaskMessage> recv(int flags, int clientId) {
+        throw new RuntimeException("Client connection should not receive any messages");
+    }
+
+    /**
+     * write as much of the overflow as fits into the ring
+     */
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (closing) {
+            return;
+        }
+        drainOverflow();
+        if (!overflow.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    private void drainOverflow() {
+        while (!overflow.isEmpty() && offer(overflow.peek())) {
+            overflowBytes -= length(overflow.poll());
+        }
+        ring.publish();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            try {
+                scheduler.schedule(flusher, FLUSH_RETRY_MS, TimeUnit.MILLISECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // the context is shutting down, close() drops what is left
+            }
+        }
+    }
+
+    private boolean offer(TaskMessage msg) {
+        return ring.offer(msg.task(), msg.array(), msg.offset(), length(msg));
+    }
+
+    private static int length(TaskMessage msg) {
+        return msg.array() == null ? 0 : msg.length();
+    }
+
+    @Override
+    public boolean isThrottled() {
+        if (highWatermark <= 0) {
+            return false;
+        }
+        long pending = ring.pending() + overflowBytes;
+        if (pending > highWatermark) {
+            throttled = true;
+        } else if (pending < lowWatermark) {
+            throttled = false;
+        }
+        return throttled;
+    }
+
+    @Override
+    public double getLoad() {
+        if (highWatermark <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, (double) (ring.pending() + overflowBytes) / highWatermark);
+    }
+
+    /**
+     * everything that fits is written to the ring, the receiver deletes it once drained.
+     * The rest of the overflow is dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            drainOverflow();
+            closing = true;
+            if (!overflow.isEmpty()) {
+                LOG.warn("Dropping " + overflow.size() + " messages (" + overflowBytes
+                        + " bytes) that did not fit into " + ring.file());
+                overflow.clear();
+                overflowBytes = 0;
+            }
+            ring.markClosed();
+        }
+        LOG.info("Closed shared memory client " + ring.file());
+    }
+}
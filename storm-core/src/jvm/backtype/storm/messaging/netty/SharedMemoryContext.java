@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.Config;
+import backtype.storm.messaging.IConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A netty context that talks to workers on the same host through memory mapped 
+ * ring files instead of loopback TCP.
+ * 
+ * Each bound port gets a directory under storm.messaging.shm.dir (by default 
+ * <storm.local.dir>/shm) that a SharedMemoryReceiver watches. Connecting to a local
+ * host creates a ring in that directory, remote hosts still get a netty Client. 
+ * All supervisors on a host must therefore use the same directory. The directories
+ * and rings left behind by workers that are gone are removed when a worker starts.
+ */
+public class SharedMemoryContext extends Context {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryContext.class);
+
+    @SuppressWarnings("rawtypes")
+    private Map storm_conf;
+    private File shmDir;
+    private Set<String> localHosts;
+    private Vector<IConnection> shmClients;
+    private Vector<SharedMemoryReceiver> receivers;
+    // writes what did not fit into the rings of the clients
+    private ScheduledExecutorService flushService;
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void prepare(Map storm_conf) {
+        super.prepare(storm_conf);
+        this.storm_conf = storm_conf;
+        shmClients = new Vector<IConnection>();
+        receivers = new Vector<SharedMemoryReceiver>();
+
+        String dir = (String) storm_conf.get(Config.STORM_MESSAGING_SHM_DIR);
+        if (dir == null) {
+            dir = storm_conf.get(Config.STORM_LOCAL_DIR) + File.separator + "shm";
+        }
+        shmDir = new File(dir);
+        SharedMemoryReceiver.cleanup(shmDir);
+        flushService = Executors.newSingleThreadScheduledExecutor(new NettyRenameThreadFactory("shm-client-flush"));
+
+        localHosts = new HashSet<String>();
+        localHosts.add("localhost");
+        localHosts.add("127.0.0.1");
+        String hostname = (String) storm_conf.get(Config.STORM_LOCAL_HOSTNAME);
+        if (hostname != null) {
+            localHosts.add(hostname);
+        }
+        try {
+            localHosts.add(InetAddress.getLocalHost().getCanonicalHostName());
+        } catch (UnknownHostException e) {
+            LOG.warn("Unable to resolve local hostname, only loopback connections use shared memory", e);
+        }
+        LOG.info("Shared memory transport in " + shmDir + " for hosts " + localHosts);
+    }
+
+    @Override
+    public IConnection bind(String storm_id, int port) {
+        Server server = (Server) super.bind(storm_id, port);
+        SharedMemoryReceiver receiver = new SharedMemoryReceiver(ringDir(storm_id, port), server);
+        receiver.start();
+        receivers.add(receiver);
+        return server;
+    }
+
+    @Override
+    public IConnection connect(String storm_id, String host, int port) {
+        if (!localHosts.contains(host)) {
+            return super.connect(storm_id, host, port);
+        }
+        IConnection client = new SharedMemoryClient(storm_conf, flushService, ringDir(storm_id, port));
+        shmClients.add(client);
+        return client;
+    }
+
+    @Override
+    public void term() {
+        for (IConnection client : shmClients) {
+            client.close();
+        }
+        flushService.shutdown();
+        for (SharedMemoryReceiver receiver : receivers) {
+            receiver.shutdown();
+        }
+        super.term();
+    }
+
+    private File ringDir(String storm_id, int port) {
+        return new File(new File(shmDir, String.valueOf(storm_id)), String.valueOf(port));
+    }
+}
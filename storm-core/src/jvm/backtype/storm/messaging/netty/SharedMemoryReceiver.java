@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.messaging.TaskMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls the shared memory rings that co-located clients create in a directory, and 
+ * hands the messages to the netty server as if they had been received over the network.
+ * 
+ * The receiver holds a lock on a file in the directory while it runs. A directory whose 
+ * receiver and writers are all gone is removed by cleanup(), which every worker runs on
+ * start.
+ */
+class SharedMemoryReceiver implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryReceiver.class);
+    private static final long SCAN_INTERVAL_MS = 1000;
+    private static final int MAX_BATCH_BYTES = 262144;
+    private static final int SPINS_BEFORE_PARK = 100;
+    // an idle receiver parks for twice as long each time, up to MAX_PARK_NANOS
+    private static final long MIN_PARK_NANOS = 100000;
+    private static final long MAX_PARK_NANOS = 10000000;
+    // a writer that has not renamed its ring after this long died while creating it
+    private static final long TMP_EXPIRY_MS = 60000;
+    static final String LOCK_FILE = "receiver.lock";
+
+    private final File dir;
+    private final Server server;
+    private final Map<String, SharedMemoryRing> rings = new HashMap<String, SharedMemoryRing>();
+    private volatile boolean running = true;
+    private Thread thread;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    SharedMemoryReceiver(File dir, Server server) {
+        this.dir = dir;
+        this.server = server;
+    }
+
+    void start() {
+        dir.mkdirs();
+        lock();
+        thread = new Thread(this, "shm-receiver-" + dir.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stop polling, and wait a little for the receiver to unmap its rings and remove its 
+     * directory if nothing else is left in it
+     */
+    void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(SCAN_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        long lastScan = 0;
+        int idle = 0;
+        long parkNanos = MIN_PARK_NANOS;
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (now - lastScan >= SCAN_INTERVAL_MS) {
+                    scan();
+                    lastScan = now;
+                }
+                if (pollOnce()) {
+                    idle = 0;
+                    parkNanos = MIN_PARK_NANOS;
+                } else if (++idle < SPINS_BEFORE_PARK) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(2 * parkNanos, MAX_PARK_NANOS);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Shared memory receiver for " + dir + " interrupted");
+        } finally {
+            close();
+        }
+    }
+
+    private void scan() {
+        if (lock == null) {
+            lock();
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".ring") && !rings.containsKey(name)) {
+                try {
+                    rings.put(name, SharedMemoryRing.open(file));
+                    LOG.info("Receiving from shared memory ring " + file);
+                } catch (IOException e) {
+                    LOG.warn("Failed to open shared memory ring " + file, e);
+                }
+            } else if (name.endsWith(".tmp") && System.currentTimeMillis() - file.lastModified() > TMP_EXPIRY_MS) {
+                LOG.info("Deleting unfinished shared memory ring " + file);
+                file.delete();
+            }
+        }
+        for (SharedMemoryRing ring : rings.values()) {
+            if (!ring.isClosed() && !SharedMemoryRing.isLocked(ring.file())) {
+                LOG.warn("Writer of shared memory ring " + ring.file() + " died, reading what it left");
+                ring.markAbandoned();
+            }
+        }
+    }
+
+    private boolean pollOnce() throws InterruptedException {
+        boolean received = false;
+        Iterator<SharedMemoryRing> iter = rings.values().iterator();
+        while (iter.hasNext()) {
+            SharedMemoryRing ring = iter.next();
+            List<TaskMessage> msgs = ring.poll(MAX_BATCH_BYTES);
+            if (msgs != null) {
+                server.enqueue(msgs);
+                received = true;
+            } else if (ring.isDrained()) {
+                iter.remove();
+                ring.unmap();
+                ring.file().delete();
+            }
+        }
+        return received;
+    }
+
+    private void lock() {
+        File file = new File(dir, LOCK_FILE);
+        if (SharedMemoryRing.isLocked(file)) {
+            // by a receiver in another process, or by the previous receiver for this port in
+            // this JVM, which is still shutting down
+            return;
+        }
+        try {
+            lockFile = new RandomAccessFile(file, "rw");
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // the previous receiver for this port, in this JVM, is still shutting down
+        } catch (IOException e) {
+            LOG.warn("Failed to lock " + dir, e);
+        }
+        if (lock == null) {
+            closeLockFile();
+        } else {
+            SharedMemoryRing.registerLock(file);
+        }
+    }
+
+    private void closeLockFile() {
+        if (lockFile != null) {
+            try {
+                lockFile.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close " + LOCK_FILE + " in " + dir, e);
+            }
+            lockFile = null;
+        }
+    }
+
+    /**
+     * Unmap the rings, whose writers resume with the next receiver for this port, and 
+     * remove the directory, and the one of the topology, if nothing else is left in them.
+     */
+    private void close() {
+        for (SharedMemoryRing ring : rings.values()) {
+            ring.unmap();
+        }
+        rings.clear();
+        if (lock != null) {
+            new File(dir, LOCK_FILE).delete();
+            try {
+                lock.release();
+            } catch (IOException e) {
+                LOG.warn("Failed to unlock " + dir, e);
+            }
+            lock = null;
+            closeLockFile();
+            SharedMemoryRing.unregisterLock(new File(dir, LOCK_FILE));
+            if (dir.delete()) {
+                dir.getParentFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the ring directories under shmDir that have no receiver and no live writer, 
+     * along with what was left in them, and the topology directories that are then empty.
+     */
+    static void cleanup(File shmDir) {
+        File[] stormDirs = shmDir.listFiles();
+        if (stormDirs == null) {
+            return;
+        }
+        for (File stormDir : stormDirs) {
+            File[] portDirs = stormDir.listFiles();
+            if (portDirs == null) {
+                continue;
+            }
+            for (File portDir : portDirs) {
+                if (isAbandoned(portDir)) {
+                    LOG.info("Deleting abandoned shared memory rings in " + portDir);
+                    File[] files = portDir.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            file.delete();
+                        }
+                    }
+                    portDir.delete();
+                }
+            }
+            stormDir.delete();
+        }
+    }
+
+    private static boolean isAbandoned(File portDir) {
+        if (SharedMemoryRing.isLocked(new File(portDir, LOCK_FILE))) {
+            return false;
+        }
+        File[] files = portDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".ring") && SharedMemoryRing.isLocked(file)) {
+                return false;
+            }
+            if (name.endsWith(".tmp") && System.currentTimeMillis() - file.lastModified() <= TMP_EXPIRY_MS) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import backtype.storm.messaging.TaskMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single producer, single consumer ring of TaskMessages in a memory mapped file, 
+ * shared by two workers on the same host.
+ * 
+ * The file starts with a header holding the write position, read position and a
+ * closed flag, followed by the data area. Positions grow forever and are masked into
+ * the data area, whose size is a power of 2. Each message is encoded as:
+ *  task ... int(4)
+ *  len ... int(4)
+ *  payload ... byte[]
+ * and may wrap around the end of the data area.
+ * 
+ * The header fields are in native byte order and are only accessed through Unsafe on 
+ * the address of the mapping: a position is published with an ordered store after the 
+ * data it covers, and read with a volatile load before that data. These are hardware 
+ * barriers, so they order the two sides of the ring across processes as well. Unsafe is
+ * looked up by reflection, as it is not part of the public API; each side only touches
+ * the header once per batch, so the cost of the reflective calls does not matter.
+ * 
+ * The writer holds an exclusive lock on the file for as long as the ring is open, which 
+ * the operating system releases if the writer dies. A reader that can take the lock 
+ * knows that nothing more will be written.
+ */
+class SharedMemoryRing {
+    static final int HEADER_SIZE = 64;
+    private static final int WRITE_POS = 0;
+    private static final int READ_POS = 8;
+    private static final int CLOSED = 16;
+    private static final int RECORD_HEADER = 8;
+
+    private static final Object UNSAFE;
+    private static final Method GET_LONG;
+    private static final Method GET_LONG_VOLATILE;
+    private static final Method PUT_ORDERED_LONG;
+    private static final Method GET_INT_VOLATILE;
+    private static final Method PUT_ORDERED_INT;
+    // of Buffer.address, which holds the address of a direct buffer
+    private static final long ADDRESS_OFFSET;
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = field.get(null);
+            GET_LONG = unsafeClass.getMethod("getLong", Object.class, long.class);
+            GET_LONG_VOLATILE = unsafeClass.getMethod("getLongVolatile", Object.class, long.class);
+            PUT_ORDERED_LONG = unsafeClass.getMethod("putOrderedLong", Object.class, long.class, long.class);
+            GET_INT_VOLATILE = unsafeClass.getMethod("getIntVolatile", Object.class, long.class);
+            PUT_ORDERED_INT = unsafeClass.getMethod("putOrderedInt", Object.class, long.class, int.class);
+            ADDRESS_OFFSET = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                    .invoke(UNSAFE, Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            throw new RuntimeException("Shared memory rings need sun.misc.Unsafe", e);
+        }
+    }
+
+    // files locked by this JVM, which must not be opened to check their lock: closing any
+    // channel of a file drops the locks the process holds on it
+    private static final Set<String> LOCKED_FILES =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int capacity;
+    private final int mask;
+    // local copy of the position owned by this side
+    private long position;
+    // read position last seen by the writer, which only reads it again when that is full
+    private long lastRead;
+    // held by the writer until close()
+    private RandomAccessFile lockedFile;
+    private FileLock lock;
+    // set by the reader once the writer is known to be gone without closing the ring
+    private boolean abandoned = false;
+
+    private SharedMemoryRing(File file, RandomAccessFile raf, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        address = (Long) unsafe(GET_LONG, buffer, ADDRESS_OFFSET);
+    }
+
+    /**
+     * create a new ring for writing. The ring is built and locked under a temporary name 
+     * and then renamed, so a reader never sees a partially initialized or unlocked file.
+     */
+    static SharedMemoryRing create(File file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of 2: " + capacity);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            raf.setLength(HEADER_SIZE + capacity);
+            SharedMemoryRing ring = new SharedMemoryRing(file, raf, capacity);
+            registerLock(file);
+            if (!tmp.renameTo(file)) {
+                unregisterLock(file);
+                throw new IOException("Failed to create ring " + file);
+            }
+            ring.lockedFile = raf;
+            ring.lock = lock;
+            return ring;
+        } catch (IOException e) {
+            raf.close();
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * open an existing ring for reading, picking up from its stored read position
+     */
+    static SharedMemoryRing open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            SharedMemoryRing ring = new SharedMemoryRing(file, raf, (int) (raf.length() - HEADER_SIZE));
+            ring.position = ring.getLong(READ_POS);
+            return ring;
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * @return true if a process holds the lock on file, which is the writer of a ring, or 
+     * the SharedMemoryReceiver of a directory
+     */
+    static boolean isLocked(File file) {
+        if (LOCKED_FILES.contains(file.getAbsolutePath())) {
+            return true;
+        }
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // being locked by this JVM right now
+            return true;
+        } catch (IOException e) {
+            // gone or unreadable, there is nothing to wait for
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignored, the lock check is done
+                }
+            }
+        }
+    }
+
+    /**
+     * record that this JVM holds the lock on file, so that isLocked does not open it
+     */
+    static void registerLock(File file) {
+        LOCKED_FILES.add(file.getAbsolutePath());
+    }
+
+    static void unregisterLock(File file) {
+        LOCKED_FILES.remove(file.getAbsolutePath());
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * # of bytes written and not yet read
+     */
+    long pending() {
+        long read = getLong(READ_POS);
+        return getLong(WRITE_POS) - read;
+    }
+
+    /**
+     * append a message, it is only visible to the reader after publish()
+     * @return false if there is not enough free space
+     */
+    boolean offer(int task, byte[] array, int offset, int length) {
+        int needed = RECORD_HEADER + length;
+        if (needed > capacity) {
+            throw new RuntimeException("Message of " + length + " bytes does not fit into shared memory ring " + file);
+        }
+        // the reader is done with everything before read
+        if (position + needed - lastRead > capacity) {
+            lastRead = getLong(READ_POS);
+            if (position + needed - lastRead > capacity) {
+                return false;
+            }
+        }
+        putInt(position, task);
+        putInt(position + 4, length);
+        put(position + RECORD_HEADER, array, offset, length);
+        position += needed;
+        return true;
+    }
+
+    void publish() {
+        unsafe(PUT_ORDERED_LONG, null, address + WRITE_POS, position);
+    }
+
+    /**
+     * read up to maxBytes worth of messages, and release their space to the writer
+     */
+    List<TaskMessage> poll(int maxBytes) {
+        // everything before write has been written
+        long write = getLong(WRITE_POS);
+        if (write == position) {
+            return null;
+        }
+        List<TaskMessage> msgs = new ArrayList<TaskMessage>();
+        long end = Math.min(write, position + maxBytes);
+        while (position < end) {
+            int task = getInt(position);
+            int length = getInt(position + 4);
+            byte[] payload = new byte[length];
+            get(position + RECORD_HEADER, payload);
+            msgs.add(new TaskMessage(task, payload));
+            position += RECORD_HEADER + length;
+        }
+        unsafe(PUT_ORDERED_LONG, null, address + READ_POS, position);
+        return msgs;
+    }
+
+    /**
+     * mark the ring as closed after the last publish(), and give up the writer's lock
+     */
+    void markClosed() {
+        unsafe(PUT_ORDERED_INT, null, address + CLOSED, 1);
+        if (lock != null) {
+            try {
+                lock.release();
+                lockedFile.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to release shared memory ring " + file, e);
+            } finally {
+                unregisterLock(file);
+            }
+            lock = null;
+        }
+    }
+
+    /**
+     * called by the reader once the writer died without closing the ring. What it 
+     * published before is still read.
+     */
+    void markAbandoned() {
+        abandoned = true;
+    }
+
+    boolean isClosed() {
+        return abandoned || (Integer) unsafe(GET_INT_VOLATILE, null, address + CLOSED) == 1;
+    }
+
+    /**
+     * @return true once the writer has closed the ring or died, and everything has been read
+     */
+    boolean isDrained() {
+        return isClosed() && getLong(WRITE_POS) == position;
+    }
+
+    /**
+     * unmap the ring. It must not be used by this process afterwards, so only the reader, 
+     * which polls it from a single thread, does this. If the JVM offers no way to do so,
+     * the mapping is released when the buffer is garbage collected.
+     */
+    void unmap() {
+        try {
+            // Java 9 and later
+            UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(UNSAFE, buffer);
+            return;
+        } catch (Exception e) {
+            // not available, try the cleaner of the buffer
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    private static Object unsafe(Method method, Object... args) {
+        try {
+            return method.invoke(UNSAFE, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private long getLong(int offset) {
+        return (Long) unsafe(GET_LONG_VOLATILE, null, address + offset);
+    }
+
+    private void putInt(long pos, int value) {
+        int index = (int) (pos & mask);
+        if (index + 4 <= capacity) {
+            buffer.putInt(HEADER_SIZE + index, value);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                buffer.put(HEADER_SIZE + (int) ((pos + i) & mask), (byte) (value >>> (24 - 8 * i)));
+            }
+        }
+    }
+
+    private int getInt(long pos) {
+        int index = (int) (pos & mask);
+        if (index + 4 <= capacity) {
+            return buffer.getInt(HEADER_SIZE + index);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buffer.get(HEADER_SIZE + (int) ((pos + i) & mask)) & 0xff);
+        }
+        return value;
+    }
+
+    private void put(long pos, byte[] array, int offset, int length) {
+        int index = (int) (pos & mask);
+        int first = Math.min(length, capacity - index);
+        buffer.position(HEADER_SIZE + index);
+        buffer.put(array, offset, first);
+        if (first < length) {
+            buffer.position(HEADER_SIZE);
+            buffer.put(array, offset + first, length - first);
+        }
+    }
+
+    private void get(long pos, byte[] dest) {
+        int index = (int) (pos & mask);
+        int first = Math.min(dest.length, capacity - index);
+        buffer.position(HEADER_SIZE + index);
+        buffer.get(dest, 0, first);
+        if (first < dest.length) {
+            buffer.position(HEADER_SIZE);
+            buffer.get(dest, first, dest.length - first);
+        }
+    }
+}
@@ -35,7 +35,7 @@ class StormClientPipelineFactory implements ChannelPipelineFactory {
         // Decoder
         pipeline.addLast("decoder", new MessageDecoder());
         // Encoder
-        pipeline.addLast("encoder", new MessageEncoder());
+        pipeline.addLast("encoder", new MessageEncoder(client.compressor()));
         // business logic.
         pipeline.addLast("handler", new StormClientErrorHandler(client.name()));
 
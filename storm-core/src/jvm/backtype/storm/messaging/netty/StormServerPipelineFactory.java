@@ -34,7 +34,7 @@ class StormServerPipelineFactory implements  ChannelPipelineFactory {
         ChannelPipeline pipeline = Channels.pipeline();
 
         // Decoder
-        pipeline.addLast("decoder", new MessageDecoder());
+        pipeline.addLast("decoder", new MessageDecoder(server.compressor()));
         // Encoder
         pipeline.addLast("encoder", new MessageEncoder());
         // business logic.
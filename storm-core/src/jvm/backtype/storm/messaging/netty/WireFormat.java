@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.messaging.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Framing used on a connection after the client has sent WIRE_FORMAT_V2.
+ *
+ * Version 1 is the original format: a short code that is a task id when it is not
+ * negative, followed by an int length for task messages. It limits task ids to
+ * Short.MAX_VALUE and spends 6 bytes of header on every message.
+ *
+ * Version 2 starts every entry with an unsigned varint tag. Tags below CONTROL_TAGS
+ * are control codes, anything else is (task id + TASK_OFFSET) followed by a varint
+ * payload length and the payload. Task ids from -1 (the shutdown notice, tag
+ * CONTROL_TAGS) up to Integer.MAX_VALUE - TASK_OFFSET fit, and typical headers are
+ * 2-3 bytes.
+ */
+final class WireFormat {
+    static final int V1 = 1;
+    static final int V2 = 2;
+
+    static final int EOB_TAG = 0;
+    static final int COMPRESSED_BATCH_TAG = 1;
+    static final int CONTROL_TAGS = 16;
+    static final int TASK_OFFSET = CONTROL_TAGS + 1;
+
+    private WireFormat() {
+    }
+
+    static int taskTag(int task) {
+        if (task < -1 || task > Integer.MAX_VALUE - TASK_OFFSET)
+            throw new RuntimeException("Task ID " + task + " can not be encoded");
+        return task + TASK_OFFSET;
+    }
+
+    /**
+     * # of bytes in the varint encoding of a non-negative value
+     */
+    static int varIntLength(int value) {
+        if ((value & ~0x7F) == 0) return 1;
+        if ((value & ~0x3FFF) == 0) return 2;
+        if ((value & ~0x1FFFFF) == 0) return 3;
+        if ((value & ~0xFFFFFFF) == 0) return 4;
+        return 5;
+    }
+
+    static void writeVarInt(ChannelBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    /**
+     * @return the value, or -1 if the buffer ends before the varint does
+     */
+    static int readVarInt(ChannelBuffer buf) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buf.readable())
+                return -1;
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new RuntimeException("Malformed varint");
+    }
+}
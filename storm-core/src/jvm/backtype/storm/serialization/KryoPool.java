@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.serialization;
+
+import backtype.storm.Config;
+import com.esotericsoftware.kryo.Kryo;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kryo instances for one topology configuration. The classes named in the configuration are
+ * looked up once, when the pool is created, and every thread gets its own Kryo instance the
+ * first time it asks for one. Kryo instances are not thread safe, so an instance from get()
+ * must only be used on the thread that got it.
+ */
+public class KryoPool {
+    public static final Logger LOG = LoggerFactory.getLogger(KryoPool.class);
+
+    private final Map _conf;
+    private final Class _kryoFactoryClass;
+    private final Class _payloadSerializerClass;
+    private final Map<Class, Class> _registrations = new LinkedHashMap<Class, Class>();
+    private final List<Class> _decorators = new ArrayList<Class>();
+
+    private final ThreadLocal<Kryo> _kryos = new ThreadLocal<Kryo>() {
+        @Override
+        protected Kryo initialValue() {
+            return newKryo();
+        }
+    };
+
+    KryoPool(Map conf) {
+        _conf = conf;
+        try {
+            _kryoFactoryClass = Class.forName((String) conf.get(Config.TOPOLOGY_KRYO_FACTORY));
+            _payloadSerializerClass = Class.forName((String) conf.get(Config.TOPOLOGY_TUPLE_SERIALIZER));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+
+        boolean skipMissing = (Boolean) conf.get(Config.TOPOLOGY_SKIP_MISSING_KRYO_REGISTRATIONS);
+        Map<String, String> registrations = SerializationFactory.normalizeKryoRegister(conf);
+        for(String klassName: registrations.keySet()) {
+            String serializerClassName = registrations.get(klassName);
+            try {
+                Class klass = Class.forName(klassName);
+                Class serializerClass = null;
+                if(serializerClassName!=null)
+                    serializerClass = Class.forName(serializerClassName);
+                _registrations.put(klass, serializerClass);
+            } catch (ClassNotFoundException e) {
+                if(skipMissing) {
+                    LOG.info("Could not find serialization or class for " + serializerClassName + ". Skipping registration...");
+                } else {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        if (conf.get(Config.TOPOLOGY_KRYO_DECORATORS) != null) {
+            for(String klassName : (List<String>)conf.get(Config.TOPOLOGY_KRYO_DECORATORS)) {
+                try {
+                    _decorators.add(Class.forName(klassName));
+                } catch(ClassNotFoundException e) {
+                    if(skipMissing) {
+                        LOG.info("Could not find kryo decorator named " + klassName + ". Skipping registration...");
+                    } else {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the Kryo instance of the current thread
+     */
+    public Kryo get() {
+        return _kryos.get();
+    }
+
+    /**
+     * @return a new, fully registered Kryo instance
+     */
+    public Kryo newKryo() {
+        IKryoFactory kryoFactory;
+        try {
+            kryoFactory = (IKryoFactory) _kryoFactoryClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        Kryo k = kryoFactory.getKryo(_conf);
+        SerializationFactory.register(k, kryoFactory, _payloadSerializerClass, _registrations, _decorators, _conf);
+        return k;
+    }
+}
@@ -17,10 +17,13 @@
  */
 package backtype.storm.serialization;
 
+import backtype.storm.Config;
+import backtype.storm.serialization.types.ListDelegateSerializer;
 import backtype.storm.task.GeneralTopologyContext;
 import backtype.storm.tuple.MessageId;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.TupleImpl;
+import backtype.storm.utils.Utils;
 import backtype.storm.utils.WritableUtils;
 import com.esotericsoftware.kryo.io.Input;
 import java.io.ByteArrayInputStream;
@@ -34,23 +37,47 @@ public class KryoTupleDeserializer implements ITupleDeserializer {
     KryoValuesDeserializer _kryo;
     SerializationFactory.IdDictionary _ids;
     Input _kryoInput;
+    boolean _lazy;
+    boolean _lazyKryo;
     
     public KryoTupleDeserializer(final Map conf, final GeneralTopologyContext context) {
         _kryo = new KryoValuesDeserializer(conf);
         _context = context;
         _ids = new SerializationFactory.IdDictionary(context.getRawTopology());
         _kryoInput = new Input(1);
+        _lazy = Utils.getBoolean(conf.get(Config.TOPOLOGY_TUPLE_LAZY_DESERIALIZATION), false);
+        // values can only be read one at a time in the layout of the default tuple serializer
+        _lazyKryo = _lazy && ListDelegateSerializer.class.getName().equals(conf.get(Config.TOPOLOGY_TUPLE_SERIALIZER));
     }        
 
     public Tuple deserialize(byte[] ser) {
+        return deserialize(ser, 0, ser.length);
+    }
+
+    /**
+     * deserialize a tuple in place from a region of a larger buffer
+     */
+    public Tuple deserialize(byte[] ser, int offset, int length) {
         try {
-            _kryoInput.setBuffer(ser);
+            // kryo treats the last argument as the limit, not a count
+            _kryoInput.setBuffer(ser, offset, offset + length);
             int taskId = _kryoInput.readInt(true);
             int streamId = _kryoInput.readInt(true);
             String componentName = _context.getComponentId(taskId);
             String streamName = _ids.getStreamName(componentName, streamId);
             MessageId id = MessageId.deserialize(_kryoInput);
-            List<Object> values = _kryo.deserializeFrom(_kryoInput);
+            TupleSchema schema = _ids.getSchema(componentName, streamId);
+            List<Object> values;
+            if(schema != null ? _lazy : _lazyKryo) {
+                // ser must not be modified while the tuple is alive
+                int start = _kryoInput.position();
+                int size = schema != null ? schema.size() : _kryoInput.readInt(true);
+                values = new LazyValues(_kryo, schema, ser, start, _kryoInput.position(), offset + length, size);
+            } else if(schema != null) {
+                values = schema.deserializeFrom(_kryoInput);
+            } else {
+                values = _kryo.deserializeFrom(_kryoInput);
+            }
             return new TupleImpl(_context, values, taskId, streamName, id);
         } catch(IOException e) {
             throw new RuntimeException(e);
@@ -21,6 +21,7 @@ import backtype.storm.task.GeneralTopologyContext;
 import backtype.storm.tuple.Tuple;
 import com.esotericsoftware.kryo.io.Output;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 public class KryoTupleSerializer implements ITupleSerializer {
@@ -35,14 +36,30 @@ public class KryoTupleSerializer implements ITupleSerializer {
     }
 
     public byte[] serialize(Tuple tuple) {
+        _kryoOut.clear();
+        serialize(tuple, _kryoOut);
+        return _kryoOut.toBytes();
+    }
+
+    /**
+     * Append the serialized tuple to out, starting at its current position.
+     */
+    public void serialize(Tuple tuple, Output out) {
         try {
-            
-            _kryoOut.clear();
-            _kryoOut.writeInt(tuple.getSourceTask(), true);
-            _kryoOut.writeInt(_ids.getStreamId(tuple.getSourceComponent(), tuple.getSourceStreamId()), true);
-            tuple.getMessageId().serialize(_kryoOut);
-            _kryo.serializeInto(tuple.getValues(), _kryoOut);
-            return _kryoOut.toBytes();
+            String component = tuple.getSourceComponent();
+            int streamId = _ids.getStreamId(component, tuple.getSourceStreamId());
+            out.writeInt(tuple.getSourceTask(), true);
+            out.writeInt(streamId, true);
+            tuple.getMessageId().serialize(out);
+            TupleSchema schema = _ids.getSchema(component, streamId);
+            List<Object> values = tuple.getValues();
+            if(values instanceof LazyValues && ((LazyValues) values).writeEncodedTo(schema, out)) {
+                // forwarded unchanged from a received tuple
+            } else if(schema != null) {
+                schema.serializeInto(values, out);
+            } else {
+                _kryo.serializeInto(values, out);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
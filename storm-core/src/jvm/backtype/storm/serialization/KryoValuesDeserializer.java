@@ -18,7 +18,6 @@
 package backtype.storm.serialization;
 
 import backtype.storm.utils.ListDelegate;
-import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -26,19 +25,27 @@ import java.util.List;
 import java.util.Map;
 
 public class KryoValuesDeserializer {
-    Kryo _kryo;
+    KryoPool _kryo;
     Input _kryoInput;
     
     public KryoValuesDeserializer(Map conf) {
-        _kryo = SerializationFactory.getKryo(conf);
+        _kryo = SerializationFactory.getKryoPool(conf);
         _kryoInput = new Input(1);
     }
     
     public List<Object> deserializeFrom(Input input) {
-    	ListDelegate delegate = (ListDelegate) _kryo.readObject(input, ListDelegate.class);
+    	ListDelegate delegate = (ListDelegate) _kryo.get().readObject(input, ListDelegate.class);
    	return delegate.getDelegate();
     }
     
+    /**
+     * Read one of the values written by KryoValuesSerializer.serializeInto, in starts
+     * after the count of values or the previous value.
+     */
+    public Object deserializeValueFrom(Input input) {
+        return _kryo.get().readClassAndObject(input);
+    }
+
     public List<Object> deserialize(byte[] ser) throws IOException {
         _kryoInput.setBuffer(ser);
         return deserializeFrom(_kryoInput);
@@ -46,6 +53,6 @@ public class KryoValuesDeserializer {
     
     public Object deserializeObject(byte[] ser) throws IOException {
         _kryoInput.setBuffer(ser);
-        return _kryo.readClassAndObject(_kryoInput);
+        return _kryo.get().readClassAndObject(_kryoInput);
     }
 }
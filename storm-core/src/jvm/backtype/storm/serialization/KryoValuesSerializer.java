@@ -18,19 +18,18 @@
 package backtype.storm.serialization;
 
 import backtype.storm.utils.ListDelegate;
-import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 public class KryoValuesSerializer {
-    Kryo _kryo;
+    KryoPool _kryo;
     ListDelegate _delegate;
     Output _kryoOut;
     
     public KryoValuesSerializer(Map conf) {
-        _kryo = SerializationFactory.getKryo(conf);
+        _kryo = SerializationFactory.getKryoPool(conf);
         _delegate = new ListDelegate();
         _kryoOut = new Output(2000, 2000000000);
     }
@@ -41,7 +40,7 @@ public class KryoValuesSerializer {
         // (which have different serializers)
         // Doing this lets us deserialize as ArrayList and avoid writing the class here
         _delegate.setDelegate(values);
-        _kryo.writeObject(out, _delegate); 
+        _kryo.get().writeObject(out, _delegate); 
     }
     
     public byte[] serialize(List<Object> values) throws IOException {
@@ -52,7 +51,7 @@ public class KryoValuesSerializer {
     
     public byte[] serializeObject(Object obj) {
         _kryoOut.clear();
-        _kryo.writeClassAndObject(_kryoOut, obj);
+        _kryo.get().writeClassAndObject(_kryoOut, obj);
         return _kryoOut.toBytes();
     }
 }
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.serialization;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.AbstractList;
+
+/**
+ * The values of a received tuple, decoded from the serialized form on first access.
+ * Values are decoded in order up to the highest index asked for, so a bolt that only
+ * reads the first fields never pays for the rest. If the tuple is re-emitted with the
+ * same values onto a stream with the same encoding, the original bytes are copied
+ * instead of serializing the values again.
+ *
+ * The values keep the buffer they were received in alive until the tuple is dropped.
+ * Decoding may happen on any thread, with that thread's Kryo instance.
+ */
+class LazyValues extends AbstractList<Object> {
+    private final KryoValuesDeserializer _kryo;
+    private final TupleSchema _schema;
+    private final byte[] _buf;
+    // the encoded values are _buf[_start, _end), the first value starts at _position
+    private final int _start;
+    private final int _end;
+    private final Object[] _values;
+    private volatile int _decoded = 0;
+    private int _position;
+
+    /**
+     * @param schema the schema the values were written with, or null if they were written by kryo
+     */
+    LazyValues(KryoValuesDeserializer kryo, TupleSchema schema, byte[] buf, int start, int position, int end, int size) {
+        _kryo = kryo;
+        _schema = schema;
+        _buf = buf;
+        _start = start;
+        _position = position;
+        _end = end;
+        _values = new Object[size];
+    }
+
+    @Override
+    public Object get(int index) {
+        if(index < 0 || index >= _values.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _values.length);
+        }
+        if(index >= _decoded) {
+            decodeThrough(index);
+        }
+        return _values[index];
+    }
+
+    @Override
+    public int size() {
+        return _values.length;
+    }
+
+    private void decodeThrough(int index) {
+        synchronized(this) {
+            int decoded = _decoded;
+            if(index < decoded) return;
+            Input input = new Input();
+            // kryo treats the last argument as the limit, not a count
+            input.setBuffer(_buf, _position, _end);
+            for(int i=decoded; i<=index; i++) {
+                _values[i] = _schema != null ? _schema.deserializeValueFrom(i, input) : _kryo.deserializeValueFrom(input);
+            }
+            _position = input.position();
+            _decoded = index + 1;
+        }
+    }
+
+    /**
+     * Write the original encoding of the values to out, if it is the encoding for schema.
+     * @return false if nothing was written
+     */
+    boolean writeEncodedTo(TupleSchema schema, Output out) {
+        if(schema == null ? _schema != null : !schema.equals(_schema)) {
+            return false;
+        }
+        out.writeBytes(_buf, _start, _end - _start);
+        return true;
+    }
+}
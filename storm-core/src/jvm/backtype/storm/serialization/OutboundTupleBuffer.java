@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.serialization;
+
+import backtype.storm.messaging.TaskMessage;
+import backtype.storm.tuple.Tuple;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.ArrayList;
+
+/**
+ * Serializes the tuples bound for one remote worker back to back into a single
+ * buffer. The resulting TaskMessages are views into that buffer, so no byte[]
+ * is allocated per tuple.
+ * 
+ * A buffer is handed off to the transfer thread once messages() is called and
+ * must not be written to afterwards. It starts out small, as most buffers only
+ * ever hold a tuple or two, and grows with the tuples written to it.
+ */
+public class OutboundTupleBuffer {
+    private static final int INITIAL_SIZE = 256;
+
+    private Output _out;
+    // task and end offset of each tuple, one after the other
+    private int[] _entries;
+    private int _count;
+
+    public OutboundTupleBuffer() {
+        _out = new Output(INITIAL_SIZE, 2000000000);
+        _entries = new int[2];
+    }
+
+    public void add(int task, KryoTupleSerializer serializer, Tuple tuple) {
+        int i = _count * 2;
+        if (i == _entries.length) {
+            int[] entries = new int[i * 2];
+            System.arraycopy(_entries, 0, entries, 0, i);
+            _entries = entries;
+        }
+        serializer.serialize(tuple, _out);
+        _entries[i] = task;
+        _entries[i + 1] = _out.position();
+        _count++;
+    }
+
+    public int size() {
+        return _count;
+    }
+
+    public ArrayList<TaskMessage> messages() {
+        // the kryo buffer may have been reallocated while growing, so the views are only created here
+        byte[] buffer = _out.getBuffer();
+        ArrayList<TaskMessage> msgs = new ArrayList<TaskMessage>(_count);
+        int start = 0;
+        for (int i = 0; i < _count * 2; i += 2) {
+            int end = _entries[i + 1];
+            msgs.add(new TaskMessage(_entries[i], buffer, start, end - start));
+            start = end;
+        }
+        return msgs;
+    }
+}
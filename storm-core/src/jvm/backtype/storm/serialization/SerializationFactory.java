@@ -37,29 +37,88 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class SerializationFactory {
     public static final Logger LOG = LoggerFactory.getLogger(SerializationFactory.class);
 
+    private static final int MAX_CACHED_POOLS = 16;
+    private static final Map<Map, KryoPool> _pools = new LinkedHashMap<Map, KryoPool>(MAX_CACHED_POOLS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Map, KryoPool> eldest) {
+            return size() > MAX_CACHED_POOLS;
+        }
+    };
+
+    /**
+     * Build a new Kryo instance for conf. Prefer getKryoPool(conf).get() for an instance
+     * that is reused by everything serializing on the current thread.
+     */
     public static Kryo getKryo(Map conf) {
-        IKryoFactory kryoFactory = (IKryoFactory) Utils.newInstance((String) conf.get(Config.TOPOLOGY_KRYO_FACTORY));
-        Kryo k = kryoFactory.getKryo(conf);
+        return getKryoPool(conf).newKryo();
+    }
+
+    /**
+     * @return the pool for conf. Pools are cached by the serialization settings of conf, so
+     * every serializer and deserializer created with the same settings shares the same class
+     * lookups and per-thread Kryo instances. The pool only sees those settings: the kryo
+     * registrations, decorators and factory, the tuple serializer, the fallback on java
+     * serialization, skipping missing registrations and the stream field types, along with
+     * anything else under topology.kryo. and topology.tuple.serializer.
+     */
+    public static KryoPool getKryoPool(Map conf) {
+        Map key = serializationConf(conf);
+        synchronized(_pools) {
+            KryoPool pool = _pools.get(key);
+            if(pool != null) return pool;
+        }
+        KryoPool pool = new KryoPool(key);
+        synchronized(_pools) {
+            KryoPool existing = _pools.get(key);
+            if(existing != null) return existing;
+            _pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private static Map serializationConf(Map conf) {
+        Map ret = new HashMap();
+        for(Object o: conf.entrySet()) {
+            Map.Entry entry = (Map.Entry) o;
+            Object name = entry.getKey();
+            if(name instanceof String && isSerializationSetting((String) name)) {
+                ret.put(name, entry.getValue());
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isSerializationSetting(String name) {
+        return name.startsWith("topology.kryo.")
+                || name.startsWith(Config.TOPOLOGY_TUPLE_SERIALIZER)
+                || name.equals(Config.TOPOLOGY_FALL_BACK_ON_JAVA_SERIALIZATION)
+                || name.equals(Config.TOPOLOGY_SKIP_MISSING_KRYO_REGISTRATIONS)
+                || name.equals(Config.TOPOLOGY_STREAM_FIELD_TYPES);
+    }
+
+    /**
+     * Register everything storm needs with k, then the classes named in conf, as looked up by
+     * KryoPool.
+     */
+    static void register(Kryo k, IKryoFactory kryoFactory, Class payloadSerializerClass,
+            Map<Class, Class> registrations, List<Class> decorators, Map conf) {
         k.register(byte[].class);
+        k.register(long[].class);
 
         /* tuple payload serializer is specified via configuration */
-        String payloadSerializerName = (String)conf.get(Config.TOPOLOGY_TUPLE_SERIALIZER);
-        try {
-            Class serializerClass  = Class.forName(payloadSerializerName);
-            Serializer serializer = resolveSerializerInstance(k, ListDelegate.class, serializerClass, conf);
-            k.register(ListDelegate.class, serializer);
-        } catch (ClassNotFoundException ex) {
-            throw new RuntimeException(ex);
-        }
+        Serializer serializer = resolveSerializerInstance(k, ListDelegate.class, payloadSerializerClass, conf);
+        k.register(ListDelegate.class, serializer);
 
         k.register(ArrayList.class, new ArrayListSerializer());
         k.register(HashMap.class, new HashMapSerializer());
@@ -76,62 +135,38 @@ public class SerializationFactory {
             throw new RuntimeException(e);
         }
 
-        Map<String, String> registrations = normalizeKryoRegister(conf);
-
         kryoFactory.preRegister(k, conf);
 
-        boolean skipMissing = (Boolean) conf.get(Config.TOPOLOGY_SKIP_MISSING_KRYO_REGISTRATIONS);
-        for(String klassName: registrations.keySet()) {
-            String serializerClassName = registrations.get(klassName);
-            try {
-                Class klass = Class.forName(klassName);
-                Class serializerClass = null;
-                if(serializerClassName!=null)
-                    serializerClass = Class.forName(serializerClassName);
-                if(serializerClass == null) {
-                    k.register(klass);
-                } else {
-                    k.register(klass, resolveSerializerInstance(k, klass, serializerClass, conf));
-                }
-            } catch (ClassNotFoundException e) {
-                if(skipMissing) {
-                    LOG.info("Could not find serialization or class for " + serializerClassName + ". Skipping registration...");
-                } else {
-                    throw new RuntimeException(e);
-                }
+        for(Map.Entry<Class, Class> registration: registrations.entrySet()) {
+            Class klass = registration.getKey();
+            Class serializerClass = registration.getValue();
+            if(serializerClass == null) {
+                k.register(klass);
+            } else {
+                k.register(klass, resolveSerializerInstance(k, klass, serializerClass, conf));
             }
         }
 
         kryoFactory.postRegister(k, conf);
 
-        if (conf.get(Config.TOPOLOGY_KRYO_DECORATORS) != null) {
-            for(String klassName : (List<String>)conf.get(Config.TOPOLOGY_KRYO_DECORATORS)) {
-                try {
-                    Class klass = Class.forName(klassName);
-                    IKryoDecorator decorator = (IKryoDecorator)klass.newInstance();
-                    decorator.decorate(k);
-                } catch(ClassNotFoundException e) {
-                    if(skipMissing) {
-                        LOG.info("Could not find kryo decorator named " + klassName + ". Skipping registration...");
-                    } else {
-                        throw new RuntimeException(e);
-                    }
-                } catch(InstantiationException e) {
-                    throw new RuntimeException(e);
-                } catch(IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
+        for(Class klass: decorators) {
+            try {
+                IKryoDecorator decorator = (IKryoDecorator)klass.newInstance();
+                decorator.decorate(k);
+            } catch(InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch(IllegalAccessException e) {
+                throw new RuntimeException(e);
             }
         }
 
         kryoFactory.postDecorate(k, conf);
-
-        return k;
     }
 
     public static class IdDictionary {
         Map<String, Map<String, Integer>> streamNametoId = new HashMap<String, Map<String, Integer>>();
         Map<String, Map<Integer, String>> streamIdToName = new HashMap<String, Map<Integer, String>>();
+        Map<String, Map<Integer, TupleSchema>> streamIdToSchema = new HashMap<String, Map<Integer, TupleSchema>>();
 
         public IdDictionary(StormTopology topology) {
             List<String> componentNames = new ArrayList<String>(topology.get_spouts().keySet());
@@ -143,6 +178,7 @@ public class SerializationFactory {
                 List<String> streams = new ArrayList<String>(common.get_streams().keySet());
                 streamNametoId.put(name, idify(streams));
                 streamIdToName.put(name, Utils.reverseMap(streamNametoId.get(name)));
+                streamIdToSchema.put(name, schemas(common, streamNametoId.get(name)));
             }
         }
 
@@ -154,6 +190,25 @@ public class SerializationFactory {
             return streamIdToName.get(component).get(stream);
         }
 
+        /**
+         * @return the schema of a stream declared with TypedFields, or null
+         */
+        public TupleSchema getSchema(String component, int stream) {
+            return streamIdToSchema.get(component).get(stream);
+        }
+
+        private static Map<Integer, TupleSchema> schemas(ComponentCommon common, Map<String, Integer> streamIds) {
+            Map<Integer, TupleSchema> ret = new HashMap<Integer, TupleSchema>();
+            if(!common.is_set_json_conf()) return ret;
+            Map conf = (Map) JSONValue.parse(common.get_json_conf());
+            Map<String, List<String>> types = conf == null ? null : (Map<String, List<String>>) conf.get(Config.TOPOLOGY_STREAM_FIELD_TYPES);
+            if(types == null) return ret;
+            for(Map.Entry<String, List<String>> entry: types.entrySet()) {
+                ret.put(streamIds.get(entry.getKey()), TupleSchema.fromTypeNames(entry.getValue()));
+            }
+            return ret;
+        }
+
         private static Map<String, Integer> idify(List<String> names) {
             Collections.sort(names);
             Map<String, Integer> ret = new HashMap<String, Integer>();
@@ -201,7 +256,7 @@ public class SerializationFactory {
         }
     }
 
-    private static Map<String, String> normalizeKryoRegister(Map conf) {
+    static Map<String, String> normalizeKryoRegister(Map conf) {
         // TODO: de-duplicate this logic with the code in nimbus
         Object res = conf.get(Config.TOPOLOGY_KRYO_REGISTER);
         if(res==null) return new TreeMap<String, String>();
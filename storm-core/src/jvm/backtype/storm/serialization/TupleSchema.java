@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.serialization;
+
+import backtype.storm.tuple.TypedFields;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Positional encoding of the values of a stream declared with TypedFields. Each value
+ * is written in the form fixed by its declared type, so no class tags are needed:
+ *  INT, LONG ... zigzag varint
+ *  FLOAT, DOUBLE, BOOLEAN ... fixed width
+ *  STRING ... kryo string, may be null
+ *  BYTES ... varint (length + 1, or 0 for null), bytes
+ */
+public class TupleSchema {
+    private final TypedFields.Type[] _types;
+
+    public TupleSchema(List<TypedFields.Type> types) {
+        _types = types.toArray(new TypedFields.Type[types.size()]);
+    }
+
+    /**
+     * @param typeNames names of TypedFields.Type values, as stored under
+     *        Config.TOPOLOGY_STREAM_FIELD_TYPES
+     */
+    public static TupleSchema fromTypeNames(List<String> typeNames) {
+        List<TypedFields.Type> types = new ArrayList<TypedFields.Type>(typeNames.size());
+        for(String name: typeNames) {
+            types.add(TypedFields.Type.valueOf(name));
+        }
+        return new TupleSchema(types);
+    }
+
+    public int size() {
+        return _types.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TupleSchema && Arrays.equals(_types, ((TupleSchema) other)._types);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(_types);
+    }
+
+    public void serializeInto(List<Object> values, Output out) {
+        if(values.size() != _types.length) {
+            throw new IllegalArgumentException("Expected " + _types.length + " values but got " + values.size());
+        }
+        for(int i=0; i<_types.length; i++) {
+            Object value = values.get(i);
+            try {
+                write(_types[i], value, out);
+            } catch(ClassCastException e) {
+                throw new IllegalArgumentException(mismatch(i, value), e);
+            } catch(NullPointerException e) {
+                throw new IllegalArgumentException(mismatch(i, value), e);
+            }
+        }
+    }
+
+    /**
+     * Checks values against the declared types without encoding them, so a wrong value
+     * is rejected when it is emitted whether or not the tuple is ever serialized.
+     */
+    public void validate(List<Object> values) {
+        if(values.size() != _types.length) {
+            throw new IllegalArgumentException("Expected " + _types.length + " values but got " + values.size());
+        }
+        for(int i=0; i<_types.length; i++) {
+            Object value = values.get(i);
+            if(!accepts(_types[i], value)) {
+                throw new IllegalArgumentException(mismatch(i, value));
+            }
+        }
+    }
+
+    private static boolean accepts(TypedFields.Type type, Object value) {
+        switch(type) {
+            case INT:
+                return value instanceof Integer;
+            case LONG:
+                return value instanceof Long;
+            case FLOAT:
+                return value instanceof Float;
+            case DOUBLE:
+                return value instanceof Double;
+            case BOOLEAN:
+                return value instanceof Boolean;
+            case STRING:
+                return value == null || value instanceof String;
+            case BYTES:
+                return value == null || value instanceof byte[];
+            default:
+                return false;
+        }
+    }
+
+    private String mismatch(int index, Object value) {
+        return "Value " + index + " is declared as " + _types[index] + " but was " +
+                (value == null ? "null" : value.getClass().getName());
+    }
+
+    private static void write(TypedFields.Type type, Object value, Output out) {
+        switch(type) {
+            case INT:
+                out.writeInt((Integer) value, false);
+                break;
+            case LONG:
+                out.writeLong((Long) value, false);
+                break;
+            case FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case STRING:
+                out.writeString((String) value);
+                break;
+            case BYTES:
+                byte[] bytes = (byte[]) value;
+                if(bytes == null) {
+                    out.writeInt(0, true);
+                } else {
+                    out.writeInt(bytes.length + 1, true);
+                    out.writeBytes(bytes);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    public List<Object> deserializeFrom(Input in) {
+        List<Object> values = new ArrayList<Object>(_types.length);
+        for(TypedFields.Type type: _types) {
+            values.add(read(type, in));
+        }
+        return values;
+    }
+
+    /**
+     * Read the index'th value, in starts at the beginning of its encoding.
+     */
+    public Object deserializeValueFrom(int index, Input in) {
+        return read(_types[index], in);
+    }
+
+    private static Object read(TypedFields.Type type, Input in) {
+        switch(type) {
+            case INT:
+                return in.readInt(false);
+            case LONG:
+                return in.readLong(false);
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING:
+                return in.readString();
+            case BYTES:
+                int length = in.readInt(true);
+                return length == 0 ? null : in.readBytes(length - 1);
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+}
@@ -18,5 +18,9 @@
 package backtype.storm.topology;
 
 public interface BoltDeclarer extends InputDeclarer<BoltDeclarer>, ComponentConfigurationDeclarer<BoltDeclarer> {
-    
+    /**
+     * Run this bolt in the threads of the component it reads from, where possible. See
+     * Config.TOPOLOGY_FUSE_WITH_INPUT.
+     */
+    BoltDeclarer fuseWithInput();
 }
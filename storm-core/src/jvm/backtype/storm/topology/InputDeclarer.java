@@ -45,6 +45,14 @@ public interface InputDeclarer<T extends InputDeclarer> {
     public T directGrouping(String componentId);
     public T directGrouping(String componentId, String streamId);
 
+    /**
+     * Like fieldsGrouping, but tuples are assigned to tasks with a consistent hash, so
+     * only a small share of the keys move to other tasks when the number of tasks changes.
+     * See ConsistentHashGrouping.
+     */
+    public T consistentHashGrouping(String componentId, Fields fields);
+    public T consistentHashGrouping(String componentId, String streamId, Fields fields);
+
     public T customGrouping(String componentId, CustomStreamGrouping grouping);
     public T customGrouping(String componentId, String streamId, CustomStreamGrouping grouping);
     
@@ -19,12 +19,16 @@ package backtype.storm.topology;
 
 import backtype.storm.generated.StreamInfo;
 import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.TypedFields;
 import backtype.storm.utils.Utils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class OutputFieldsGetter implements OutputFieldsDeclarer {
     private Map<String, StreamInfo> _fields = new HashMap<String, StreamInfo>();
+    private Map<String, List<String>> _types = new HashMap<String, List<String>>();
 
     public void declare(Fields fields) {
         declare(false, fields);
@@ -43,6 +47,13 @@ public class OutputFieldsGetter implements OutputFieldsDeclarer {
             throw new IllegalArgumentException("Fields for " + streamId + " already set");
         }
         _fields.put(streamId, new StreamInfo(fields.toList(), direct));
+        if(fields instanceof TypedFields) {
+            List<String> types = new ArrayList<String>();
+            for(TypedFields.Type type: ((TypedFields) fields).getTypes()) {
+                types.add(type.name());
+            }
+            _types.put(streamId, types);
+        }
     }
 
 
@@ -50,4 +61,11 @@ public class OutputFieldsGetter implements OutputFieldsDeclarer {
         return _fields;
     }
 
+    /**
+     * @return the value types of the streams declared with TypedFields, by stream id
+     */
+    public Map<String, List<String>> getFieldTypes() {
+        return _types;
+    }
+
 }
\ No newline at end of file
@@ -27,6 +27,7 @@ import backtype.storm.generated.NullStruct;
 import backtype.storm.generated.SpoutSpec;
 import backtype.storm.generated.StateSpoutSpec;
 import backtype.storm.generated.StormTopology;
+import backtype.storm.grouping.ConsistentHashGrouping;
 import backtype.storm.grouping.CustomStreamGrouping;
 import backtype.storm.tuple.Fields;
 import backtype.storm.utils.Utils;
@@ -225,6 +226,11 @@ public class TopologyBuilder {
         OutputFieldsGetter getter = new OutputFieldsGetter();
         component.declareOutputFields(getter);
         ret.set_streams(getter.getFieldsDeclaration());
+        if(!getter.getFieldTypes().isEmpty()) {
+            Map types = new HashMap();
+            types.put(Config.TOPOLOGY_STREAM_FIELD_TYPES, getter.getFieldTypes());
+            ret.set_json_conf(mergeIntoJson(parseJson(ret.get_json_conf()), types));
+        }
         return ret;        
     }
     
@@ -330,6 +336,21 @@ public class TopologyBuilder {
             return this;
         }
 
+        @Override
+        public BoltDeclarer consistentHashGrouping(String componentId, Fields fields) {
+            return consistentHashGrouping(componentId, Utils.DEFAULT_STREAM_ID, fields);
+        }
+
+        @Override
+        public BoltDeclarer consistentHashGrouping(String componentId, String streamId, Fields fields) {
+            return customGrouping(componentId, streamId, new ConsistentHashGrouping(fields));
+        }
+
+        @Override
+        public BoltDeclarer fuseWithInput() {
+            return addConfiguration(Config.TOPOLOGY_FUSE_WITH_INPUT, true);
+        }
+
         @Override
         public BoltDeclarer customGrouping(String componentId, CustomStreamGrouping grouping) {
             return customGrouping(componentId, Utils.DEFAULT_STREAM_ID, grouping);
@@ -27,6 +27,7 @@ import backtype.storm.coordination.CoordinatedBolt.SourceArgs;
 import backtype.storm.generated.GlobalStreamId;
 import backtype.storm.generated.Grouping;
 import backtype.storm.generated.StormTopology;
+import backtype.storm.grouping.ConsistentHashGrouping;
 import backtype.storm.grouping.CustomStreamGrouping;
 import backtype.storm.topology.BaseConfigurationDeclarer;
 import backtype.storm.topology.BasicBoltExecutor;
@@ -449,6 +450,21 @@ public class TransactionalTopologyBuilder {
             return this;
         }
         
+        @Override
+        public BoltDeclarer consistentHashGrouping(String component, Fields fields) {
+            return customGrouping(component, new ConsistentHashGrouping(fields));
+        }
+
+        @Override
+        public BoltDeclarer consistentHashGrouping(String component, String streamId, Fields fields) {
+            return customGrouping(component, streamId, new ConsistentHashGrouping(fields));
+        }
+
+        @Override
+        public BoltDeclarer fuseWithInput() {
+            return addConfiguration(Config.TOPOLOGY_FUSE_WITH_INPUT, true);
+        }
+
         @Override
         public BoltDeclarer customGrouping(final String component, final CustomStreamGrouping grouping) {
             addDeclaration(new InputDeclaration() {
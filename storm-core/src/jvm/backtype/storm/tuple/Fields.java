@@ -53,6 +53,38 @@ public class Fields implements Iterable<String>, Serializable {
         return ret;
     }
 
+    /**
+     * Returns the positions of the selector's fields, for use with select(int[], List)
+     * and selectHashCode on every tuple without looking up field names.
+     */
+    public int[] selectorIndices(Fields selector) {
+        int[] ret = new int[selector.size()];
+        for(int i=0; i<ret.length; i++) {
+            ret[i] = fieldIndex(selector.get(i));
+        }
+        return ret;
+    }
+
+    public static List<Object> select(int[] indices, List<Object> tuple) {
+        List<Object> ret = new ArrayList<Object>(indices.length);
+        for(int i: indices) {
+            ret.add(tuple.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * Same as select(indices, tuple).hashCode(), without building the list.
+     */
+    public static int selectHashCode(int[] indices, List<Object> tuple) {
+        int hash = 1;
+        for(int i: indices) {
+            Object value = tuple.get(i);
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+
     public List<String> toList() {
         return new ArrayList<String>(_fields);
     }
@@ -17,25 +17,40 @@
  */
 package backtype.storm.tuple;
 
-import backtype.storm.utils.Utils;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 
+/**
+ * The anchors (root ids) of a tuple, each with the xor of the edge ids it carries for
+ * that root. Almost every tuple has zero or one anchor, so those cases are stored without
+ * any collection: unanchored ids share one instance, a single anchor is kept inline, and
+ * only tuples with several anchors get an array of (anchor, id) pairs.
+ */
 public class MessageId {
-    private Map<Long, Long> _anchorsToIds;
-    
+    private static final long[] NO_PAIRS = new long[0];
+    private static final MessageId UNANCHORED = new MessageId(NO_PAIRS, 0);
+
+    private final int _size;
+    // the only anchor when _size == 1
+    private final long _anchor;
+    private final long _id;
+    // anchor, id, anchor, id, ... when _size > 1
+    private final long[] _pairs;
+
     public static long generateId(Random rand) {
         return rand.nextLong();
     }
 
     public static MessageId makeUnanchored() {
-        return makeId(new HashMap<Long, Long>());
+        return UNANCHORED;
     }
         
     public static MessageId makeId(Map<Long, Long> anchorsToIds) {
@@ -43,32 +58,118 @@ public class MessageId {
     }
         
     public static MessageId makeRootId(long id, long val) {
-        Map<Long, Long> anchorsToIds = new HashMap<Long, Long>();
-        anchorsToIds.put(id, val);
-        return new MessageId(anchorsToIds);
+        return new MessageId(id, val);
     }
     
     protected MessageId(Map<Long, Long> anchorsToIds) {
-        _anchorsToIds = anchorsToIds;
+        _size = anchorsToIds.size();
+        if (_size == 1) {
+            Entry<Long, Long> anchorToId = anchorsToIds.entrySet().iterator().next();
+            _anchor = anchorToId.getKey();
+            _id = anchorToId.getValue();
+            _pairs = NO_PAIRS;
+        } else {
+            _anchor = 0;
+            _id = 0;
+            _pairs = new long[_size * 2];
+            int i = 0;
+            for (Entry<Long, Long> anchorToId: anchorsToIds.entrySet()) {
+                _pairs[i++] = anchorToId.getKey();
+                _pairs[i++] = anchorToId.getValue();
+            }
+        }
+    }
+
+    private MessageId(long anchor, long id) {
+        _size = 1;
+        _anchor = anchor;
+        _id = id;
+        _pairs = NO_PAIRS;
+    }
+
+    private MessageId(long[] pairs, int size) {
+        _size = size;
+        _anchor = 0;
+        _id = 0;
+        _pairs = pairs;
+    }
+
+    /**
+     * @return the number of anchors
+     */
+    public int anchorCount() {
+        return _size;
     }
 
+    /**
+     * @return the index'th anchor, for 0 <= index < anchorCount()
+     */
+    public long getAnchor(int index) {
+        return _size == 1 ? _anchor : _pairs[index * 2];
+    }
+
+    /**
+     * @return the id for the index'th anchor, for 0 <= index < anchorCount()
+     */
+    public long getId(int index) {
+        return _size == 1 ? _id : _pairs[index * 2 + 1];
+    }
+
+    /**
+     * Builds a new map on every call, use anchorCount, getAnchor and getId on hot paths.
+     */
     public Map<Long, Long> getAnchorsToIds() {
-        return _anchorsToIds;
+        Map<Long, Long> anchorsToIds = new HashMap<Long, Long>();
+        for (int i = 0; i < _size; i++) {
+            anchorsToIds.put(getAnchor(i), getId(i));
+        }
+        return anchorsToIds;
     }
 
+    /**
+     * Builds a new set on every call, use anchorCount and getAnchor on hot paths.
+     */
     public Set<Long> getAnchors() {
-        return _anchorsToIds.keySet();
-    }    
+        Set<Long> anchors = new HashSet<Long>();
+        for (int i = 0; i < _size; i++) {
+            anchors.add(getAnchor(i));
+        }
+        return anchors;
+    }
+
+    private int indexOf(long anchor) {
+        for (int i = 0; i < _size; i++) {
+            if (getAnchor(i) == anchor) return i;
+        }
+        return -1;
+    }
     
+    /**
+     * Same as the hashCode of the equivalent getAnchorsToIds() map.
+     */
     @Override
     public int hashCode() {
-        return _anchorsToIds.hashCode();
+        int hash = 0;
+        for (int i = 0; i < _size; i++) {
+            hash += hashLong(getAnchor(i)) ^ hashLong(getId(i));
+        }
+        return hash;
+    }
+
+    private static int hashLong(long value) {
+        return (int) (value ^ (value >>> 32));
     }
 
     @Override
     public boolean equals(Object other) {
         if(other instanceof MessageId) {
-            return _anchorsToIds.equals(((MessageId) other)._anchorsToIds);
+            MessageId o = (MessageId) other;
+            if (_size != o._size) return false;
+            for (int i = 0; i < _size; i++) {
+                int j = o.indexOf(getAnchor(i));
+                if (j < 0 || o.getId(j) != getId(i)) return false;
+            }
+            return true;
         } else {
             return false;
         }
@@ -76,23 +177,74 @@ public class MessageId {
 
     @Override
     public String toString() {
-        return _anchorsToIds.toString();
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < _size; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(getAnchor(i)).append('=').append(getId(i));
+        }
+        return sb.append('}').toString();
     }
 
     public void serialize(Output out) throws IOException {
-        out.writeInt(_anchorsToIds.size(), true);
-        for(Entry<Long, Long> anchorToId: _anchorsToIds.entrySet()) {
-            out.writeLong(anchorToId.getKey());
-            out.writeLong(anchorToId.getValue());
+        out.writeInt(_size, true);
+        for (int i = 0; i < _size; i++) {
+            out.writeLong(getAnchor(i));
+            out.writeLong(getId(i));
         }
     }
 
     public static MessageId deserialize(Input in) throws IOException {
         int numAnchors = in.readInt(true);
-        Map<Long, Long> anchorsToIds = new HashMap<Long, Long>();
-        for(int i=0; i<numAnchors; i++) {
-            anchorsToIds.put(in.readLong(), in.readLong());
+        if (numAnchors == 0) {
+            return UNANCHORED;
+        } else if (numAnchors == 1) {
+            return new MessageId(in.readLong(), in.readLong());
+        }
+        long[] pairs = new long[numAnchors * 2];
+        for(int i=0; i<pairs.length; i++) {
+            pairs[i] = in.readLong();
+        }
+        return new MessageId(pairs, numAnchors);
+    }
+
+    /**
+     * Accumulates the anchors of a new tuple, xor-ing together the ids added for
+     * the same anchor. build() hands over the accumulated anchors and resets the builder.
+     */
+    public static class Builder {
+        private long[] _pairs = NO_PAIRS;
+        private int _size = 0;
+
+        public Builder xor(long anchor, long id) {
+            for (int i = 0; i < _size; i++) {
+                if (_pairs[i * 2] == anchor) {
+                    _pairs[i * 2 + 1] ^= id;
+                    return this;
+                }
+            }
+            if (_size * 2 == _pairs.length) {
+                _pairs = Arrays.copyOf(_pairs, Math.max(4, _pairs.length * 2));
+            }
+            _pairs[_size * 2] = anchor;
+            _pairs[_size * 2 + 1] = id;
+            _size++;
+            return this;
+        }
+
+        public MessageId build() {
+            if (_size == 0) {
+                return UNANCHORED;
+            }
+            MessageId id;
+            if (_size == 1) {
+                // the pair is copied out, so the array is kept for the next id
+                id = new MessageId(_pairs[0], _pairs[1]);
+            } else {
+                id = new MessageId(_pairs, _size);
+                _pairs = NO_PAIRS;
+            }
+            _size = 0;
+            return id;
         }
-        return new MessageId(anchorsToIds);
     }
-}
\ No newline at end of file
+}
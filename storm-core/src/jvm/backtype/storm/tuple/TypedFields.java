@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fields that also declare the type of each value. Streams declared with TypedFields
+ * are serialized positionally, without a Kryo class tag per value. Values must be
+ * non-null instances of the declared type, except STRING and BYTES values which may
+ * be null.
+ */
+public class TypedFields extends Fields {
+    public enum Type {
+        INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING, BYTES
+    }
+
+    private List<Type> _types;
+
+    public TypedFields(String[] fields, Type... types) {
+        this(Arrays.asList(fields), Arrays.asList(types));
+    }
+
+    public TypedFields(List<String> fields, List<Type> types) {
+        super(fields);
+        if(fields.size() != types.size()) {
+            throw new IllegalArgumentException("Got " + types.size() + " types for " + fields.size() + " fields");
+        }
+        _types = new ArrayList<Type>(types);
+    }
+
+    public Type getType(int index) {
+        return _types.get(index);
+    }
+
+    public List<Type> getTypes() {
+        return new ArrayList<Type>(_types);
+    }
+}
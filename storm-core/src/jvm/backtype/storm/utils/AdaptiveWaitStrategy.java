@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.utils;
+
+import backtype.storm.metric.api.IStatefulObject;
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.util.Util;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A wait strategy that spins, then yields, then parks until it is signalled, and adapts how
+ * long it spins and yields to how the waits of its queue have been ending. Waits that end
+ * while spinning mean tuples arrive faster than a context switch, so the budgets grow; waits
+ * that end parked mean the queue is mostly idle, so they shrink and the consumer stops burning
+ * a core. Each queue needs its own instance, as the budgets are only updated by its consumer.
+ */
+public class AdaptiveWaitStrategy implements WaitStrategy, IStatefulObject {
+    static final int MAX_SPINS = 1 << 14;
+    static final int MIN_SPINS = 16;
+    static final int MAX_YIELDS = 1 << 8;
+    static final int MIN_YIELDS = 1;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition processorNotifyCondition = lock.newCondition();
+    private volatile int numWaiters = 0;
+
+    private volatile int spins = MAX_SPINS;
+    private volatile int yields = MAX_YIELDS;
+
+    private final AtomicLong spun = new AtomicLong();
+    private final AtomicLong yielded = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+
+    @Override
+    public long waitFor(long sequence, Sequence cursor, Sequence[] dependents, SequenceBarrier barrier)
+            throws AlertException, InterruptedException {
+        return waitFor(sequence, cursor, dependents, barrier, -1);
+    }
+
+    @Override
+    public long waitFor(long sequence, Sequence cursor, Sequence[] dependents, SequenceBarrier barrier,
+            long timeout, TimeUnit unit) throws AlertException, InterruptedException {
+        return waitFor(sequence, cursor, dependents, barrier, unit.toNanos(timeout));
+    }
+
+    /**
+     * @param timeoutNanos negative to wait until sequence is available
+     */
+    private long waitFor(long sequence, Sequence cursor, Sequence[] dependents, SequenceBarrier barrier,
+            long timeoutNanos) throws AlertException, InterruptedException {
+        long available = waitForCursor(sequence, cursor, barrier, timeoutNanos);
+        if (dependents.length != 0) {
+            while ((available = Util.getMinimumSequence(dependents)) < sequence) {
+                barrier.checkAlert();
+            }
+        }
+        return available;
+    }
+
+    private long waitForCursor(long sequence, Sequence cursor, SequenceBarrier barrier, long timeoutNanos)
+            throws AlertException, InterruptedException {
+        long available;
+        int spinBudget = spins;
+        for (int i = 0; i < spinBudget; i++) {
+            if ((available = cursor.get()) >= sequence) {
+                spun.incrementAndGet();
+                spins = Math.min(MAX_SPINS, spinBudget << 1);
+                yields = Math.min(MAX_YIELDS, yields << 1);
+                return available;
+            }
+            barrier.checkAlert();
+        }
+
+        long start = timeoutNanos < 0 ? 0 : System.nanoTime();
+        int yieldBudget = yields;
+        for (int i = 0; i < yieldBudget; i++) {
+            if ((available = cursor.get()) >= sequence) {
+                yielded.incrementAndGet();
+                return available;
+            }
+            barrier.checkAlert();
+            Thread.yield();
+        }
+
+        parked.incrementAndGet();
+        spins = Math.max(MIN_SPINS, spinBudget >> 1);
+        yields = Math.max(MIN_YIELDS, yieldBudget >> 1);
+        if (timeoutNanos >= 0) {
+            timeoutNanos -= System.nanoTime() - start;
+            // spinning and yielding may use up a short timeout, don't park as if untimed
+            if (timeoutNanos <= 0) {
+                return cursor.get();
+            }
+        }
+        lock.lock();
+        try {
+            ++numWaiters;
+            while ((available = cursor.get()) < sequence) {
+                barrier.checkAlert();
+                if (timeoutNanos < 0) {
+                    processorNotifyCondition.await();
+                } else {
+                    timeoutNanos = processorNotifyCondition.awaitNanos(timeoutNanos);
+                    if (timeoutNanos <= 0) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            --numWaiters;
+            lock.unlock();
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        if (numWaiters != 0) {
+            lock.lock();
+            try {
+                processorNotifyCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the current budgets, and how many waits have ended in each phase
+     */
+    @Override
+    public Object getState() {
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put("wait_spin_budget", spins);
+        state.put("wait_yield_budget", yields);
+        state.put("wait_spun", spun.get());
+        state.put("wait_yielded", yielded.get());
+        state.put("wait_parked", parked.get());
+        return state;
+    }
+}
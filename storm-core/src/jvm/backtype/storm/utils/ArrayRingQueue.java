@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.utils;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single consumer queue over a plain array of slots, in the style of the JCTools array
+ * queues. With several producers, a producer claims slots by advancing the producer index
+ * with a CAS and then fills them, and the consumer waits for a claimed slot to be filled.
+ * With one producer, the producer fills the slots and then moves the index past them, which
+ * needs no CAS. The consumer spins briefly when the queue is empty, then parks until a
+ * producer wakes it.
+ *
+ * Like DisruptorQueue, objects published before consumerStarted() go to an unbounded cache,
+ * so nothing waits for space before there is a consumer. Unlike it, the consumer hands
+ * the cache to its handler itself, ahead of the objects in the array, so single producer
+ * queues cache as well without a second producer flushing the cache into the array.
+ */
+public class ArrayRingQueue implements IRingQueue {
+    static final Object INTERRUPT = new Object();
+
+    static final int SPINS = 1 << 10;
+    static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static String PREFIX = "array-";
+
+    private final String _queueName;
+    private final boolean _multiProducer;
+    private final AtomicReferenceArray<Object> _buffer;
+    private final int _mask;
+    // next slot to be claimed
+    private final AtomicLong _producer = new AtomicLong();
+    // next slot to be consumed, only written by the consumer
+    private final AtomicLong _consumer = new AtomicLong();
+    // the consumer, while it is parked
+    private volatile Thread _waiter;
+
+    volatile boolean consumerStartedFlag = false;
+    ConcurrentLinkedQueue<Object> _cache = new ConcurrentLinkedQueue<Object>();
+
+    /**
+     * @param bufferSize rounded up to a power of 2
+     * @param multiProducer false if only one thread ever publishes to the queue
+     */
+    public ArrayRingQueue(String queueName, int bufferSize, boolean multiProducer) {
+        _queueName = PREFIX + queueName;
+        _multiProducer = multiProducer;
+        int size = 1;
+        while(size < bufferSize) {
+            size <<= 1;
+        }
+        _buffer = new AtomicReferenceArray<Object>(size);
+        _mask = size - 1;
+    }
+
+    public String getName() {
+        return _queueName;
+    }
+
+    public void consumeBatch(EventHandler<Object> handler) {
+        consumeBatchToCursor(_producer.get(), handler);
+    }
+
+    public void haltWithInterrupt() {
+        publish(INTERRUPT);
+    }
+
+    public void consumeBatchWhenAvailable(EventHandler<Object> handler) {
+        long consumed = _consumer.get();
+        long available = _producer.get();
+        if(available == consumed && _cache.isEmpty()) {
+            available = waitFor(consumed);
+        }
+        consumeBatchToCursor(available, handler);
+    }
+
+    private long waitFor(long consumed) {
+        long available;
+        for(int i = 0; i < SPINS; i++) {
+            if((available = _producer.get()) > consumed) {
+                return available;
+            }
+        }
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        _waiter = Thread.currentThread();
+        try {
+            while((available = _producer.get()) == consumed) {
+                long left = deadline - System.nanoTime();
+                if(left <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, left);
+                if(Thread.interrupted()) {
+                    throw new RuntimeException(new InterruptedException("Interrupted while waiting on " + _queueName));
+                }
+            }
+        } finally {
+            _waiter = null;
+        }
+        return available;
+    }
+
+    /**
+     * Cached objects go first. A producer caches before it publishes to the array, so
+     * everything it cached before the slots up to cursor is in the cache by now.
+     * @param cursor one past the last slot to consume
+     */
+    private void consumeBatchToCursor(long cursor, EventHandler<Object> handler) {
+        long next = _consumer.get();
+        try {
+            if(!_cache.isEmpty()) {
+                Object c = _cache.poll();
+                while(c != null) {
+                    Object following = _cache.poll();
+                    onEvent(handler, c, next, following == null && next == cursor);
+                    c = following;
+                }
+            }
+            while(next < cursor) {
+                final long curr = next++;
+                final int i = (int) curr & _mask;
+                Object o;
+                // claimed, but not filled yet
+                while((o = _buffer.get(i)) == null) {
+                }
+                _buffer.lazySet(i, null);
+                onEvent(handler, o, curr, next == cursor);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            _consumer.lazySet(next);
+        }
+    }
+
+    private static void onEvent(EventHandler<Object> handler, Object o, long sequence, boolean endOfBatch) throws Exception {
+        if(o==INTERRUPT) {
+            throw new InterruptedException("Array queue processing interrupted");
+        }
+        handler.onEvent(o, sequence, endOfBatch);
+    }
+
+    /*
+     * Caches until consumerStarted is called, upon which the consumer takes the cache first
+     */
+    public void publish(Object obj) {
+        try {
+            publish(obj, true);
+        } catch (InsufficientCapacityException ex) {
+            throw new RuntimeException("This code should be unreachable!");
+        }
+    }
+
+    public void tryPublish(Object obj) throws InsufficientCapacityException {
+        publish(obj, false);
+    }
+
+    public void publish(Object obj, boolean block) throws InsufficientCapacityException {
+        if(consumerStartedFlag) {
+            final long id = claim(1, block);
+            _buffer.lazySet((int) id & _mask, obj);
+            published(id + 1);
+        } else {
+            _cache.add(obj);
+        }
+    }
+
+    /*
+     * Claims as many slots at a time as the buffer holds rather than one per object.
+     */
+    public void publishBatch(List<?> objs) {
+        if(consumerStartedFlag) {
+            final int bufferSize = _buffer.length();
+            for(int from = 0; from < objs.size(); from += bufferSize) {
+                final int n = Math.min(bufferSize, objs.size() - from);
+                long id;
+                try {
+                    id = claim(n, true);
+                } catch (InsufficientCapacityException ex) {
+                    throw new RuntimeException("This code should be unreachable!");
+                }
+                for(int i = from; i < from + n; i++) {
+                    _buffer.lazySet((int) id++ & _mask, objs.get(i));
+                }
+                published(id);
+            }
+        } else {
+            _cache.addAll(objs);
+        }
+    }
+
+    /**
+     * @return the first of n free slots. With several producers, they are claimed already
+     */
+    private long claim(int n, boolean block) throws InsufficientCapacityException {
+        final int bufferSize = _buffer.length();
+        while(true) {
+            final long id = _producer.get();
+            if(id + n - _consumer.get() <= bufferSize) {
+                if(!_multiProducer || _producer.compareAndSet(id, id + n)) {
+                    return id;
+                }
+            } else if(block) {
+                Thread.yield();
+            } else {
+                throw InsufficientCapacityException.INSTANCE;
+            }
+        }
+    }
+
+    /**
+     * @param end one past the last slot filled
+     */
+    private void published(long end) {
+        if(!_multiProducer) {
+            _producer.set(end);
+        }
+        Thread waiter = _waiter;
+        if(waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public void consumerStarted() {
+        consumerStartedFlag = true;
+    }
+
+    public long  population() { return (writePos() - readPos()); }
+    public long  capacity()   { return _buffer.length(); }
+    public long  writePos()   { return _producer.get(); }
+    public long  readPos()    { return _consumer.get(); }
+    public float pctFull()    { return (1.0F * population() / capacity()); }
+
+    @Override
+    public Object getState() {
+        Map state = new HashMap<String, Object>();
+        // get readPos then writePos so it's never an under-estimate
+        long rp = readPos();
+        long wp = writePos();
+        state.put("capacity",   capacity());
+        state.put("population", wp - rp);
+        state.put("write_pos",  wp);
+        state.put("read_pos",   rp);
+        return state;
+    }
+}
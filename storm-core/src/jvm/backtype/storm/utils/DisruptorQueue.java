@@ -18,6 +18,7 @@
 package backtype.storm.utils;
 
 import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.BatchDescriptor;
 import com.lmax.disruptor.ClaimStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
@@ -30,6 +31,7 @@ import com.lmax.disruptor.WaitStrategy;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import backtype.storm.metric.api.IStatefulObject;
 import java.util.logging.Level;
@@ -40,13 +42,14 @@ import java.util.logging.Logger;
  * A single consumer queue that uses the LMAX Disruptor. They key to the performance is
  * the ability to catch up to the producer by processing tuples in batches.
  */
-public class DisruptorQueue implements IStatefulObject {
+public class DisruptorQueue implements IRingQueue {
     static final Object FLUSH_CACHE = new Object();
     static final Object INTERRUPT = new Object();
     
     RingBuffer<MutableObject> _buffer;
     Sequence _consumer;
     SequenceBarrier _barrier;
+    WaitStrategy _wait;
     
     // TODO: consider having a threadlocal cache of this variable to speed up reads?
     volatile boolean consumerStartedFlag = false;
@@ -56,6 +59,7 @@ public class DisruptorQueue implements IStatefulObject {
     
     public DisruptorQueue(String queueName, ClaimStrategy claim, WaitStrategy wait) {
          this._queueName = PREFIX + queueName;
+        _wait = wait;
         _buffer = new RingBuffer<MutableObject>(new ObjectEventFactory(), claim, wait);
         _consumer = new Sequence();
         _barrier = _buffer.newBarrier();
@@ -150,6 +154,28 @@ public class DisruptorQueue implements IStatefulObject {
         }
     }
     
+    /*
+     * Publishes the objects in order, claiming and publishing as many slots at a time as the
+     * buffer holds rather than one per object. Caches like publish until consumerStarted is called.
+     */
+    public void publishBatch(List<?> objs) {
+        if(consumerStartedFlag) {
+            final int bufferSize = _buffer.getBufferSize();
+            for(int from = 0; from < objs.size(); from += bufferSize) {
+                final int n = Math.min(bufferSize, objs.size() - from);
+                final BatchDescriptor batch = _buffer.next(_buffer.newBatchDescriptor(n));
+                long id = batch.getStart();
+                for(int i = from; i < from + n; i++) {
+                    _buffer.get(id++).setObject(objs.get(i));
+                }
+                _buffer.publish(batch);
+            }
+        } else {
+            _cache.addAll(objs);
+            if(consumerStartedFlag) flushCache();
+        }
+    }
+    
     public void consumerStarted() {
         if(!consumerStartedFlag) {
             consumerStartedFlag = true;
@@ -177,6 +203,9 @@ public class DisruptorQueue implements IStatefulObject {
         state.put("population", wp - rp);
         state.put("write_pos",  wp);
         state.put("read_pos",   rp);
+        if(_wait instanceof IStatefulObject) {
+            state.putAll((Map) ((IStatefulObject) _wait).getState());
+        }
         return state;
     }
 
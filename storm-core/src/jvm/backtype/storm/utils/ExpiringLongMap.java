@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.utils;
+
+/**
+ * Expires keys a fixed time after they were last put. Keys are primitive longs, held in an
+ * open-addressing (linear probing) table whose entries are also linked in the order they
+ * were put. Since every entry lives for the same time, that order is the order they expire
+ * in, so expiration only ever looks at the head of the list: put, get, remove and expiring
+ * an entry all take O(1) time, and entries expire as soon as their time is up instead of
+ * at the next bucket rotation as with RotatingMap.
+ *
+ * Time is read from backtype.storm.utils.Time, so it can be simulated. Not thread safe.
+ */
+public class ExpiringLongMap<V> {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int NONE = -1;
+
+    public static interface ExpiredCallback<V> {
+        public void expire(long key, V val);
+    }
+
+    private final long _timeoutMs;
+    private long[] _keys;
+    private Object[] _vals;
+    private long[] _deadlines;
+    private int[] _prev;
+    private int[] _next;
+    private boolean[] _used;
+    private int _mask;
+    private int _shift;
+    private int _size = 0;
+    private int _head = NONE;
+    private int _tail = NONE;
+
+    public ExpiringLongMap(long timeoutMs, int initialCapacity) {
+        _timeoutMs = timeoutMs;
+        allocate(Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1));
+    }
+
+    public ExpiringLongMap(long timeoutMs) {
+        this(timeoutMs, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Associates val with key, which will expire timeoutMs from now.
+     */
+    public void put(long key, V val) {
+        int i = find(key);
+        if(i >= 0) {
+            unlink(i);
+        } else {
+            if((_size + 1) * 2 > _keys.length) {
+                grow();
+            }
+            i = index(key);
+            while(_used[i]) {
+                i = (i+1) & _mask;
+            }
+            _used[i] = true;
+            _keys[i] = key;
+            _size++;
+        }
+        _vals[i] = val;
+        _deadlines[i] = Time.currentTimeMillis() + _timeoutMs;
+        append(i);
+    }
+
+    public V get(long key) {
+        int i = find(key);
+        return i < 0 ? null : (V) _vals[i];
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    public V remove(long key) {
+        int i = find(key);
+        if(i < 0) {
+            return null;
+        }
+        V val = (V) _vals[i];
+        delete(i);
+        return val;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Removes the keys whose time is up, passing each to callback (which may be null).
+     * The callback may put and remove keys.
+     *
+     * @return the number of keys expired
+     */
+    public int expire(ExpiredCallback<V> callback) {
+        long now = Time.currentTimeMillis();
+        int expired = 0;
+        while(_head != NONE && _deadlines[_head] <= now) {
+            long key = _keys[_head];
+            V val = (V) _vals[_head];
+            delete(_head);
+            expired++;
+            if(callback != null) {
+                callback.expire(key, val);
+            }
+        }
+        return expired;
+    }
+
+    private int index(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> _shift);
+    }
+
+    private int find(long key) {
+        for(int i=index(key); _used[i]; i=(i+1) & _mask) {
+            if(_keys[i]==key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(int i) {
+        _prev[i] = _tail;
+        _next[i] = NONE;
+        if(_tail == NONE) {
+            _head = i;
+        } else {
+            _next[_tail] = i;
+        }
+        _tail = i;
+    }
+
+    private void unlink(int i) {
+        if(_prev[i] == NONE) {
+            _head = _next[i];
+        } else {
+            _next[_prev[i]] = _next[i];
+        }
+        if(_next[i] == NONE) {
+            _tail = _prev[i];
+        } else {
+            _prev[_next[i]] = _prev[i];
+        }
+    }
+
+    /**
+     * Removes the entry at slot i, shifting back the entries after it in the same probe
+     * run so that lookups never need tombstones.
+     */
+    private void delete(int i) {
+        unlink(i);
+        int j = i;
+        while(true) {
+            j = (j+1) & _mask;
+            if(!_used[j]) {
+                break;
+            }
+            int home = index(_keys[j]);
+            // the entry at j can fill the hole at i unless its home lies in (i, j]
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if(movable) {
+                move(j, i);
+                i = j;
+            }
+        }
+        _used[i] = false;
+        _vals[i] = null;
+        _size--;
+    }
+
+    private void move(int from, int to) {
+        _keys[to] = _keys[from];
+        _vals[to] = _vals[from];
+        _deadlines[to] = _deadlines[from];
+        _prev[to] = _prev[from];
+        _next[to] = _next[from];
+        if(_prev[to] == NONE) {
+            _head = to;
+        } else {
+            _next[_prev[to]] = to;
+        }
+        if(_next[to] == NONE) {
+            _tail = to;
+        } else {
+            _prev[_next[to]] = to;
+        }
+    }
+
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _vals = new Object[capacity];
+        _deadlines = new long[capacity];
+        _prev = new int[capacity];
+        _next = new int[capacity];
+        _used = new boolean[capacity];
+        _mask = capacity - 1;
+        _shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**
+     * Doubles the capacity, reinserting the entries in expiration order.
+     */
+    private void grow() {
+        long[] keys = _keys;
+        Object[] vals = _vals;
+        long[] deadlines = _deadlines;
+        int[] next = _next;
+        int e = _head;
+        allocate(keys.length * 2);
+        _head = NONE;
+        _tail = NONE;
+        while(e != NONE) {
+            int i = index(keys[e]);
+            while(_used[i]) {
+                i = (i+1) & _mask;
+            }
+            _used[i] = true;
+            _keys[i] = keys[e];
+            _vals[i] = vals[e];
+            _deadlines[i] = deadlines[e];
+            append(i);
+            e = next[e];
+        }
+    }
+}
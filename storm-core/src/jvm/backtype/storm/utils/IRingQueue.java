@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.utils;
+
+import backtype.storm.metric.api.IStatefulObject;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import java.util.List;
+
+/**
+ * A bounded queue with a single consumer, which catches up to its producers by processing
+ * what they published in batches. Objects published before consumerStarted is called are
+ * cached until it is, so publishers never block on a queue whose consumer isn't running yet.
+ *
+ * @see DisruptorQueue
+ * @see ArrayRingQueue
+ */
+public interface IRingQueue extends IStatefulObject {
+    String getName();
+
+    /**
+     * Hands everything published so far to handler, without waiting.
+     */
+    void consumeBatch(EventHandler<Object> handler);
+
+    /**
+     * Like consumeBatch, but first waits a short while for something to be published.
+     */
+    void consumeBatchWhenAvailable(EventHandler<Object> handler);
+
+    /**
+     * Makes the consumer throw once it has consumed everything published before.
+     */
+    void haltWithInterrupt();
+
+    void publish(Object obj);
+
+    void tryPublish(Object obj) throws InsufficientCapacityException;
+
+    void publish(Object obj, boolean block) throws InsufficientCapacityException;
+
+    /**
+     * Publishes the objects in order, as if each was passed to publish.
+     */
+    void publishBatch(List<?> objs);
+
+    void consumerStarted();
+
+    long population();
+
+    long capacity();
+
+    long writePos();
+
+    long readPos();
+
+    float pctFull();
+}
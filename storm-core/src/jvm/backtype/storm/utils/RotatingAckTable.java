@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package backtype.storm.utils;
+
+import java.util.Arrays;
+
+/**
+ * The acker's table of pending tuple trees, keyed by root id. Each entry holds the ack val,
+ * the spout task and whether the tree failed, in parallel primitive arrays of an
+ * open-addressing (linear probing) table, so updates neither box nor allocate.
+ *
+ * Expiration works like RotatingMap: entries live in the newest of numBuckets tables,
+ * and rotate() drops the oldest table. Touching an entry moves it to the newest table.
+ *
+ * Entries are addressed by slot, as returned by touch(). A slot is only valid until the
+ * next call to touch(), remove() or rotate(). Not thread safe.
+ */
+public class RotatingAckTable {
+    private static final int DEFAULT_NUM_BUCKETS = 2;
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private static final byte USED = 1;
+    private static final byte HAS_TASK = 2;
+    private static final byte FAILED = 4;
+
+    private final Bucket[] _buckets;
+    private int _newest = 0;
+
+    public RotatingAckTable(int numBuckets, int initialCapacity) {
+        if(numBuckets<2) {
+            throw new IllegalArgumentException("numBuckets must be >= 2");
+        }
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1);
+        _buckets = new Bucket[numBuckets];
+        for(int i=0; i<numBuckets; i++) {
+            _buckets[i] = new Bucket(capacity);
+        }
+    }
+
+    public RotatingAckTable() {
+        this(DEFAULT_NUM_BUCKETS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Finds or creates the entry for id in the newest bucket. A new entry has a val of 0,
+     * no spout task and has not failed.
+     *
+     * @return the slot of the entry
+     */
+    public int touch(long id) {
+        Bucket newest = _buckets[_newest];
+        int slot = newest.find(id);
+        if(slot >= 0) {
+            return slot;
+        }
+        slot = newest.insert(id);
+        for(int i=1; i<_buckets.length; i++) {
+            Bucket bucket = bucket(i);
+            int old = bucket.find(id);
+            if(old >= 0) {
+                newest.vals[slot] = bucket.vals[old];
+                newest.tasks[slot] = bucket.tasks[old];
+                newest.flags[slot] = bucket.flags[old];
+                bucket.remove(old);
+                break;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * xors val into the ack val of the entry at slot
+     * @return the new ack val
+     */
+    public long xor(int slot, long val) {
+        Bucket newest = _buckets[_newest];
+        return newest.vals[slot] ^= val;
+    }
+
+    public long getVal(int slot) {
+        return _buckets[_newest].vals[slot];
+    }
+
+    public void setSpoutTask(int slot, int task) {
+        Bucket newest = _buckets[_newest];
+        newest.tasks[slot] = task;
+        newest.flags[slot] |= HAS_TASK;
+    }
+
+    public boolean hasSpoutTask(int slot) {
+        return (_buckets[_newest].flags[slot] & HAS_TASK) != 0;
+    }
+
+    public int getSpoutTask(int slot) {
+        return _buckets[_newest].tasks[slot];
+    }
+
+    public void setFailed(int slot) {
+        _buckets[_newest].flags[slot] |= FAILED;
+    }
+
+    public boolean isFailed(int slot) {
+        return (_buckets[_newest].flags[slot] & FAILED) != 0;
+    }
+
+    public void remove(int slot) {
+        _buckets[_newest].remove(slot);
+    }
+
+    public boolean containsKey(long id) {
+        for(int i=0; i<_buckets.length; i++) {
+            if(bucket(i).find(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        int size = 0;
+        for(Bucket bucket: _buckets) {
+            size += bucket.size;
+        }
+        return size;
+    }
+
+    /**
+     * Drops the entries of the oldest bucket. The bucket keeps its capacity and becomes
+     * the newest one.
+     *
+     * @return the number of entries dropped
+     */
+    public int rotate() {
+        _newest = (_newest + _buckets.length - 1) % _buckets.length;
+        Bucket oldest = _buckets[_newest];
+        int expired = oldest.size;
+        oldest.clear();
+        return expired;
+    }
+
+    /**
+     * @param age 0 for the newest bucket, numBuckets-1 for the oldest
+     */
+    private Bucket bucket(int age) {
+        return _buckets[(_newest + age) % _buckets.length];
+    }
+
+    private static final class Bucket {
+        long[] keys;
+        long[] vals;
+        int[] tasks;
+        byte[] flags;
+        int size = 0;
+        int mask;
+        int shift;
+
+        Bucket(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            vals = new long[capacity];
+            tasks = new int[capacity];
+            flags = new byte[capacity];
+            mask = capacity - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private int index(long key) {
+            // fibonacci hashing, the high bits of the product are the well mixed ones
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        int find(long key) {
+            for(int i=index(key); flags[i]!=0; i=(i+1) & mask) {
+                if(keys[i]==key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot of a new, zeroed entry for key, which must not be present
+         */
+        int insert(long key) {
+            if((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int i = index(key);
+            while(flags[i]!=0) {
+                i = (i+1) & mask;
+            }
+            keys[i] = key;
+            vals[i] = 0;
+            tasks[i] = 0;
+            flags[i] = USED;
+            size++;
+            return i;
+        }
+
+        /**
+         * Removes the entry at slot, shifting back the entries after it in the same probe
+         * run so that lookups never need tombstones.
+         */
+        void remove(int slot) {
+            int i = slot;
+            int j = slot;
+            while(true) {
+                j = (j+1) & mask;
+                if(flags[j]==0) {
+                    break;
+                }
+                int home = index(keys[j]);
+                // the entry at j can fill the hole at i unless its home lies in (i, j]
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if(movable) {
+                    keys[i] = keys[j];
+                    vals[i] = vals[j];
+                    tasks[i] = tasks[j];
+                    flags[i] = flags[j];
+                    i = j;
+                }
+            }
+            flags[i] = 0;
+            size--;
+        }
+
+        void clear() {
+            if(size > 0) {
+                Arrays.fill(flags, (byte) 0);
+                size = 0;
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldVals = vals;
+            int[] oldTasks = tasks;
+            byte[] oldFlags = flags;
+            allocate(oldKeys.length * 2);
+            for(int j=0; j<oldKeys.length; j++) {
+                if(oldFlags[j]!=0) {
+                    int i = index(oldKeys[j]);
+                    while(flags[i]!=0) {
+                        i = (i+1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    vals[i] = oldVals[j];
+                    tasks[i] = oldTasks[j];
+                    flags[i] = oldFlags[j];
+                }
+            }
+        }
+    }
+}
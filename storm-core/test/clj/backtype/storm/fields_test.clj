@@ -55,5 +55,12 @@
         (is (not-any? false? (map = (iterator-seq (.iterator fields)) '("foo" "bar")))))
       (testing ".select"
         (is (instance? List (.select fields (Fields. '("bar")) '("a" "b" "c"))))
-        (is (= (.select fields (Fields. '("bar")) '("a" "b" "c")) '("b")))))))
+        (is (= (.select fields (Fields. '("bar")) '("a" "b" "c")) '("b"))))
+      (testing ".selectorIndices"
+        (let [indices (.selectorIndices fields (Fields. '("bar" "foo")))]
+          (is (= [1 0] (vec indices)))
+          (is (= ["b" "a"] (Fields/select indices ["a" "b"])))
+          (is (= (.hashCode (.select fields (Fields. '("bar" "foo")) ["a" nil]))
+                 (Fields/selectHashCode indices ["a" nil])))
+          (is (thrown? IllegalArgumentException (.selectorIndices fields (Fields. '("baz"))))))))))
 
@@ -16,6 +16,7 @@
 (ns backtype.storm.grouping-test
   (:use [clojure test])
   (:import [backtype.storm.testing TestWordCounter TestWordSpout TestGlobalCount TestAggregatesCounter NGrouping])
+  (:import [backtype.storm.grouping ConsistentHashGrouping LoadAwareShuffleGrouping LoadAwareShuffleGrouping$ILoad])
   (:use [backtype.storm bootstrap testing])
   (:use [backtype.storm.daemon common])
   )
@@ -51,6 +52,69 @@
                (read-tuples results "2")))
       )))
 
+(deftest test-load-aware-shuffle
+  (let [load (reify LoadAwareShuffleGrouping$ILoad
+               (get [this task] (if (= task 1) 1.0 0.0)))
+        grouping (LoadAwareShuffleGrouping. [(int 1) (int 2) (int 3)] #{} load)
+        counts (frequencies (repeatedly 3000 #(.chooseTask grouping)))]
+    (is (= #{1 2 3} (set (keys counts))))
+    (is (< (* 50 (counts 1)) (counts 2)))
+    (is (< (* 50 (counts 1)) (counts 3)))
+    (is (< 1000 (counts 2) 2000))
+    ))
+
+(deftest test-load-aware-shuffle-prefers-local-tasks
+  (with-simulated-time
+    (let [task1-load (atom 0.0)
+          load (reify LoadAwareShuffleGrouping$ILoad
+                 (get [this task] (if (= task 1) @task1-load 0.0)))
+          grouping (LoadAwareShuffleGrouping. [(int 1) (int 2)] #{(int 2)} load)
+          counts (frequencies (repeatedly 3000 #(.chooseTask grouping)))]
+      (is (= 1000 (counts 1)))
+      (is (= 2000 (counts 2)))
+      ;; load is only sampled again once the refresh interval has passed
+      (reset! task1-load 0.5)
+      (is (= counts (frequencies (repeatedly 3000 #(.chooseTask grouping)))))
+      (advance-time-ms! LoadAwareShuffleGrouping/DEFAULT_REFRESH_MS)
+      (let [counts (frequencies (repeatedly 2500 #(.chooseTask grouping)))]
+        (is (= 500 (counts 1)))
+        (is (= 2000 (counts 2))))
+      )))
+
+(defbolt locality-bolt ["task" "local"] {:prepare true}
+  [conf context collector]
+  (let [worker-tasks (set (.getThisWorkerTasks context))]
+    (bolt
+      (execute [tuple]
+        (emit-bolt! collector [(.getThisTaskId context) (contains? worker-tasks (.getSourceTask tuple))])
+        (ack! collector tuple)))))
+
+(deftest test-load-aware-shuffle-topology
+  (with-simulated-time-local-cluster [cluster :supervisors 2]
+    (let [topology (thrift/mk-topology
+                    {"1" (thrift/mk-spout-spec (TestWordSpout. true))}
+                    {"2" (thrift/mk-bolt-spec {"1" :shuffle} locality-bolt
+                                            :parallelism-hint 3)
+                     })
+          results (complete-topology cluster
+                                     topology
+                                     :storm-conf {TOPOLOGY-SHUFFLE-LOAD-AWARE true
+                                                  TOPOLOGY-WORKERS 2}
+                                     :mock-sources {"1" (repeat 300 ["a"])}
+                                     )
+          received (read-tuples results "2")
+          counts (frequencies received)
+          local-counts (for [[[_ local?] n] counts :when local?] n)
+          remote-counts (for [[[_ local?] n] counts :when (not local?)] n)]
+      (is (= 300 (count received)))
+      ;; the spout shares a worker with some of the bolt tasks, and sends
+      ;; about twice as many tuples to each of them as to the others
+      (is (= 3 (count counts)))
+      (is (not-empty local-counts))
+      (is (not-empty remote-counts))
+      (is (< (* 1.5 (apply max remote-counts)) (apply min local-counts)))
+      )))
+
 (defbolt id-bolt ["val"] [tuple collector]
   (emit-bolt! collector (.getValues tuple))
   (ack! collector tuple))
@@ -78,3 +142,30 @@
       (is (ms= [["a"] ["a"] ["a"] ["b"] ["b"] ["b"]]
                (read-tuples results "3")))
       )))
+
+(deftest test-jump-hash-moves-few-keys
+  (let [keys (range 10000)
+        before (map #(ConsistentHashGrouping/jumpHash % 10) keys)
+        after (map #(ConsistentHashGrouping/jumpHash % 11) keys)
+        moved (filter (fn [[b a]] (not= b a)) (map vector before after))]
+    (is (every? #(< -1 % 10) before))
+    ;; keys only ever move to the new bucket, and about 1/11 of them do
+    (is (every? (fn [[_ a]] (= 10 a)) moved))
+    (is (< 700 (count moved) 1100))))
+
+(deftest test-consistent-hash-grouping
+  (with-simulated-time-local-cluster [cluster]
+    (let [topology (topology
+                    {"1" (spout-spec (TestWordSpout. true))}
+                    {"2" (bolt-spec {"1" (ConsistentHashGrouping. (Fields. ["word"]))}
+                                  (TestWordCounter.)
+                                  :p 4)
+                     })
+          results (complete-topology cluster
+                                     topology
+                                     :mock-sources {"1" [["a"] ["b"] ["a"] ["c"] ["a"] ["b"]]}
+                                     )]
+      ;; a word always goes to the same counter task
+      (is (ms= [["a" 1] ["a" 2] ["a" 3] ["b" 1] ["b" 2] ["c" 1]]
+               (read-tuples results "2")))
+      )))
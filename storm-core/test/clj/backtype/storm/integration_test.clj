@@ -19,6 +19,8 @@
   (:import [backtype.storm.generated InvalidTopologyException SubmitOptions TopologyInitialStatus])
   (:import [backtype.storm.testing TestWordCounter TestWordSpout TestGlobalCount
               TestAggregatesCounter TestConfBolt AckFailMapTracker])
+  (:import [backtype.storm.daemon AckCoalescer AckCoalescer$Sender])
+  (:import [java.util.concurrent Executors])
   (:use [backtype.storm bootstrap testing])
   (:use [backtype.storm.daemon common])
   )
@@ -357,6 +359,188 @@
       (checker 3)
       )))
 
+(deftest test-ack-coalescer
+  (let [sent (atom [])
+        acker-tasks [(int 3) (int 5) (int 8)]
+        coalescer (AckCoalescer. acker-tasks 4
+                                 (reify AckCoalescer$Sender
+                                   (send [this acker-task ids vals]
+                                     (swap! sent conj [acker-task (vec ids) (vec vals)]))))
+        acker-for (fn [id] (nth acker-tasks (mod (.hashCode [id]) 3)))]
+    ;; acks are only buffered between begin and flush
+    (is (not (.add coalescer 1 1)))
+    (.begin coalescer)
+    (is (.add coalescer 1 6))
+    (is (.add coalescer 1 3))
+    (is (.add coalescer 2 7))
+    (is (.add coalescer 2 7))
+    (is (empty? @sent))
+    (.flush coalescer)
+    ;; vals of the same root are xored, and roots whose vals cancel out are dropped
+    (is (= [[(acker-for 1) [1] [5]]] @sent))
+    (is (not (.add coalescer 1 1)))
+    (reset! sent [])
+    (.begin coalescer)
+    ;; a full buffer is sent right away, to the acker the fields grouping picks
+    (doseq [id (range 100)]
+      (.add coalescer id 1))
+    (.flush coalescer)
+    (is (= 100 (reduce + (map #(count (second %)) @sent))))
+    (is (every? (fn [[acker-task ids _]] (every? #(= acker-task (acker-for %)) ids)) @sent))
+    (is (every? #(<= (count (second %)) 4) @sent))
+    ))
+
+(deftest test-batched-acking
+  (with-simulated-time-local-cluster [cluster]
+    (let [feeder (feeder-spout ["num"])
+          tracker (AckFailMapTracker.)
+          _ (.setAckFailDelegate feeder tracker)
+          topology (thrift/mk-topology
+                     {"1" (thrift/mk-spout-spec feeder)}
+                     {"2" (thrift/mk-bolt-spec {"1" :shuffle} (branching-bolt 3) :parallelism-hint 2)
+                      "3" (thrift/mk-bolt-spec {"2" :shuffle} (agg-bolt 3))
+                      "4" (thrift/mk-bolt-spec {"3" :shuffle} ack-bolt :parallelism-hint 2)})]
+      (submit-local-topology (:nimbus cluster)
+                             "batched-acking"
+                             {TOPOLOGY-ACKER-BATCH-SIZE 4
+                              TOPOLOGY-ACKER-EXECUTORS 2}
+                             topology)
+      (doseq [id (range 1 11)]
+        (.feed feeder [id] id))
+      (advance-cluster-time cluster 11)
+      (apply assert-acked tracker (range 1 11))
+      (is (not-any? #(.isFailed tracker %) (range 1 11)))
+      )))
+
+(defbolt background-emit-bolt ["num"] {:prepare true}
+  [conf context collector]
+  (let [executor (Executors/newSingleThreadExecutor)]
+    (bolt
+      (execute [tuple]
+        (.execute executor (fn []
+                             (emit-bolt! collector (.getValues tuple) :anchor tuple)
+                             (ack! collector tuple))))
+      (cleanup []
+        (.shutdownNow executor)))))
+
+(deftest test-send-batch-background-emits
+  ;; array send queues must take the emits made off the executor thread as well
+  (doseq [queue-type ["disruptor" "array"]]
+    (with-local-cluster [cluster]
+      (let [feeder (feeder-spout ["num"])
+            tracker (AckFailMapTracker.)
+            _ (.setAckFailDelegate feeder tracker)
+            topology (thrift/mk-topology
+                       {"1" (thrift/mk-spout-spec feeder)}
+                       {"2" (thrift/mk-bolt-spec {"1" :shuffle} background-emit-bolt)
+                        "3" (thrift/mk-bolt-spec {"2" :shuffle} ack-bolt)})]
+        (submit-local-topology (:nimbus cluster)
+                               "send-batch-background-emits"
+                               {TOPOLOGY-EXECUTOR-SEND-BATCH-SIZE 100
+                                TOPOLOGY-ACKER-BATCH-SIZE 4
+                                TOPOLOGY-QUEUE-TYPE queue-type}
+                               topology)
+        (doseq [id (range 1 101)]
+          (.feed feeder [id] id))
+        ;; the emits and acks made off the executor thread are published right away rather
+        ;; than left in the send batch, which is only flushed after the next received batch
+        (apply assert-acked tracker (range 1 101))
+        (is (not-any? #(.isFailed tracker %) (range 1 101)))
+        ))))
+
+(defbolt thread-name-bolt ["threads"]
+  [tuple collector]
+  (let [thread (.getName (Thread/currentThread))
+        threads (if (= "1" (.getSourceComponent tuple)) [] (.getValue tuple 0))]
+    (emit-bolt! collector [(conj threads thread)] :anchor tuple)
+    (ack! collector tuple)))
+
+(deftest test-fuse-with-input
+  (with-simulated-time-local-cluster [cluster :supervisors 2]
+    (letlocals
+     (bind builder (TopologyBuilder.))
+     (.setSpout builder "1" (TestWordSpout. true) (int 2))
+     (-> builder
+         (.setBolt "2" thread-name-bolt (int 2))
+         (.shuffleGrouping "1")
+         (.fuseWithInput))
+     (-> builder
+         (.setBolt "3" thread-name-bolt (int 2))
+         (.shuffleGrouping "2")
+         (.fuseWithInput))
+     (bind results
+           (complete-topology cluster
+                              (.createTopology builder)
+                              :storm-conf {TOPOLOGY-WORKERS 1}
+                              :mock-sources {"1" [["a"] ["b"] ["c"] ["d"]]}))
+     (bind threads (map first (read-tuples results "3")))
+     (is (= 4 (count threads)))
+     ;; both bolts ran on the thread of the spout task they are paired with
+     (is (every? (fn [[t2 t3]] (and (= t2 t3) (.endsWith ^String t2 "-1"))) threads))
+     )))
+
+(deftest test-fuse-with-spout-backpressure
+  (with-local-cluster [cluster]
+    (letlocals
+     (bind feeder (feeder-spout ["num"]))
+     (bind tracker (AckFailMapTracker.))
+     (.setAckFailDelegate feeder tracker)
+     (bind builder (TopologyBuilder.))
+     (.setSpout builder "1" feeder)
+     (-> builder
+         (.setBolt "2" (branching-bolt 8))
+         (.shuffleGrouping "1")
+         (.fuseWithInput))
+     (-> builder
+         (.setBolt "3" ack-bolt)
+         (.shuffleGrouping "2"))
+     ;; queues small enough that the acks for the spout back up while the fused bolt still
+     ;; has tuples to send, which must not block the spout thread
+     (submit-local-topology (:nimbus cluster)
+                            "fuse-with-spout-backpressure"
+                            {TOPOLOGY-WORKERS 1
+                             TOPOLOGY-EXECUTOR-SEND-BUFFER-SIZE 2
+                             TOPOLOGY-EXECUTOR-RECEIVE-BUFFER-SIZE 2}
+                            (.createTopology builder))
+     (doseq [id (range 1 51)]
+       (.feed feeder [id] id))
+     (apply assert-acked tracker (range 1 51))
+     (is (not-any? #(.isFailed tracker %) (range 1 51)))
+     )))
+
+(def fused-cleaned-up (atom false))
+(def fused-executed-after-cleanup (atom false))
+
+(defbolt cleanup-checking-bolt [] {:prepare true}
+  [conf context collector]
+  (bolt
+    (execute [tuple]
+      (when @fused-cleaned-up
+        (reset! fused-executed-after-cleanup true))
+      (ack! collector tuple))
+    (cleanup []
+      (reset! fused-cleaned-up true))))
+
+(deftest test-fuse-shutdown-order
+  (reset! fused-cleaned-up false)
+  (reset! fused-executed-after-cleanup false)
+  (with-local-cluster [cluster]
+    (letlocals
+     (bind builder (TopologyBuilder.))
+     (.setSpout builder "1" (TestWordSpout. true))
+     (-> builder
+         (.setBolt "2" cleanup-checking-bolt)
+         (.shuffleGrouping "1")
+         (.fuseWithInput))
+     (submit-local-topology (:nimbus cluster)
+                            "fuse-shutdown-order"
+                            {TOPOLOGY-WORKERS 1}
+                            (.createTopology builder))
+     (Thread/sleep 3000)))
+  ;; the spout thread that runs the fused bolt is stopped before the bolt is cleaned up
+  (is @fused-cleaned-up)
+  (is (not @fused-executed-after-cleanup)))
+
 ;; (defspout ConstantSpout ["val"] {:prepare false}
 ;;   [collector]
 ;;   (Time/sleep 100)
@@ -57,3 +57,80 @@
                                      )]
       (is (ms= (apply concat (repeat 6 [[1] [2] [3] [4]]))
                (read-tuples results "2"))))))
+
+(deftest test-integration-direct-receive
+  (with-simulated-time-local-cluster [cluster :supervisors 4 :supervisor-slot-port-min 6730
+                                      :daemon-conf {STORM-LOCAL-MODE-ZMQ true 
+                                                    STORM-MESSAGING-TRANSPORT  "backtype.storm.messaging.netty.Context"
+                                                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                                                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                                                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                                                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                                                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                                                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                                                    }]
+    (let [topology (thrift/mk-topology
+                     {"1" (thrift/mk-spout-spec (TestWordSpout. true) :parallelism-hint 4)}
+                     {"2" (thrift/mk-bolt-spec {"1" :shuffle} (TestGlobalCount.)
+                                               :parallelism-hint 6)})
+          results (complete-topology cluster
+                                     topology
+                                     ;; important for test that
+                                     ;; #tuples = multiple of 4 and 6
+                                     :storm-conf {TOPOLOGY-WORKERS 3
+                                                  WORKER-RECEIVER-DIRECT true}
+                                     :mock-sources {"1" [["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ["a"] ["b"]
+                                                         ]}
+                                     )]
+      (is (ms= (apply concat (repeat 6 [[1] [2] [3] [4]]))
+               (read-tuples results "2"))))))
+
+(deftest test-integration-shared-memory
+  (with-local-tmp [shm-dir]
+    (with-simulated-time-local-cluster [cluster :supervisors 4 :supervisor-slot-port-min 6750
+                                        :daemon-conf {STORM-LOCAL-MODE-ZMQ true 
+                                                      STORM-MESSAGING-TRANSPORT  "backtype.storm.messaging.netty.SharedMemoryContext"
+                                                      STORM-MESSAGING-SHM-DIR shm-dir
+                                                      STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                                                      STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                                                      STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                                                      STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                                                      STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                                                      STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                                                      }]
+      (let [topology (thrift/mk-topology
+                       {"1" (thrift/mk-spout-spec (TestWordSpout. true) :parallelism-hint 4)}
+                       {"2" (thrift/mk-bolt-spec {"1" :shuffle} (TestGlobalCount.)
+                                                 :parallelism-hint 6)})
+            results (complete-topology cluster
+                                       topology
+                                       ;; important for test that
+                                       ;; #tuples = multiple of 4 and 6
+                                       :storm-conf {TOPOLOGY-WORKERS 3}
+                                       :mock-sources {"1" [["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ["a"] ["b"]
+                                                           ]}
+                                       )]
+        (is (ms= (apply concat (repeat 6 [[1] [2] [3] [4]]))
+                 (read-tuples results "2")))))))
@@ -15,7 +15,9 @@
 ;; limitations under the License.
 (ns backtype.storm.messaging.netty-unit-test
   (:use [clojure test])
-  (:import [backtype.storm.messaging TransportFactory])
+  (:import [backtype.storm.messaging TransportFactory TaskMessage])
+  (:import [java.io File RandomAccessFile]
+           [java.nio ByteBuffer ByteOrder])
   (:use [backtype.storm bootstrap testing util]))
 
 (bootstrap)
@@ -130,3 +132,411 @@
     (.close client)
     (.close server)
     (.term context)))
+
+(deftest test-receive-queue-full
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    ;; many small batches, which fill the receive queue right away
+                    STORM-NETTY-MESSAGE-BATCH-SIZE 1024
+                    STORM-NETTY-RECEIVE-QUEUE-SIZE 2
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)]
+    (doseq [num  (range 1 10000)]
+      (.send client task (.getBytes (str num))))
+    ;; the netty thread waits for room in the queue, and is woken by the receiver
+    (Thread/sleep 200)
+    (let [resp (ArrayList.)]
+      (while (< (.size resp) (- 10000 1))
+        (let [iter (.recv server 0 0)]
+          (while (.hasNext iter)
+            (.add resp (.next iter)))))
+      (is (= (map str (range 1 10000)) (map #(String. (.message ^TaskMessage %)) resp))))
+    ;; and by close() when nothing receives any more
+    (doseq [num  (range 1 10000)]
+      (.send client task (.getBytes (str num))))
+    (Thread/sleep 200)
+    (is (= :closed (deref (future (.close server) :closed) 10000 :timeout)))
+    (.close client)
+    (.term context)))
+
+(deftest test-gathering-batch
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-GATHERING-THRESHOLD 64
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)
+        mk-msg (fn [num] (if (even? num) (str num) (apply str num (repeat 100 'x'))))]
+    (doseq [num  (range 1 10000)]
+      (.send client task (.getBytes (mk-msg num))))
+    
+    (let [resp (ArrayList.)
+          received (atom 0)]
+      (while (< @received (- 10000 1))
+        (let [iter (.recv server 0 0)]
+          (while (.hasNext iter)
+            (let [msg (.next iter)]
+              (.add resp msg)
+              (swap! received inc)
+              ))))
+      (doseq [num  (range 1 10000)]
+      (let [resp_msg (String. (.message (.get resp (- num 1))))]
+        (is (= (mk-msg num) resp_msg)))))
+   
+    (.close client)
+    (.close server)
+    (.term context)))
+
+(deftest test-concurrent-senders
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)
+        senders (for [t (range 1 5)]
+                  (Thread. (fn []
+                             (doseq [num (range 10000)]
+                               (.send client t (.getBytes (str num)))))))]
+    (doseq [^Thread s senders] (.start s))
+    (doseq [^Thread s senders] (.join s))
+    
+    (let [task->msgs (HashMap.)
+          received (atom 0)]
+      (while (< @received 40000)
+        (let [iter (.recv server 0 0)]
+          (while (.hasNext iter)
+            (let [msg (.next iter)]
+              (when-not (.get task->msgs (.task msg))
+                (.put task->msgs (.task msg) (ArrayList.)))
+              (.add (.get task->msgs (.task msg)) (String. (.message msg)))
+              (swap! received inc)
+              ))))
+      ;; messages from one sender arrive in the order they were sent
+      (doseq [t (range 1 5)]
+        (is (= (map str (range 10000)) (seq (.get task->msgs (int t)))))))
+   
+    (.close client)
+    (.close server)
+    (.term context)))
+
+(deftest test-throttle-released
+  (let [req_msg (apply str (repeat 2048000 'c'))
+        storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 102400
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-TRANSFER-HIGH-WATERMARK 1024
+                    STORM-NETTY-TRANSFER-LOW-WATERMARK 512
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        client (.connect context nil "localhost" port)
+        ;; the send waits for the connection, but its payload is already pending
+        sender (future (.send client task (.getBytes req_msg)))
+        _ (loop [tries 0]
+            (when (and (not (.isThrottled client)) (< tries 50))
+              (Thread/sleep 100)
+              (recur (inc tries))))
+        _ (is (.isThrottled client))
+        server (.bind context nil port)
+        iter (.recv server 0 0)
+        resp (.next iter)]
+    (is (= req_msg (String. (.message resp))))
+    @sender
+    ;; the write completes asynchronously once the payload is received
+    (loop [tries 0]
+      (when (and (.isThrottled client) (< tries 50))
+        (Thread/sleep 100)
+        (recur (inc tries))))
+    (is (not (.isThrottled client)))
+    (.close client)
+    (.close server)
+    (.term context)))
+
+(deftest test-close-unconnected
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 2
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 10
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 50
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-TRANSFER-HIGH-WATERMARK 1024000
+                    STORM-NETTY-TRANSFER-LOW-WATERMARK 512
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        ;; nothing listens on this port
+        client (.connect context nil "localhost" (inc port))
+        senders (doall (for [i (range 4)]
+                         (future
+                           (try
+                             (dotimes [j 100]
+                               (.send client task (.getBytes (str j))))
+                             (catch RuntimeException e)))))]
+    (doseq [s senders] @s)
+    ;; the queued messages are dropped rather than drained forever
+    (is (not= :timeout (deref (future (.close client)) 10000 :timeout)))
+    (is (= 0.0 (.getLoad client)))
+    (.term context)))
+
+(deftest test-shared-memory-batch
+  (with-local-tmp [shm-dir]
+    (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.SharedMemoryContext"
+                      STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                      STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                      STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                      STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                      STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                      STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                      STORM-MESSAGING-SHM-DIR shm-dir
+                      ;; small enough for the ring to wrap around many times
+                      STORM-MESSAGING-SHM-RING-SIZE 4096
+                      }
+          context (TransportFactory/makeContext storm-conf)
+          server (.bind context "topology-1" port)
+          client (.connect context "topology-1" "localhost" port)]
+      (is (not (instance? backtype.storm.messaging.netty.Client client)))
+      ;; most of this does not fit into the ring and is written by the client's flushes
+      (future
+        (doseq [num  (range 1 100000)]
+          (.send client task (.getBytes (str num)))))
+    
+      (let [resp (ArrayList.)
+            received (atom 0)]
+        (while (< @received (- 100000 1))
+          (let [iter (.recv server 0 0)]
+            (while (.hasNext iter)
+              (let [msg (.next iter)]
+                (.add resp msg)
+                (swap! received inc)
+                ))))
+        (doseq [num  (range 1 100000)]
+          (let [resp_msg (String. (.message (.get resp (- num 1))))]
+            (is (= (str num) resp_msg)))))
+   
+      (.close client)
+      (.close server)
+      (.term context))))
+
+(deftest test-shared-memory-crashed-writer
+  (with-local-tmp [shm-dir]
+    (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.SharedMemoryContext"
+                      STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                      STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                      STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                      STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                      STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                      STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                      STORM-MESSAGING-SHM-DIR shm-dir
+                      }
+          stale-dir (File. (File. shm-dir "topology-0") "6799")
+          _ (.mkdirs stale-dir)
+          _ (.createNewFile (File. stale-dir "gone.ring"))
+          context (TransportFactory/makeContext storm-conf)
+          ;; directories with no receiver and no live writer are removed on start
+          _ (is (not (.exists (File. shm-dir "topology-0"))))
+          server (.bind context "topology-1" port)
+          ring-dir (File. (File. shm-dir "topology-1") (str port))
+          part-file (File. ring-dir "crashed.part")
+          ring-file (File. ring-dir "crashed.ring")]
+      ;; a ring whose writer published one message and died without closing it, which
+      ;; holds no lock. It is built under another name so the receiver sees it complete
+      (with-open [raf (RandomAccessFile. part-file "rw")]
+        (.setLength raf (+ 64 4096))
+        (.write raf (.array (.putLong (.order (ByteBuffer/allocate 8) (ByteOrder/nativeOrder)) 0 (+ 8 5))))
+        (.seek raf 64)
+        (.writeInt raf task)
+        (.writeInt raf 5)
+        (.write raf (.getBytes "hello")))
+      (.renameTo part-file ring-file)
+      (let [^TaskMessage msg (.next (.recv server 0 0))]
+        (is (= task (.task msg)))
+        (is (= "hello" (String. (.message msg)))))
+      ;; once drained, the ring is unmapped and deleted
+      (loop [wait 0]
+        (when (and (.exists ring-file) (< wait 5000))
+          (Thread/sleep 10)
+          (recur (+ wait 10))))
+      (is (not (.exists ring-file)))
+      (.close server)
+      (.term context)
+      ;; and the receiver removes its empty directories on shutdown
+      (is (not (.exists (File. shm-dir "topology-1")))))))
+
+(deftest test-shared-memory-live-writer-kept
+  (with-local-tmp [shm-dir]
+    (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.SharedMemoryContext"
+                      STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                      STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                      STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                      STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                      STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                      STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                      STORM-MESSAGING-SHM-DIR shm-dir
+                      }
+          context (TransportFactory/makeContext storm-conf)
+          client (.connect context "topology-1" "localhost" port)
+          _ (.send client task (.getBytes "hello"))
+          ring-dir (File. (File. shm-dir "topology-1") (str port))]
+      ;; another context in this JVM cleans up on start. It must not open the ring locked by
+      ;; the client to check it, which would drop the lock, so the ring survives repeatedly
+      (dotimes [i 2]
+        (.term (TransportFactory/makeContext storm-conf)))
+      (is (= 1 (count (.list ring-dir))))
+      (let [server (.bind context "topology-1" port)
+            ^TaskMessage msg (.next (.recv server 0 0))]
+        (is (= "hello" (String. (.message msg))))
+        (.close client)
+        (.close server))
+      (.term context))))
+
+(deftest test-compressed-batch
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-COMPRESSION-CODEC "backtype.storm.messaging.netty.DeflateCompressionCodec"
+                    STORM-NETTY-COMPRESSION-THRESHOLD 1024
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)
+        mk-msg (fn [num] (str "{\"word\": \"number\", \"value\": " num "}"))]
+    ;; send in bulk so that batches get large enough to be compressed
+    (doseq [nums (partition-all 1000 (range 1 100000))]
+      (.send client (.iterator (ArrayList. (for [num nums] (TaskMessage. task (.getBytes (mk-msg num))))))))
+    
+    (let [resp (ArrayList.)
+          received (atom 0)]
+      (while (< @received (- 100000 1))
+        (let [iter (.recv server 0 0)]
+          (while (.hasNext iter)
+            (let [msg (.next iter)]
+              (.add resp msg)
+              (swap! received inc)
+              ))))
+      (doseq [num  (range 1 100000)]
+      (let [resp_msg (String. (.message (.get resp (- num 1))))]
+        (is (= (mk-msg num) resp_msg)))))
+
+    (let [state (.getState context)]
+      (is (> (get state "compressed_batches") 0))
+      (is (< (get state "ratio") 0.5)))
+   
+    (.close client)
+    (.close server)
+    (.term context)))
+
+(deftest test-compressed-batch-empty-messages
+  (doseq [wire-format [1 2]]
+    (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                      STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                      STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                      STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                      STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                      STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                      STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                      STORM-NETTY-COMPRESSION-CODEC "backtype.storm.messaging.netty.DeflateCompressionCodec"
+                      STORM-NETTY-COMPRESSION-THRESHOLD 1024
+                      STORM-NETTY-WIRE-FORMAT-VERSION wire-format
+                      }
+          context (TransportFactory/makeContext storm-conf)
+          server (.bind context nil port)
+          client (.connect context nil "localhost" port)
+          ;; every tenth message is empty, the messages after it in a batch must not be lost
+          mk-msg (fn [num] (if (zero? (mod num 10)) "" (str "value " num)))]
+      (.send client (.iterator (ArrayList. (for [num (range 1000)] (TaskMessage. task (.getBytes (mk-msg num)))))))
+      (let [resp (ArrayList.)]
+        (while (< (.size resp) 1000)
+          (let [iter (.recv server 0 0)]
+            (while (.hasNext iter)
+              (.add resp (.next iter)))))
+        (doseq [num (range 1000)]
+          (is (= (mk-msg num) (String. (or (.message ^TaskMessage (.get resp num)) (byte-array 0))))))
+        (is (= 1000 (.size resp))))
+      (is (> (get (.getState context) "compressed_batches") 0))
+      (.close client)
+      (.close server)
+      (.term context))))
+
+(deftest test-wire-format-v2
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024000
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000 
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-COMPRESSION-CODEC "backtype.storm.messaging.netty.DeflateCompressionCodec"
+                    STORM-NETTY-COMPRESSION-THRESHOLD 1024
+                    STORM-NETTY-WIRE-FORMAT-VERSION 2
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)
+        big-task 40000
+        task-of (fn [num] (if (even? num) big-task task))]
+    ;; large sends get compressed, single sends don't
+    (.send client (.iterator (ArrayList. (for [num (range 0 1000)] (TaskMessage. (task-of num) (.getBytes (str num)))))))
+    (doseq [num (range 1000 1100)]
+      (.send client (task-of num) (.getBytes (str num))))
+
+    (let [resp (ArrayList.)]
+      (while (< (.size resp) 1100)
+        (let [iter (.recv server 0 0)]
+          (while (.hasNext iter)
+            (.add resp (.next iter)))))
+      (doseq [num (range 0 1100)]
+        (let [msg (.get resp num)]
+          (is (= (task-of num) (.task msg)))
+          (is (= (str num) (String. (.message msg)))))))
+
+    (.close client)
+    (.close server)
+    (.term context)))
+
+(deftest test-wire-format-v2-shutdown-task
+  (let [storm-conf {STORM-MESSAGING-TRANSPORT "backtype.storm.messaging.netty.Context"
+                    STORM-MESSAGING-NETTY-BUFFER-SIZE 1024
+                    STORM-MESSAGING-NETTY-MAX-RETRIES 10
+                    STORM-MESSAGING-NETTY-MIN-SLEEP-MS 1000
+                    STORM-MESSAGING-NETTY-MAX-SLEEP-MS 5000
+                    STORM-MESSAGING-NETTY-SERVER-WORKER-THREADS 1
+                    STORM-MESSAGING-NETTY-CLIENT-WORKER-THREADS 1
+                    STORM-NETTY-WIRE-FORMAT-VERSION 2
+                    }
+        context (TransportFactory/makeContext storm-conf)
+        server (.bind context nil port)
+        client (.connect context nil "localhost" port)]
+    ;; the shutdown notice sent by the worker's receive thread closes the server,
+    ;; which then hands the close message to its receivers
+    (.send client -1 (byte-array []))
+    (let [resp (.next (.recv server 0 0))]
+      (is (= -1 (.task resp))))
+    (.close client)
+    (.close server)
+    (.term context)))
@@ -52,3 +52,17 @@
     (is (= serializer-class (.getClass (.getSerializer kryo ListDelegate))))
   )
 )
+
+(deftest test-kryo-pool-is-shared-and-thread-confined
+  (let [conf (read-default-config)
+        pool (SerializationFactory/getKryoPool conf)]
+    (is (identical? pool (SerializationFactory/getKryoPool (merge {} conf))))
+    (is (identical? (.get pool) (.get pool)))
+    (is (not (identical? (.get pool) @(future (.get pool)))))
+    ;; only the serialization settings tell pools apart
+    (is (identical? pool (SerializationFactory/getKryoPool (assoc conf "some.other.key" 1))))
+    (is (not (identical? pool (SerializationFactory/getKryoPool
+                               (assoc conf TOPOLOGY-FALL-BACK-ON-JAVA-SERIALIZATION
+                                      (not (conf TOPOLOGY-FALL-BACK-ON-JAVA-SERIALIZATION)))))))
+    (is (not (identical? pool (SerializationFactory/getKryoPool
+                               (assoc conf BlowfishTupleSerializer/SECRET_KEY "0123456789abcdef")))))))
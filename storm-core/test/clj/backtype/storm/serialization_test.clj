@@ -16,10 +16,16 @@
 (ns backtype.storm.serialization-test
   (:use [clojure test])
   (:import [backtype.storm.serialization KryoTupleSerializer KryoTupleDeserializer
-            KryoValuesSerializer KryoValuesDeserializer])
+            KryoValuesSerializer KryoValuesDeserializer TupleSchema])
   (:import [backtype.storm.testing TestSerObject TestKryoDecorator])
   (:import [backtype.storm ConfigValidation])
-  (:use [backtype.storm util config])
+  (:import [backtype.storm.generated StormTopology])
+  (:import [backtype.storm.task GeneralTopologyContext WorkerTopologyContext])
+  (:import [backtype.storm.testing TestWordSpout])
+  (:import [backtype.storm.topology OutputFieldsGetter])
+  (:import [backtype.storm.tuple Fields MessageId TupleImpl TypedFields TypedFields$Type])
+  (:use [backtype.storm util config thrift])
+  (:require [backtype.storm.daemon [task :as task]])
   )
 
 
@@ -98,3 +104,74 @@
   (is-roundtrip [#{:a :b :c}])
   (is-roundtrip [#{:a :b} 1 2 ["a" 3 5 #{5 6}]])
   (is-roundtrip [{:a [1 2 #{:a :b 1}] :b 3}]))
+
+(defn- mk-tuple-context [fields conf]
+  (let [topology (StormTopology. {"spout" (mk-spout-spec* (TestWordSpout.) {"default" fields} :conf conf)} {} {})]
+    (GeneralTopologyContext. topology (mk-conf {}) {(int 1) "spout"} {"spout" [(int 1)]}
+                             {"spout" {"default" (Fields. fields)}} "test-storm-id")))
+
+(defn- tuple-roundtrip [context values]
+  (let [tuple (TupleImpl. context values (int 1) "default" (MessageId/makeRootId 1 2))
+        bytes (.serialize (KryoTupleSerializer. (mk-conf {}) context) tuple)]
+    [bytes (.deserialize (KryoTupleDeserializer. (mk-conf {}) context) bytes)]))
+
+(deftest test-typed-fields-serialization
+  (let [fields ["i" "l" "f" "d" "b" "s" "bytes"]
+        getter (OutputFieldsGetter.)
+        _ (.declare getter (TypedFields. (into-array String fields)
+                                         (into-array TypedFields$Type
+                                                     [TypedFields$Type/INT TypedFields$Type/LONG TypedFields$Type/FLOAT
+                                                      TypedFields$Type/DOUBLE TypedFields$Type/BOOLEAN TypedFields$Type/STRING
+                                                      TypedFields$Type/BYTES])))
+        types (.getFieldTypes getter)
+        typed (mk-tuple-context fields {TOPOLOGY-STREAM-FIELD-TYPES types})
+        untyped (mk-tuple-context fields nil)
+        values [(int -7) 1234567890123 (float 1.5) 2.25 true "hello" (byte-array (map byte [1 2 3]))]
+        [typed-bytes typed-tuple] (tuple-roundtrip typed values)
+        [untyped-bytes untyped-tuple] (tuple-roundtrip untyped values)]
+    (is (= {"default" ["INT" "LONG" "FLOAT" "DOUBLE" "BOOLEAN" "STRING" "BYTES"]} types))
+    (is (= (butlast values) (butlast (.getValues typed-tuple))))
+    (is (= [1 2 3] (seq (.getBinary typed-tuple 6))))
+    (is (= (.getMessageId untyped-tuple) (.getMessageId typed-tuple)))
+    (is (< (alength typed-bytes) (alength untyped-bytes)))
+    (let [[_ nulls] (tuple-roundtrip typed [(int 0) 0 (float 0) 0.0 false nil nil])]
+      (is (= [0 0 0.0 0.0 false nil nil] (.getValues nulls))))
+    (is (thrown? IllegalArgumentException (tuple-roundtrip typed [1 2 3 4 5 6 7])))))
+
+(deftest test-typed-fields-validation
+  (let [schema (TupleSchema/fromTypeNames ["INT" "LONG" "STRING" "BYTES"])]
+    (.validate schema [(int 1) 2 "s" (byte-array 0)])
+    (.validate schema [(int 1) 2 nil nil])
+    (is (thrown? IllegalArgumentException (.validate schema [1 2 "s" nil])))
+    (is (thrown? IllegalArgumentException (.validate schema [(int 1) nil "s" nil])))
+    (is (thrown? IllegalArgumentException (.validate schema [(int 1) 2 "s"]))))
+  ;; emits are checked whether or not the tuple is serialized afterwards
+  (let [fields ["a" "b"]
+        topology (StormTopology. {"spout" (mk-spout-spec* (TestWordSpout.) {"default" fields}
+                                                          :conf {TOPOLOGY-STREAM-FIELD-TYPES {"default" ["STRING" "LONG"]}})}
+                                 {} {})
+        context (WorkerTopologyContext. topology (mk-conf {}) {(int 1) "spout"} {"spout" [(int 1)]}
+                                        {"spout" {"default" (Fields. fields)}} "test-storm-id"
+                                        nil nil (int 6700) [(int 1)] {} {})
+        tasks-fn (task/mk-tasks-fn {:task-id 1
+                                    :executor-data {:component-id "spout"
+                                                    :worker-context context
+                                                    :storm-conf (mk-conf {})
+                                                    :stream->component->grouper {}}})]
+    (is (thrown? IllegalArgumentException (tasks-fn "default" ["x" "2"])))
+    (is (thrown? IllegalArgumentException (tasks-fn (int 1) "default" ["x" (int 2)])))))
+
+(deftest test-lazy-tuple-deserialization
+  (doseq [[fields conf values] [[["a" "b" "c"] nil ["x" 1 {"k" [1 2]}]]
+                                [["a" "b"] {TOPOLOGY-STREAM-FIELD-TYPES {"default" ["STRING" "LONG"]}} ["x" 2]]]]
+    (let [context (mk-tuple-context fields conf)
+          lazy-conf (mk-conf {TOPOLOGY-TUPLE-LAZY-DESERIALIZATION true})
+          serializer (KryoTupleSerializer. lazy-conf context)
+          bytes (.serialize serializer (TupleImpl. context values (int 1) "default" (MessageId/makeRootId 1 2)))
+          tuple (.deserialize (KryoTupleDeserializer. lazy-conf context) bytes)]
+      (is (= (count values) (.size tuple)))
+      (is (= "x" (.getValue tuple 0)))
+      (is (= values (.getValues tuple)))
+      ;; re-emitting the received values copies their encoding
+      (let [forwarded (TupleImpl. context (.getValues tuple) (int 1) "default" (MessageId/makeRootId 1 2))]
+        (is (= (seq bytes) (seq (.serialize serializer forwarded))))))))
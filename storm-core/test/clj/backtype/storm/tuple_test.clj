@@ -15,7 +15,8 @@
 ;; limitations under the License.
 (ns backtype.storm.tuple-test
   (:use [clojure test])
-  (:import [backtype.storm.tuple Tuple])
+  (:import [backtype.storm.tuple Tuple MessageId MessageId$Builder])
+  (:import [com.esotericsoftware.kryo.io Input Output])
   (:use [backtype.storm testing]))
 
 (deftest test-lookup
@@ -49,3 +50,31 @@
                                         (assoc tuple "foo" 42)
                                         :bar "world"))))))
 
+(defn- roundtrip-message-id [^MessageId id]
+  (let [out (Output. 64 -1)]
+    (.serialize id out)
+    (MessageId/deserialize (Input. (.toBytes out)))))
+
+(deftest test-message-id
+  (let [builder (MessageId$Builder.)
+        _ (-> builder (.xor 1 3) (.xor 2 5) (.xor 1 6) (.xor 4 7))
+        multi (.build builder)]
+    (is (= {1 5 2 5 4 7} (.getAnchorsToIds multi)))
+    (is (= (MessageId/makeId {1 5 2 5 4 7}) multi))
+    (is (= (.hashCode (.getAnchorsToIds multi)) (.hashCode multi)))
+    (is (= (MessageId/makeUnanchored) (.build builder)))
+    (doseq [id [(MessageId/makeUnanchored) (MessageId/makeRootId 10 20) multi]]
+      (let [copy (roundtrip-message-id id)]
+        (is (= id copy))
+        (is (= (.getAnchorsToIds id) (.getAnchorsToIds copy)))))
+    (is (= {10 20} (.getAnchorsToIds (MessageId/makeRootId 10 20))))
+    (is (= 0 (.anchorCount (MessageId/makeUnanchored))))))
+
+(deftest test-message-id-builder-reuse
+  (let [builder (MessageId$Builder.)]
+    ;; every build resets the builder, whatever the number of anchors
+    (doseq [anchors [{1 3} {2 5 3 6} {4 7} {} {5 8 6 9 7 10} {8 11}]]
+      (doseq [[anchor id] anchors]
+        (.xor builder anchor id))
+      (is (= (MessageId/makeId anchors) (.build builder))))
+    (is (= (MessageId/makeUnanchored) (.build builder)))))
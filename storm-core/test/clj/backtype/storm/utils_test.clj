@@ -15,10 +15,14 @@
 ;; limitations under the License.
 (ns backtype.storm.utils-test
   (:import [backtype.storm Config])
-  (:import [backtype.storm.utils NimbusClient Utils])
+  (:import [backtype.storm.utils NimbusClient Utils RotatingAckTable ExpiringLongMap ExpiringLongMap$ExpiredCallback
+            IRingQueue])
+  (:require [backtype.storm [disruptor :as disruptor]])
+  (:import [java.util HashMap Random])
+  (:import [com.lmax.disruptor InsufficientCapacityException])
   (:import [org.apache.curator.retry ExponentialBackoffRetry])
   (:import [org.apache.thrift.transport TTransportException])
-  (:use [backtype.storm config util])
+  (:use [backtype.storm config util testing])
   (:use [clojure test])
 )
 
@@ -73,3 +77,182 @@
   (is (= 10100 (secs-to-millis-long 10.1)))
 )
 
+
+(deftest test-rotating-ack-table
+  (let [table (RotatingAckTable. 2 4)
+        slot (.touch table 7)]
+    (is (= 0 (.getVal table slot)))
+    (is (not (.hasSpoutTask table slot)))
+    (.xor table slot 12)
+    (.setSpoutTask table slot 3)
+    (.rotate table)
+    (is (.containsKey table 7))
+    ;; touching moves the entry into the newest bucket, with its state
+    (let [slot (.touch table 7)]
+      (is (= 12 (.getVal table slot)))
+      (is (= 3 (.getSpoutTask table slot)))
+      (is (not (.isFailed table slot))))
+    (.rotate table)
+    (is (.containsKey table 7))
+    (.touch table 8)
+    (is (= 1 (.rotate table)))
+    (is (not (.containsKey table 7)))
+    (is (= 1 (.size table)))
+    ))
+
+(deftest test-rotating-ack-table-matches-hashmap
+  (let [table (RotatingAckTable. 2 2)
+        expected (HashMap.)
+        rand (Random. 42)]
+    ;; few distinct keys so that probe runs collide, grow and get shifted on remove
+    (dotimes [_ 20000]
+      (let [id (long (.nextInt rand 500))
+            slot (.touch table id)]
+        (if (.nextBoolean rand)
+          (do (.remove table slot)
+              (.remove expected id))
+          (let [val (bit-xor (or (.get expected id) 0) (.nextLong rand))]
+            (.put expected id val)
+            (.xor table slot (bit-xor (.getVal table slot) val))))))
+    (is (= (.size expected) (.size table)))
+    (is (every? (fn [[id val]] (= val (.getVal table (.touch table id))))
+                expected))
+    ))
+
+(defn- expire-keys [^ExpiringLongMap m]
+  (let [expired (atom [])]
+    (.expire m (reify ExpiringLongMap$ExpiredCallback
+                 (expire [this key val]
+                   (swap! expired conj [key val]))))
+    @expired))
+
+(deftest test-expiring-long-map
+  (with-simulated-time
+    (let [m (ExpiringLongMap. 1000 2)]
+      (.put m 1 "a")
+      (.put m 2 "b")
+      (advance-time-ms! 500)
+      (.put m 3 "c")
+      ;; putting again restarts the timeout
+      (.put m 1 "d")
+      (is (= "d" (.get m 1)))
+      (advance-time-ms! 499)
+      (is (= [] (expire-keys m)))
+      (advance-time-ms! 1)
+      (is (= [[2 "b"]] (expire-keys m)))
+      (is (= "c" (.remove m 3)))
+      (is (nil? (.remove m 3)))
+      (advance-time-ms! 500)
+      (is (= [[1 "d"]] (expire-keys m)))
+      (is (= 0 (.size m)))
+      )))
+
+(deftest test-expiring-long-map-matches-hashmap
+  (with-simulated-time
+    (let [m (ExpiringLongMap. 1000 2)
+          expected (HashMap.)
+          rand (Random. 42)]
+      ;; few distinct keys so that probe runs collide, grow and get shifted on remove
+      (dotimes [i 20000]
+        (let [id (long (.nextInt rand 500))]
+          (if (.nextBoolean rand)
+            (is (= (.remove expected id) (.remove m id)))
+            (do (.put expected id i)
+                (.put m id i)))))
+      (is (= (.size expected) (.size m)))
+      (is (every? (fn [[id val]] (= val (.get m id))) expected))
+      (advance-time-ms! 1000)
+      (let [expired (expire-keys m)]
+        ;; keys expire in the order they were last put
+        (is (= (map (fn [[k v]] [k v]) (sort-by val expected)) expired)))
+      (is (= 0 (.size m)))
+      )))
+
+(deftest test-adaptive-wait-strategy
+  (let [^IRingQueue queue (disruptor/disruptor-queue "adaptive" 1024 :wait-strategy :adaptive)
+        received (atom [])
+        handler (disruptor/handler [o seq-id batch-end?] (swap! received conj o))]
+    (disruptor/consumer-started! queue)
+    (disruptor/consume-batch queue handler)
+    (testing "idle waits time out and shrink the budgets"
+      (dotimes [i 20]
+        (disruptor/consume-batch-when-available queue handler))
+      (is (empty? @received))
+      (let [state (.getState queue)]
+        (is (= 20 (get state "wait_parked")))
+        (is (< (get state "wait_spin_budget") 100))))
+    (testing "a parked consumer is woken by a publish"
+      (future (Thread/sleep 2) (disruptor/publish queue 1))
+      (while (empty? @received)
+        (disruptor/consume-batch-when-available queue handler))
+      (is (= [1] @received)))
+    (testing "waits that end while spinning grow the budgets back"
+      (let [budget (get (.getState queue) "wait_spin_budget")]
+        (dotimes [i 10]
+          (disruptor/publish queue i)
+          (disruptor/consume-batch-when-available queue handler))
+        (is (> (get (.getState queue) "wait_spin_budget") budget))
+        (is (= 11 (count @received)))))))
+
+(deftest test-publish-batch
+  (doseq [queue-type [:disruptor :array]]
+    (let [^IRingQueue queue (disruptor/disruptor-queue "batch" 8 :queue-type queue-type)
+          received (atom [])
+          handler (disruptor/handler [o seq-id batch-end?] (swap! received conj [o batch-end?]))]
+      (testing "batches published before the consumer starts are cached in order"
+        (disruptor/publish-batch queue [1 2 3])
+        (disruptor/consumer-started! queue)
+        (disruptor/consume-batch queue handler)
+        (is (= [1 2 3] (map first @received))))
+      (testing "a batch is consumed as one batch, also when it wraps the ring"
+        (reset! received [])
+        (disruptor/publish-batch queue [4 5 6 7 8 9])
+        (disruptor/consume-batch queue handler)
+        (is (= [[4 false] [5 false] [6 false] [7 false] [8 false] [9 true]] @received)))
+      (testing "batches larger than the ring are published in ring sized parts"
+        (reset! received [])
+        (let [publisher (future (disruptor/publish-batch queue (range 20)))]
+          (while (< (count @received) 20)
+            (disruptor/consume-batch queue handler))
+          @publisher)
+        (is (= (range 20) (map first @received)))))))
+
+(deftest test-array-ring-queue
+  (doseq [claim-strategy [:single-threaded :multi-threaded]]
+    (let [^IRingQueue queue (disruptor/disruptor-queue "array" 4 :claim-strategy claim-strategy :queue-type "array")
+          received (atom [])
+          handler (disruptor/handler [o seq-id batch-end?] (swap! received conj o))]
+      (testing "publishes before the consumer starts are cached, even beyond the capacity"
+        (dotimes [i 10]
+          (disruptor/publish queue i))
+        (disruptor/consumer-started! queue)
+        (disruptor/publish queue 10)
+        (disruptor/consume-batch-when-available queue handler)
+        (is (= (range 11) @received))
+        (reset! received []))
+      (testing "a full queue refuses non-blocking publishes"
+        (dotimes [i 4]
+          (disruptor/publish queue i))
+        (is (= 4 (.population queue)))
+        (is (thrown? InsufficientCapacityException (disruptor/try-publish queue 4)))
+        (disruptor/consume-batch queue handler)
+        (is (= [0 1 2 3] @received))
+        (is (= 0 (.population queue))))
+      (testing "idle waits time out"
+        (disruptor/consume-batch-when-available queue handler)
+        (is (= 4 (count @received))))
+      (testing "a parked consumer is woken by a publish"
+        (future (Thread/sleep 2) (disruptor/publish queue 4))
+        (while (= 4 (count @received))
+          (disruptor/consume-batch-when-available queue handler))
+        (is (= [0 1 2 3 4] @received)))
+      (testing "publishers from several threads all get through"
+        (when (= claim-strategy :multi-threaded)
+          (reset! received [])
+          (let [publishers (doall (for [t (range 4)]
+                                    (future (dotimes [i 100] (disruptor/publish queue [t i])))))]
+            (while (< (count @received) 400)
+              (disruptor/consume-batch-when-available queue handler))
+            (doseq [p publishers] @p))
+          (doseq [t (range 4)]
+            (is (= (range 100) (map second (filter #(= t (first %)) @received))))))))))